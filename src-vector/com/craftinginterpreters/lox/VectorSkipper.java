@@ -0,0 +1,106 @@
+package com.craftinginterpreters.lox;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * 用Vector API实现的BlockSkipper，只用于MappedSource(按字节索引)。
+ * 每次从映射的文件中复制一个向量宽度的字节到window，和目标字符逐lane比较，
+ * 用掩码的firstTrue()找到位置，用trueCount()或toLong()的位计数统计换行。
+ * 剩下不足一个向量宽度的尾部逐字节处理。
+ * JDK 17的Vector API可以用fromByteBuffer直接从映射的缓冲区加载，但之后的版本去掉了它，
+ * 换成的fromMemorySegment又依赖预览特性，所以这里先复制到堆上的小数组再加载，在这些版本上都能编译。
+ *
+ * 这个类放在单独的源码目录src-vector中，主源码树不依赖孵化模块，用普通的javac就能编译。
+ * 需要时另外编译，和主源码树的输出放在同一个classpath上：
+ *   javac --add-modules jdk.incubator.vector -cp <主源码树的输出> -d <输出目录> src-vector/com/craftinginterpreters/lox/VectorSkipper.java
+ * 运行时加上 --add-modules jdk.incubator.vector 才会用到它，见BlockSkipper.forSource。
+ */
+final class VectorSkipper implements BlockSkipper {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    private final MappedSource source;
+    private final int length;
+    private final byte[] window = new byte[LANES];
+    private int newlines;
+
+    VectorSkipper(MappedSource source) {
+        this.source = source;
+        this.length = source.length();
+    }
+
+    @Override
+    public int skipWhitespace(int from) {
+        newlines = 0;
+        int position = from;
+        for (; position + LANES <= length; position += LANES) {
+            source.copyTo(position, window, LANES);
+            ByteVector chunk = ByteVector.fromArray(SPECIES, window, 0);
+            VectorMask<Byte> newline = chunk.eq((byte) '\n');
+            VectorMask<Byte> blank = newline.or(chunk.eq((byte) ' '))
+                    .or(chunk.eq((byte) '\t'))
+                    .or(chunk.eq((byte) '\r'));
+            if (!blank.allTrue()) {
+                int found = blank.not().firstTrue();
+                // 只统计found之前的换行，lane数最多64，found一定小于64
+                newlines += Long.bitCount(newline.toLong() & ((1L << found) - 1));
+                return position + found;
+            }
+            newlines += newline.trueCount();
+        }
+        for (; position < length; position++) {
+            char c = source.charAt(position);
+            if (c == '\n') {
+                newlines++;
+            } else if (c != ' ' && c != '\t' && c != '\r') {
+                return position;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public int findNewline(int from) {
+        int position = from;
+        for (; position + LANES <= length; position += LANES) {
+            source.copyTo(position, window, LANES);
+            VectorMask<Byte> newline = ByteVector.fromArray(SPECIES, window, 0).eq((byte) '\n');
+            if (newline.anyTrue()) return position + newline.firstTrue();
+        }
+        for (; position < length; position++) {
+            if (source.charAt(position) == '\n') return position;
+        }
+        return length;
+    }
+
+    @Override
+    public int findQuote(int from) {
+        newlines = 0;
+        int position = from;
+        for (; position + LANES <= length; position += LANES) {
+            source.copyTo(position, window, LANES);
+            ByteVector chunk = ByteVector.fromArray(SPECIES, window, 0);
+            VectorMask<Byte> newline = chunk.eq((byte) '\n');
+            VectorMask<Byte> quote = chunk.eq((byte) '"');
+            if (quote.anyTrue()) {
+                int found = quote.firstTrue();
+                newlines += Long.bitCount(newline.toLong() & ((1L << found) - 1));
+                return position + found;
+            }
+            newlines += newline.trueCount();
+        }
+        for (; position < length; position++) {
+            char c = source.charAt(position);
+            if (c == '"') return position;
+            if (c == '\n') newlines++;
+        }
+        return length;
+    }
+
+    @Override
+    public int newlines() {
+        return newlines;
+    }
+}
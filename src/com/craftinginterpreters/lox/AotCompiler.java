@@ -0,0 +1,232 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static com.craftinginterpreters.lox.BytecodeGenerator.OBJECT;
+import static com.craftinginterpreters.lox.BytecodeGenerator.RUNTIME;
+import static com.craftinginterpreters.lox.ClassFile.Code.*;
+
+/*
+ * 提前编译：jlox --compile=<jar> script.lox 把整个脚本翻译成JVM类，打包成可以直接 java -jar 运行的jar。
+ * 运行时不再扫描、解析和变量解析，jar里只有生成的类和运行时库(LoxRuntime、Values、RuntimeError)。
+ *
+ * 生成的类：
+ * - Script：入口。main调用LoxRuntime.execute，它负责和jlox相同的运行时错误报告和退出码。
+ *   全局变量放在Script的两个静态数组VALUES/REFS中，编译时给每个名字分配一个下标。
+ *   没有定义的全局变量的值是Values.UNDEFINED，读写时检查；
+ *   前面的顶层语句已经声明过的全局变量一定已经定义了(顶层的var总会执行，运行时错误会结束整个脚本)，不再检查。
+ * - Script$0、Script$1...：顶层语句按顺序编译成这些类中的静态方法part0、part1...，Script.run依次调用。
+ *   一个方法的字节码超过PART_SIZE就换一个方法，常量池或方法数接近上限时换一个类，
+ *   所以脚本的大小不受单个方法64KB的限制，只有单条顶层语句不能超过一个方法的上限。
+ * 顶层语句之间没有局部变量，块中的局部变量都是所在方法的JVM局部变量，和JvmCompiler中的单元内变量一样。
+ */
+final class AotCompiler {
+    static final String MAIN_CLASS = "com/craftinginterpreters/lox/Script";
+    private static final String PACKAGE = "com/craftinginterpreters/lox/";
+    // 生成的代码在运行时用到的类，从编译器自己的classpath中复制进jar
+    private static final String[] RUNTIME_CLASSES = { "LoxRuntime", "Values", "RuntimeError" };
+    private static final int PART_SIZE = 16 * 1024;
+    private static final int PART_CONSTANTS = 40000;
+    private static final int PART_METHODS = 1000;
+
+    private final Interpreter interpreter;
+    // 全局变量名到VALUES/REFS下标
+    private final Map<String, Integer> globals = new HashMap<>();
+    // 已经执行过的顶层语句声明的全局变量
+    private final Set<String> defined = new HashSet<>();
+    // 生成的类，按内部名
+    private final Map<String, byte[]> classes = new LinkedHashMap<>();
+    // Script.run按顺序调用的方法，每个元素是{类名, 方法名}
+    private final List<String[]> parts = new ArrayList<>();
+
+    AotCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    /*
+     * statements必须已经经过Resolver。
+     * 脚本无法编译(单条语句太大等)时抛出IllegalStateException，不会留下不完整的jar。
+     */
+    void compile(List<Stmt> statements, Path jar) throws IOException {
+        Generator generator = new Generator();
+        for (Stmt statement : statements) {
+            generator.statement(statement);
+            if (statement instanceof Stmt.Var var) defined.add(var.name.getLexeme());
+        }
+        generator.finish();
+        classes.put(MAIN_CLASS, mainClass());
+        write(jar);
+    }
+
+    private int global(Token name) {
+        return globals.computeIfAbsent(name.getLexeme(), key -> globals.size());
+    }
+
+    private byte[] mainClass() {
+        ClassFile classFile = new ClassFile(ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL | ClassFile.ACC_SUPER,
+                MAIN_CLASS, OBJECT, "java/lang/Runnable");
+        classFile.field(ClassFile.ACC_STATIC | ClassFile.ACC_FINAL, "VALUES", "[J");
+        classFile.field(ClassFile.ACC_STATIC | ClassFile.ACC_FINAL, "REFS", "[Ljava/lang/Object;");
+
+        ClassFile.Code clinit = classFile.method(ClassFile.ACC_STATIC, "<clinit>", "()V");
+        clinit.maxStack = 1;
+        clinit.pushInt(globals.size());
+        clinit.invoke(INVOKESTATIC, RUNTIME, "globalValues", "(I)[J");
+        clinit.field(PUTSTATIC, MAIN_CLASS, "VALUES", "[J");
+        clinit.pushInt(globals.size());
+        clinit.type(ANEWARRAY, OBJECT);
+        clinit.field(PUTSTATIC, MAIN_CLASS, "REFS", "[Ljava/lang/Object;");
+        clinit.op(RETURN);
+
+        ClassFile.Code init = classFile.method(ClassFile.ACC_PUBLIC, "<init>", "()V");
+        init.maxStack = 1;
+        init.local(ALOAD, 0);
+        init.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        init.op(RETURN);
+
+        ClassFile.Code run = classFile.method(ClassFile.ACC_PUBLIC, "run", "()V");
+        run.maxLocals = 1;
+        for (String[] part : parts) {
+            run.invoke(INVOKESTATIC, part[0], part[1], "()V");
+        }
+        run.op(RETURN);
+
+        ClassFile.Code main = classFile.method(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "main", "([Ljava/lang/String;)V");
+        main.maxStack = 2;
+        main.maxLocals = 1;
+        main.type(NEW, MAIN_CLASS);
+        main.op(DUP);
+        main.invoke(INVOKESPECIAL, MAIN_CLASS, "<init>", "()V");
+        main.invoke(INVOKESTATIC, RUNTIME, "execute", "(Ljava/lang/Runnable;)V");
+        main.op(RETURN);
+        return classFile.toByteArray();
+    }
+
+    // 先写到临时文件，完整写完后再换成目标文件
+    private void write(Path jar) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, MAIN_CLASS.replace('/', '.'));
+        Path temp = jar.resolveSibling(jar.getFileName() + ".tmp");
+        try {
+            try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(temp), manifest)) {
+                for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                    out.putNextEntry(new JarEntry(entry.getKey() + ".class"));
+                    out.write(entry.getValue());
+                    out.closeEntry();
+                }
+                for (String name : RUNTIME_CLASSES) {
+                    out.putNextEntry(new JarEntry(PACKAGE + name + ".class"));
+                    try (InputStream in = AotCompiler.class.getResourceAsStream(name + ".class")) {
+                        if (in == null) throw new IOException("Runtime class " + name + " not found.");
+                        in.transferTo(out);
+                    }
+                    out.closeEntry();
+                }
+            }
+            Files.move(temp, jar, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /*
+     * 局部变量表：方法都是静态无参数的，0是REF，之后是块中的Lox变量和临时值。
+     */
+    private final class Generator extends BytecodeGenerator {
+        private ClassFile classFile;
+        private String className;
+
+        Generator() {
+            super(AotCompiler.this.interpreter, 0);
+        }
+
+        void statement(Stmt statement) {
+            if (code == null || code.size() > PART_SIZE) nextPart();
+            execute(statement);
+        }
+
+        void finish() {
+            if (code != null) code.op(RETURN);
+            if (classFile != null) classes.put(className, classFile.toByteArray());
+        }
+
+        private void nextPart() {
+            if (code != null) code.op(RETURN);
+            if (classFile == null || classFile.constantCount() > PART_CONSTANTS
+                    || classFile.methodCount() >= PART_METHODS) {
+                if (classFile != null) classes.put(className, classFile.toByteArray());
+                className = MAIN_CLASS + "$" + (classes.size());
+                classFile = new ClassFile(ClassFile.ACC_FINAL | ClassFile.ACC_SUPER, className, OBJECT);
+            }
+            String method = "part" + parts.size();
+            parts.add(new String[] { className, method });
+            begin(classFile.method(ClassFile.ACC_STATIC, method, "()V"));
+        }
+
+        private void loadGlobalArrays(Token name, String field, String descriptor) {
+            code.field(GETSTATIC, MAIN_CLASS, field, descriptor);
+            code.pushInt(global(name));
+        }
+
+        // 把全局变量的值放到栈顶，没有确定已经定义时检查
+        private void loadGlobalValue(Token name) {
+            loadGlobalArrays(name, "VALUES", "[J");
+            code.op(LALOAD);
+            if (!defined.contains(name.getLexeme())) {
+                code.pushString(name.getLexeme());
+                code.pushInt(name.getLine());
+                code.invoke(INVOKESTATIC, RUNTIME, "defined", "(JLjava/lang/String;I)J");
+            }
+        }
+
+        private void storeGlobal(Token name, int value) {
+            loadGlobalArrays(name, "VALUES", "[J");
+            code.local(LLOAD, value);
+            code.op(LASTORE);
+            loadGlobalArrays(name, "REFS", "[Ljava/lang/Object;");
+            code.local(ALOAD, ref);
+            code.op(AASTORE);
+        }
+
+        // 顶层语句之间没有局部变量，所有局部变量都在当前编译的语句中
+        @Override
+        void loadExternal(Token name, Interpreter.Local local) {
+            if (local != null) throw new IllegalStateException("Local variable outside statement.");
+            loadGlobalValue(name);
+            loadGlobalArrays(name, "REFS", "[Ljava/lang/Object;");
+            code.op(AALOAD);
+            code.local(ASTORE, ref);
+        }
+
+        @Override
+        void storeExternal(Token name, Interpreter.Local local, int value) {
+            if (local != null) throw new IllegalStateException("Local variable outside statement.");
+            if (!defined.contains(name.getLexeme())) {
+                loadGlobalValue(name);
+                code.op(POP2);
+            }
+            storeGlobal(name, value);
+        }
+
+        @Override
+        void defineGlobal(Token name, int value) {
+            storeGlobal(name, value);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * 按下标遍历FlatAst的解释器，语义、打印格式和错误信息都和Interpreter一致。
+ * 值用Object表示，局部作用域是按槽位索引的Object数组帧，大小在变量解析时就已经确定；
+ * 全局变量按名字存放，名字来自常量池，运行时不需要从源码中截取词素。
+ * 操作符的类型和运行时错误的行号通过节点的token下标取得。
+ */
+final class ArenaInterpreter {
+    private final Map<String, Object> globals = new HashMap<>();
+    private FlatAst ast;
+
+    private static final class Frame {
+        final Frame enclosing;
+        final Object[] slots;
+
+        Frame(Frame enclosing, int size) {
+            this.enclosing = enclosing;
+            this.slots = new Object[size];
+        }
+    }
+
+    void interpret(FlatAst ast) {
+        this.ast = ast;
+        try {
+            for (int i = 0; i < ast.programCount; i++) {
+                execute(ast.lists[ast.programStart + i], null);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtiemError(error);
+        }
+    }
+
+    private void execute(int node, Frame frame) {
+        switch (ast.kind[node]) {
+            case FlatAst.EXPRESSION -> evaluate(ast.a[node], frame);
+            case FlatAst.PRINT -> System.out.println(Interpreter.stringify(evaluate(ast.a[node], frame)));
+            case FlatAst.VAR -> {
+                Object value = ast.a[node] < 0 ? null : evaluate(ast.a[node], frame);
+                if (ast.b[node] < 0) {
+                    globals.put((String) ast.constantAt(ast.c[node]), value);
+                } else {
+                    frame.slots[ast.b[node]] = value;
+                }
+            }
+            case FlatAst.BLOCK -> {
+                Frame inner = new Frame(frame, ast.c[node]);
+                int start = ast.a[node];
+                int count = ast.b[node];
+                for (int i = 0; i < count; i++) {
+                    execute(ast.lists[start + i], inner);
+                }
+            }
+            case FlatAst.IF -> {
+                if (Interpreter.isTruthy(evaluate(ast.a[node], frame))) {
+                    execute(ast.b[node], frame);
+                } else if (ast.c[node] >= 0) {
+                    execute(ast.c[node], frame);
+                }
+            }
+            case FlatAst.WHILE -> {
+                int condition = ast.a[node];
+                int body = ast.b[node];
+                while (Interpreter.isTruthy(evaluate(condition, frame))) {
+                    execute(body, frame);
+                }
+            }
+            default -> throw new IllegalStateException("Unexpected statement kind " + ast.kind[node]);
+        }
+    }
+
+    private Object evaluate(int node, Frame frame) {
+        switch (ast.kind[node]) {
+            case FlatAst.LITERAL:
+                return ast.constantAt(ast.a[node]);
+            case FlatAst.GROUPING:
+                return evaluate(ast.a[node], frame);
+            case FlatAst.VARIABLE: {
+                int depth = ast.a[node];
+                if (depth >= 0) return ancestor(frame, depth).slots[ast.b[node]];
+                String name = (String) ast.constantAt(ast.b[node]);
+                Object value = globals.get(name);
+                if (value == null && !globals.containsKey(name)) throw undefined(node, name);
+                return value;
+            }
+            case FlatAst.ASSIGN: {
+                Object value = evaluate(ast.a[node], frame);
+                int depth = ast.b[node];
+                if (depth >= 0) {
+                    ancestor(frame, depth).slots[ast.c[node]] = value;
+                } else {
+                    String name = (String) ast.constantAt(ast.c[node]);
+                    if (!globals.containsKey(name)) throw undefined(node, name);
+                    globals.put(name, value);
+                }
+                return value;
+            }
+            case FlatAst.LOGICAL: {
+                Object left = evaluate(ast.a[node], frame);
+                if (operator(node) == TokenType.OR) {
+                    if (Interpreter.isTruthy(left)) return left;
+                } else {
+                    if (!Interpreter.isTruthy(left)) return left;
+                }
+                return evaluate(ast.b[node], frame);
+            }
+            case FlatAst.UNARY: {
+                Object right = evaluate(ast.a[node], frame);
+                if (operator(node) == TokenType.BANG) return !Interpreter.isTruthy(right);
+                if (!(right instanceof Double number)) {
+                    throw new RuntimeError(ast.line(node), "Operand must be a number.");
+                }
+                return -number;
+            }
+            case FlatAst.BINARY:
+                return binary(node, evaluate(ast.a[node], frame), evaluate(ast.b[node], frame));
+            default:
+                throw new IllegalStateException("Unexpected expression kind " + ast.kind[node]);
+        }
+    }
+
+    private Object binary(int node, Object left, Object right) {
+        TokenType operator = operator(node);
+        switch (operator) {
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+            case PLUS:
+                if (left instanceof Double l && right instanceof Double r) return l + r;
+                if (left instanceof String l && right instanceof String r) return l + r;
+                throw new RuntimeError(ast.line(node), "Operands must be two numbers or two strings.");
+            default:
+                break;
+        }
+        if (!(left instanceof Double l) || !(right instanceof Double r)) {
+            throw new RuntimeError(ast.line(node), "Operands must be numbers.");
+        }
+        return switch (operator) {
+            case MINUS -> l - r;
+            case STAR -> l * r;
+            case SLASH -> l / r;
+            case GREATER -> l > r;
+            case GREATER_EQUAL -> l >= r;
+            case LESS -> l < r;
+            case LESS_EQUAL -> l <= r;
+            default -> null;
+        };
+    }
+
+    private TokenType operator(int node) {
+        return ast.tokenType(node);
+    }
+
+    private static Frame ancestor(Frame frame, int depth) {
+        for (int i = 0; i < depth; i++) {
+            frame = frame.enclosing;
+        }
+        return frame;
+    }
+
+    private RuntimeError undefined(int node, String name) {
+        return new RuntimeError(ast.line(node), "Undefined variable '" + name + "'.");
+    }
+}
@@ -0,0 +1,419 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * 直接从TokenBuffer解析出FlatAst的解析器，语法、错误信息和错误恢复都和Parser一致(表达式部分同样是Pratt解析)，
+ * 只是每个产生式返回的是节点下标而不是Expr/Stmt对象，整个过程不创建Token对象。
+ *
+ * 解析完成且没有语法错误时，再对扁平树做一次变量解析，算出每个局部变量引用的(depth, slot)写回节点，
+ * 规则、遍历顺序和报告的错误都和Resolver相同。和Lox.run一样，有语法错误时不做变量解析。
+ */
+final class ArenaParser {
+    private static final int NONE = -1;
+
+    private final TokenBuffer tokens;
+    private final FlatAst ast;
+    private int current = 0;
+    private boolean hadError = false;
+
+    // 正在解析的各层语句列表共用的栈，一个块解析完就把自己那一段复制到ast.lists中
+    private int[] pending = new int[64];
+    private int pendingSize = 0;
+
+    private static class ParseError extends RuntimeException {
+    }
+
+    // 和Resolver中的一样：变量名到槽位的映射，以及变量是否已经完成初始化
+    private static class Scope {
+        final Map<String, Integer> slots = new HashMap<>();
+        final Map<String, Boolean> defined = new HashMap<>();
+    }
+
+    private final List<Scope> scopes = new ArrayList<>();
+
+    ArenaParser(TokenBuffer tokens) {
+        this.tokens = tokens;
+        this.ast = new FlatAst(tokens);
+    }
+
+    FlatAst parse() {
+        int mark = pendingSize;
+        while (!isAtEnd()) {
+            push(declaration());
+        }
+        ast.programCount = pendingSize - mark;
+        ast.programStart = popList(mark);
+        if (!hadError) {
+            for (int i = 0; i < ast.programCount; i++) {
+                resolveStmt(ast.lists[ast.programStart + i]);
+            }
+        }
+        ast.trim();
+        return ast;
+    }
+
+    private int declaration() {
+        try {
+            if (match(TokenType.VAR)) return varDeclaration();
+            return statement();
+        } catch (ParseError error) {
+            synchronize();
+            return NONE;
+        }
+    }
+
+    private int varDeclaration() {
+        consume(TokenType.IDENTIFIER, "Expected variable name.");
+        int name = current - 1;
+        int initializer = NONE;
+        if (match(TokenType.EQUAL)) {
+            initializer = expression();
+        }
+        consume(TokenType.SEMICOLON, "Expected ';' after variable declaration.");
+        return ast.add(FlatAst.VAR, initializer, NONE, NONE, name);
+    }
+
+    private int statement() {
+        if (match(TokenType.FOR)) return forStatement();
+        if (match(TokenType.IF)) return ifStatement();
+        if (match(TokenType.PRINT)) return printStatement();
+        if (match(TokenType.WHILE)) return whileStatement();
+        if (match(TokenType.LEFT_BRACE)) return block();
+        return expressionStatement();
+    }
+
+    // 和Parser一样desugar成 { initializer; while(condition) { body; increment; } }
+    private int forStatement() {
+        consume(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
+        int initializer;
+        if (match(TokenType.SEMICOLON)) {
+            initializer = NONE;
+        } else if (match(TokenType.VAR)) {
+            initializer = varDeclaration();
+        } else {
+            initializer = expressionStatement();
+        }
+
+        int condition = NONE;
+        if (!check(TokenType.SEMICOLON)) {
+            condition = expression();
+        }
+        consume(TokenType.SEMICOLON, "Expect ';' after loop condition.");
+
+        int increment = NONE;
+        if (!check(TokenType.RIGHT_PAREN)) {
+            increment = expression();
+        }
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
+        int body = statement();
+
+        if (increment != NONE) {
+            body = blockOf(body, ast.add(FlatAst.EXPRESSION, increment, NONE, NONE, NONE));
+        }
+        if (condition == NONE) condition = ast.add(FlatAst.LITERAL, ast.constant(true), NONE, NONE, NONE);
+        body = ast.add(FlatAst.WHILE, condition, body, NONE, NONE);
+        if (initializer != NONE) {
+            body = blockOf(initializer, body);
+        }
+        return body;
+    }
+
+    private int blockOf(int first, int second) {
+        int mark = pendingSize;
+        push(first);
+        push(second);
+        return ast.add(FlatAst.BLOCK, popList(mark), 2, 0, NONE);
+    }
+
+    private int ifStatement() {
+        consume(TokenType.LEFT_PAREN, "Expect '(' after 'if'.");
+        int condition = expression();
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after if condition.");
+        int thenBranch = statement();
+        int elseBranch = NONE;
+        if (match(TokenType.ELSE)) {
+            elseBranch = statement();
+        }
+        return ast.add(FlatAst.IF, condition, thenBranch, elseBranch, NONE);
+    }
+
+    private int whileStatement() {
+        consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
+        int condition = expression();
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
+        int body = statement();
+        return ast.add(FlatAst.WHILE, condition, body, NONE, NONE);
+    }
+
+    private int printStatement() {
+        int value = expression();
+        consume(TokenType.SEMICOLON, "Expected ';' after value.");
+        return ast.add(FlatAst.PRINT, value, NONE, NONE, NONE);
+    }
+
+    private int expressionStatement() {
+        int expr = expression();
+        consume(TokenType.SEMICOLON, "Expected ';' after value.");
+        return ast.add(FlatAst.EXPRESSION, expr, NONE, NONE, NONE);
+    }
+
+    private int block() {
+        int mark = pendingSize;
+        while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+            push(declaration());
+        }
+        int count = pendingSize - mark;
+        int start = popList(mark);
+        consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
+        return ast.add(FlatAst.BLOCK, start, count, 0, NONE);
+    }
+
+    private void push(int node) {
+        if (pendingSize == pending.length) pending = Arrays.copyOf(pending, pendingSize * 2);
+        pending[pendingSize++] = node;
+    }
+
+    private int popList(int mark) {
+        int start = ast.addList(pending, mark, pendingSize - mark);
+        pendingSize = mark;
+        return start;
+    }
+
+    // 优先级和Parser中的PRECEDENCE表相同
+    private static final int PREC_NONE = 0;
+    private static final int PREC_ASSIGNMENT = 1;
+    private static final int PREC_UNARY = 8;
+    private static final int[] PRECEDENCE = new int[TokenType.values().length];
+    static {
+        PRECEDENCE[TokenType.EQUAL.ordinal()] = PREC_ASSIGNMENT;
+        PRECEDENCE[TokenType.OR.ordinal()] = 2;
+        PRECEDENCE[TokenType.AND.ordinal()] = 3;
+        PRECEDENCE[TokenType.BANG_EQUAL.ordinal()] = 4;
+        PRECEDENCE[TokenType.EQUAL_EQUAL.ordinal()] = 4;
+        PRECEDENCE[TokenType.GREATER.ordinal()] = 5;
+        PRECEDENCE[TokenType.GREATER_EQUAL.ordinal()] = 5;
+        PRECEDENCE[TokenType.LESS.ordinal()] = 5;
+        PRECEDENCE[TokenType.LESS_EQUAL.ordinal()] = 5;
+        PRECEDENCE[TokenType.MINUS.ordinal()] = 6;
+        PRECEDENCE[TokenType.PLUS.ordinal()] = 6;
+        PRECEDENCE[TokenType.SLASH.ordinal()] = 7;
+        PRECEDENCE[TokenType.STAR.ordinal()] = 7;
+    }
+
+    private int expression() {
+        return parsePrecedence(PREC_ASSIGNMENT);
+    }
+
+    private int parsePrecedence(int minPrecedence) {
+        int expr = prefix();
+        while (true) {
+            TokenType type = tokens.type(current);
+            int precedence = PRECEDENCE[type.ordinal()];
+            if (precedence == PREC_NONE || precedence < minPrecedence) return expr;
+            int operator = current;
+            advance();
+            switch (type) {
+                case EQUAL -> expr = assignment(expr, operator);
+                case OR, AND -> expr = ast.add(FlatAst.LOGICAL, expr, parsePrecedence(precedence + 1), NONE, operator);
+                default -> expr = ast.add(FlatAst.BINARY, expr, parsePrecedence(precedence + 1), NONE, operator);
+            }
+        }
+    }
+
+    private int assignment(int target, int equals) {
+        int value = parsePrecedence(PREC_ASSIGNMENT);
+        if (ast.kind[target] == FlatAst.VARIABLE) {
+            return ast.add(FlatAst.ASSIGN, value, NONE, NONE, ast.token[target]);
+        }
+        error(equals, "Invalid assignment target.");
+        return target;
+    }
+
+    private int prefix() {
+        TokenType type = tokens.type(current);
+        int start = current;
+        switch (type) {
+            case BANG, MINUS -> {
+                advance();
+                int right = parsePrecedence(PREC_UNARY);
+                return ast.add(FlatAst.UNARY, right, NONE, NONE, start);
+            }
+            case FALSE -> {
+                advance();
+                return ast.add(FlatAst.LITERAL, ast.constant(false), NONE, NONE, start);
+            }
+            case TRUE -> {
+                advance();
+                return ast.add(FlatAst.LITERAL, ast.constant(true), NONE, NONE, start);
+            }
+            case NIL -> {
+                advance();
+                return ast.add(FlatAst.LITERAL, ast.constant(null), NONE, NONE, start);
+            }
+            case NUMBER, STRING -> {
+                advance();
+                return ast.add(FlatAst.LITERAL, ast.constant(tokens.literal(start)), NONE, NONE, start);
+            }
+            case LEFT_PAREN -> {
+                advance();
+                int expr = expression();
+                consume(TokenType.RIGHT_PAREN, "Expect ')' after expression");
+                return ast.add(FlatAst.GROUPING, expr, NONE, NONE, start);
+            }
+            case IDENTIFIER -> {
+                advance();
+                return ast.add(FlatAst.VARIABLE, NONE, NONE, NONE, start);
+            }
+            default -> throw error(current, "Expect expression");
+        }
+    }
+
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean check(TokenType type) {
+        if (isAtEnd()) return false;
+        return tokens.type(current) == type;
+    }
+
+    private void advance() {
+        if (!isAtEnd()) current++;
+    }
+
+    private boolean isAtEnd() {
+        return tokens.type(current) == TokenType.EOF;
+    }
+
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
+        throw error(current, message);
+    }
+
+    // 只有报告错误时才需要Token对象
+    private ParseError error(int tokenIndex, String message) {
+        Lox.error(tokens.token(tokenIndex), message);
+        hadError = true;
+        return new ParseError();
+    }
+
+    private void synchronize() {
+        advance();
+        while (!isAtEnd()) {
+            if (tokens.type(current - 1) == TokenType.SEMICOLON) return;
+            switch (tokens.type(current)) {
+                case CLASS:
+                case FUN:
+                case VAR:
+                case FOR:
+                case IF:
+                case WHILE:
+                case PRINT:
+                case RETURN:
+                    return;
+                default:
+                    break;
+            }
+            advance();
+        }
+    }
+
+    // ---- 变量解析，对应Resolver中的各个visit方法 ----
+
+    private void resolveStmt(int node) {
+        switch (ast.kind[node]) {
+            case FlatAst.BLOCK -> {
+                scopes.add(new Scope());
+                int start = ast.a[node];
+                int count = ast.b[node];
+                for (int i = 0; i < count; i++) {
+                    resolveStmt(ast.lists[start + i]);
+                }
+                ast.c[node] = scopes.remove(scopes.size() - 1).slots.size();
+            }
+            case FlatAst.EXPRESSION, FlatAst.PRINT -> resolveExpr(ast.a[node]);
+            case FlatAst.IF -> {
+                resolveExpr(ast.a[node]);
+                resolveStmt(ast.b[node]);
+                if (ast.c[node] != NONE) resolveStmt(ast.c[node]);
+            }
+            case FlatAst.VAR -> {
+                String name = tokens.lexeme(ast.token[node]);
+                ast.b[node] = declare(node, name);
+                ast.c[node] = ast.constant(name);
+                if (ast.a[node] != NONE) resolveExpr(ast.a[node]);
+                if (!scopes.isEmpty()) scopes.get(scopes.size() - 1).defined.put(name, true);
+            }
+            case FlatAst.WHILE -> {
+                resolveExpr(ast.a[node]);
+                resolveStmt(ast.b[node]);
+            }
+            default -> throw new IllegalStateException("Unexpected statement kind " + ast.kind[node]);
+        }
+    }
+
+    // 返回局部变量的槽位，全局变量返回-1
+    private int declare(int node, String name) {
+        if (scopes.isEmpty()) return NONE;
+        Scope scope = scopes.get(scopes.size() - 1);
+        if (scope.slots.containsKey(name)) {
+            Lox.error(tokens.token(ast.token[node]), "Already a variable with this name in this scope.");
+            return scope.slots.get(name);
+        }
+        int slot = scope.slots.size();
+        scope.slots.put(name, slot);
+        scope.defined.put(name, false);
+        return slot;
+    }
+
+    private void resolveExpr(int node) {
+        switch (ast.kind[node]) {
+            case FlatAst.ASSIGN -> {
+                resolveExpr(ast.a[node]);
+                resolveLocal(node, ast.b, ast.c);
+            }
+            case FlatAst.BINARY, FlatAst.LOGICAL -> {
+                resolveExpr(ast.a[node]);
+                resolveExpr(ast.b[node]);
+            }
+            case FlatAst.GROUPING, FlatAst.UNARY -> resolveExpr(ast.a[node]);
+            case FlatAst.LITERAL -> {
+            }
+            case FlatAst.VARIABLE -> {
+                String name = tokens.lexeme(ast.token[node]);
+                if (!scopes.isEmpty() && scopes.get(scopes.size() - 1).defined.get(name) == Boolean.FALSE) {
+                    Lox.error(tokens.token(ast.token[node]), "Can't read local variable in its own initializer.");
+                }
+                resolveLocal(node, ast.a, ast.b);
+            }
+            default -> throw new IllegalStateException("Unexpected expression kind " + ast.kind[node]);
+        }
+    }
+
+    // 把深度和槽位写到节点的两个字段里，全局变量的深度是-1，槽位字段改存变量名的常量下标
+    private void resolveLocal(int node, int[] depthField, int[] slotField) {
+        String name = tokens.lexeme(ast.token[node]);
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).slots.get(name);
+            if (slot != null) {
+                depthField[node] = scopes.size() - 1 - i;
+                slotField[node] = slot;
+                return;
+            }
+        }
+        depthField[node] = NONE;
+        slotField[node] = ast.constant(name);
+    }
+}
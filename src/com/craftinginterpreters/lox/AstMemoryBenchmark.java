@@ -0,0 +1,40 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.List;
+
+/*
+ * 比较同一个脚本解析成Expr/Stmt对象树和解析成FlatAst后各自常驻的堆内存。
+ * 源码是内存映射的，不计入堆；两种情况下解析完成后TokenBuffer都可以丢掉：
+ * 对象树中用到的Token已经单独创建，扁平树自己保留了token的类型和行号两列。
+ * 用法：java -Xmx4g com.craftinginterpreters.lox.AstMemoryBenchmark <script>
+ */
+class AstMemoryBenchmark {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("Usage: AstMemoryBenchmark <script>");
+            System.exit(64);
+        }
+        CharSequence source = MappedSource.load(Paths.get(args[0]), StandardCharsets.UTF_8);
+        long baseline = usedHeap();
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokenBuffer()).parse();
+        long objectTree = usedHeap() - baseline;
+        System.out.printf("object AST: %d top-level statements, %.1f MB%n", statements.size(), objectTree / 1e6);
+        statements = null;
+
+        baseline = usedHeap();
+        FlatAst ast = new ArenaParser(new Scanner(source).scanTokenBuffer()).parse();
+        long flatTree = usedHeap() - baseline;
+        System.out.printf("flat AST:   %d nodes, %.1f MB%n", ast.size(), flatTree / 1e6);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
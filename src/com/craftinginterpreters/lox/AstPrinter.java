@@ -1,15 +1,31 @@
 package com.craftinginterpreters.lox;
 
+import com.craftinginterpreters.lox.Expr.Assign;
 import com.craftinginterpreters.lox.Expr.Binary;
 import com.craftinginterpreters.lox.Expr.Grouping;
 import com.craftinginterpreters.lox.Expr.Literal;
+import com.craftinginterpreters.lox.Expr.Logical;
 import com.craftinginterpreters.lox.Expr.Unary;
+import com.craftinginterpreters.lox.Expr.Variable;
+import com.craftinginterpreters.lox.Stmt.Block;
+import com.craftinginterpreters.lox.Stmt.Expression;
+import com.craftinginterpreters.lox.Stmt.If;
+import com.craftinginterpreters.lox.Stmt.Print;
+import com.craftinginterpreters.lox.Stmt.Var;
+import com.craftinginterpreters.lox.Stmt.While;
 
-public class AstPrinter implements Expr.Visitor<String> {
+/*
+ * 把语法树打印成Lisp风格的括号表达式，--dump-ast 用它输出优化后的语法树
+ */
+public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
 
     @Override
     public String visitBinaryExpr(Binary expr) {
-        
+        // 类型推导证明了操作数类型的运算在运算符后面标出类型
+        if (expr instanceof TypeInference.TypedBinary typed) {
+            String type = typed.type == TypeInference.NUMBER ? ":number" : ":string";
+            return parenthesize(expr.operator.getLexeme() + type, expr.left, expr.right);
+        }
         return parenthesize(expr.operator.getLexeme(), expr.left,expr.right);
     }
 
@@ -21,18 +37,83 @@ public class AstPrinter implements Expr.Visitor<String> {
     @Override
     public String visitLiteralExpr(Literal expr) {
         if(expr.value == null) return "nil";
+        if(expr.value instanceof String) return "\"" + expr.value + "\"";
         return expr.value.toString();
     }
 
+    @Override
+    public String visitLogicalExpr(Logical expr) {
+        return parenthesize(expr.operator.getLexeme(), expr.left, expr.right);
+    }
+
     @Override
     public String visitUnaryExpr(Unary expr) {
+        if (expr instanceof TypeInference.TypedUnary) {
+            return parenthesize(expr.operator.getLexeme() + ":number", expr.right);
+        }
         return parenthesize(expr.operator.getLexeme(),expr.right);
     }
 
+    @Override
+    public String visitVariableExpr(Variable expr) {
+        return expr.name.getLexeme();
+    }
+
+    @Override
+    public String visitAssignExpr(Assign expr) {
+        return parenthesize("= " + expr.name.getLexeme(), expr.value);
+    }
+
     String print(Expr expr){
         return expr.accept(this);
     }
 
+    String print(Stmt stmt){
+        return stmt.accept(this);
+    }
+
+    @Override
+    public String visitBlockStmt(Block stmt) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("(block");
+        for(Stmt statement:LazyBlock.statementsOf(stmt)){
+            sb.append(" ").append(statement.accept(this));
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    @Override
+    public String visitExpressionStmt(Expression stmt) {
+        return parenthesize(";", stmt.expression);
+    }
+
+    @Override
+    public String visitIfStmt(If stmt) {
+        if(stmt.elseBranch == null){
+            return "(if " + print(stmt.condition) + " " + print(stmt.thenBranch) + ")";
+        }
+        return "(if-else " + print(stmt.condition) + " " + print(stmt.thenBranch) + " " + print(stmt.elseBranch) + ")";
+    }
+
+    @Override
+    public String visitPrintStmt(Print stmt) {
+        return parenthesize("print", stmt.expression);
+    }
+
+    @Override
+    public String visitVarStmt(Var stmt) {
+        if(stmt.initializer == null){
+            return "(var " + stmt.name.getLexeme() + ")";
+        }
+        return parenthesize("var " + stmt.name.getLexeme(), stmt.initializer);
+    }
+
+    @Override
+    public String visitWhileStmt(While stmt) {
+        return "(while " + print(stmt.condition) + " " + print(stmt.body) + ")";
+    }
+
     private String parenthesize(String name,Expr... exprs){
         StringBuilder sb = new StringBuilder();
         sb.append("(").append(name);
@@ -0,0 +1,53 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.reflect.Constructor;
+
+/*
+ * Scanner成块跳过空白、注释和字符串内容的快速路径。
+ * 生成的脚本里有大量缩进、//注释和长字符串，逐个charAt地advance()/peek()很慢，
+ * 这里一次比较一整个向量宽度的字符，找到下一个有意义的字符、下一个换行或者闭合的'"'，同时批量统计换行数。
+ *
+ * 实现VectorSkipper依赖孵化中的jdk.incubator.vector模块，放在单独的源码目录src-vector中，
+ * 这里按类名反射加载它，主源码树不需要这个模块就能编译。
+ * 没有编译VectorSkipper、运行时没有 --add-modules jdk.incubator.vector(这时也不会打印孵化模块的警告)、
+ * 或者源码不是MappedSource时，forSource返回null，Scanner继续使用原来的逐字符扫描。
+ */
+interface BlockSkipper {
+    // 从from开始跳过空白(包括换行)，返回第一个非空白字符的下标，没有则返回源码长度
+    int skipWhitespace(int from);
+
+    // 返回from开始的第一个'\n'的下标，没有则返回源码长度
+    int findNewline(int from);
+
+    // 返回from开始的第一个'"'的下标，没有则返回源码长度
+    int findQuote(int from);
+
+    // 上一次skipWhitespace或findQuote越过的换行符个数
+    int newlines();
+
+    static BlockSkipper forSource(CharSequence source) {
+        if (!(source instanceof MappedSource mapped) || Vector.CONSTRUCTOR == null) return null;
+        try {
+            return (BlockSkipper) Vector.CONSTRUCTOR.newInstance(mapped);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    // 第一次用到时查找一次VectorSkipper的构造器，找不到就是null
+    final class Vector {
+        private Vector() {}
+
+        static final Constructor<?> CONSTRUCTOR = find();
+
+        private static Constructor<?> find() {
+            try {
+                Class<?> type = Class.forName("com.craftinginterpreters.lox.VectorSkipper");
+                return type.getDeclaredConstructor(MappedSource.class);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // 没有编译VectorSkipper，或者没有--add-modules jdk.incubator.vector
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * 把错误按报告的顺序缓存起来的ErrorReporter，之后由flush()一起交给Lox。
+ * 每次编译任务(一个分块、一段顶层声明)一个实例；方法是同步的，多个线程共用一个实例也是安全的。
+ */
+final class BufferedErrorReporter implements ErrorReporter {
+    // token为null时是只有行号的错误(扫描器报告的)
+    record Diagnostic(int line, Token token, String message) {}
+
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+
+    @Override
+    public synchronized void error(int line, String message) {
+        diagnostics.add(new Diagnostic(line, null, message));
+    }
+
+    @Override
+    public synchronized void error(Token token, String message) {
+        diagnostics.add(new Diagnostic(token.getLine(), token, message));
+    }
+
+    synchronized List<Diagnostic> diagnostics() {
+        return new ArrayList<>(diagnostics);
+    }
+
+    synchronized boolean hadError() {
+        return !diagnostics.isEmpty();
+    }
+
+    synchronized void flush() {
+        for (Diagnostic diagnostic : diagnostics) {
+            if (diagnostic.token() != null) {
+                Lox.error(diagnostic.token(), diagnostic.message());
+            } else {
+                Lox.error(diagnostic.line(), diagnostic.message());
+            }
+        }
+        diagnostics.clear();
+    }
+}
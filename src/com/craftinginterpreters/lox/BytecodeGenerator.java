@@ -0,0 +1,338 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.ClassFile.Code.*;
+
+/*
+ * 把Expr/Stmt翻译成JVM字节码的公共部分，JvmCompiler(运行时编译热点单元)和AotCompiler(提前编译整个脚本)共用。
+ * 两者只在变量放在哪里上不同：编译单元内部声明的局部变量都放在JVM局部变量中，
+ * 单元外面的变量(全局变量、JIT单元外层的局部变量)由子类决定怎样访问。
+ *
+ * 值和Interpreter一样是标记long，对象引用放在局部变量REF中(相当于Interpreter的ref寄存器)。
+ * 表达式求值后long结果在操作数栈上，对象引用在REF中。运算调用LoxRuntime中的静态方法，它们会被C2内联。
+ * 二元运算先把左操作数存到临时变量再求右操作数，所以操作数栈的深度和表达式的嵌套无关。
+ *
+ * 单元内的局部变量每个占3个局部变量位置：一个long和一个Object。
+ * Lox没有闭包，块结束后没有任何东西能访问它的变量，所以不需要Environment。
+ */
+abstract class BytecodeGenerator implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static final String RUNTIME = "com/craftinginterpreters/lox/LoxRuntime";
+    static final String OBJECT = "java/lang/Object";
+    private static final int MAX_STACK = 16;
+
+    protected final Interpreter interpreter;
+    // REF在局部变量表中的位置，它之前是方法的参数
+    protected final int ref;
+    protected ClassFile.Code code;
+    // 单元内分配了帧的块，每个元素是该块第一个变量在JVM局部变量表中的位置，最内层在最后
+    private final List<Integer> scopes = new ArrayList<>();
+    private final List<Integer> declared = new ArrayList<>();
+    private int nextLocal;
+
+    BytecodeGenerator(Interpreter interpreter, int ref) {
+        this.interpreter = interpreter;
+        this.ref = ref;
+    }
+
+    // 开始生成一个方法体
+    void begin(ClassFile.Code code) {
+        this.code = code;
+        nextLocal = ref + 1;
+        code.maxStack = MAX_STACK;
+        code.maxLocals = nextLocal;
+        // 结果是数字时不写REF，但它会被原样存进变量的引用部分，必须先有一个值才能通过校验
+        code.op(ACONST_NULL);
+        code.local(ASTORE, ref);
+    }
+
+    /*
+     * 单元外面的变量，local为null表示全局变量。
+     * load把值留在栈上、引用放进REF；store的值在局部变量value中，引用在REF中；
+     * define是顶层的var声明，值在局部变量value中、引用在REF中。
+     */
+    abstract void loadExternal(Token name, Interpreter.Local local);
+
+    abstract void storeExternal(Token name, Interpreter.Local local, int value);
+
+    abstract void defineGlobal(Token name, int value);
+
+    // 单元外的局部变量离单元最外层的Environment有几层
+    int outerDistance(Interpreter.Local local) {
+        return local.depth() - scopes.size();
+    }
+
+    int allocate(int size) {
+        int local = nextLocal;
+        nextLocal += size;
+        code.maxLocals = Math.max(code.maxLocals, nextLocal);
+        return local;
+    }
+
+    void evaluate(Expr expr) {
+        expr.accept(this);
+    }
+
+    void execute(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    // 单元内的变量在局部变量表中的位置，单元外的返回-1
+    private int compiledVariable(Interpreter.Local local) {
+        if (local.depth() >= scopes.size()) return -1;
+        return scopes.get(scopes.size() - 1 - local.depth()) + 3 * local.slot();
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        Interpreter.Local local = interpreter.localOf(expr);
+        int variable = local == null ? -1 : compiledVariable(local);
+        if (variable < 0) {
+            loadExternal(expr.name, local);
+            return null;
+        }
+        code.local(ALOAD, variable + 2);
+        code.local(ASTORE, ref);
+        code.local(LLOAD, variable);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        evaluate(expr.value);
+        Interpreter.Local local = interpreter.localOf(expr);
+        int variable = local == null ? -1 : compiledVariable(local);
+        if (variable >= 0) {
+            code.op(DUP2);
+            code.local(LSTORE, variable);
+            code.local(ALOAD, ref);
+            code.local(ASTORE, variable + 2);
+            return null;
+        }
+        int mark = nextLocal;
+        int value = allocate(2);
+        code.local(LSTORE, value);
+        storeExternal(expr.name, local, value);
+        code.local(LLOAD, value);
+        nextLocal = mark;
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        int mark = nextLocal;
+        evaluate(expr.left);
+        int left = allocate(2);
+        int leftRef = allocate(1);
+        code.local(LSTORE, left);
+        code.local(ALOAD, ref);
+        code.local(ASTORE, leftRef);
+        evaluate(expr.right);
+        int right = allocate(2);
+        code.local(LSTORE, right);
+        int line = expr.operator.getLine();
+        boolean numbers = expr instanceof TypeInference.TypedBinary typed && typed.type == TypeInference.NUMBER;
+        switch (expr.operator.getType()) {
+            // TypeInference证明了是两个数字时直接相加
+            case PLUS -> {
+                if (numbers) {
+                    code.local(LLOAD, left);
+                    code.local(LLOAD, right);
+                    code.invoke(INVOKESTATIC, RUNTIME, "addNumbers", "(JJ)J");
+                    break;
+                }
+                ClassFile.Label slow = new ClassFile.Label();
+                ClassFile.Label done = new ClassFile.Label();
+                code.local(LLOAD, left);
+                code.local(LLOAD, right);
+                code.invoke(INVOKESTATIC, RUNTIME, "bothNumbers", "(JJ)Z");
+                code.jump(IFEQ, slow);
+                code.local(LLOAD, left);
+                code.local(LLOAD, right);
+                code.invoke(INVOKESTATIC, RUNTIME, "addNumbers", "(JJ)J");
+                code.jump(GOTO, done);
+                code.mark(slow);
+                code.local(LLOAD, left);
+                code.local(ALOAD, leftRef);
+                code.local(LLOAD, right);
+                code.local(ALOAD, ref);
+                code.pushInt(line);
+                code.invoke(INVOKESTATIC, RUNTIME, "concat", "(JLjava/lang/Object;JLjava/lang/Object;I)Ljava/lang/String;");
+                code.local(ASTORE, ref);
+                code.pushLong(Values.OBJ);
+                code.mark(done);
+            }
+            case EQUAL_EQUAL, BANG_EQUAL -> {
+                code.local(LLOAD, left);
+                code.local(ALOAD, leftRef);
+                code.local(LLOAD, right);
+                code.local(ALOAD, ref);
+                code.invoke(INVOKESTATIC, RUNTIME,
+                        expr.operator.getType() == TokenType.EQUAL_EQUAL ? "equal" : "notEqual",
+                        "(JLjava/lang/Object;JLjava/lang/Object;)J");
+            }
+            default -> {
+                String helper = switch (expr.operator.getType()) {
+                    case MINUS -> "subtract";
+                    case STAR -> "multiply";
+                    case SLASH -> "divide";
+                    case GREATER -> "greater";
+                    case GREATER_EQUAL -> "greaterEqual";
+                    case LESS -> "less";
+                    case LESS_EQUAL -> "lessEqual";
+                    default -> throw new IllegalStateException("Unknown operator " + expr.operator.getType());
+                };
+                code.local(LLOAD, left);
+                code.local(LLOAD, right);
+                code.pushInt(line);
+                code.invoke(INVOKESTATIC, RUNTIME, helper, "(JJI)J");
+            }
+        }
+        nextLocal = mark;
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        evaluate(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof String string) {
+            code.pushString(string);
+            code.local(ASTORE, ref);
+        }
+        code.pushLong(Values.fromObject(expr.value));
+        return null;
+    }
+
+    // 短路时左操作数的值留在栈上作为结果，REF也还是左操作数的引用
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        ClassFile.Label end = new ClassFile.Label();
+        evaluate(expr.left);
+        code.op(DUP2);
+        code.invoke(INVOKESTATIC, RUNTIME, "isTruthy", "(J)Z");
+        code.jump(expr.operator.getType() == TokenType.OR ? IFNE : IFEQ, end);
+        code.op(POP2);
+        evaluate(expr.right);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        evaluate(expr.right);
+        switch (expr.operator.getType()) {
+            case MINUS -> {
+                code.pushInt(expr.operator.getLine());
+                code.invoke(INVOKESTATIC, RUNTIME, "negate", "(JI)J");
+            }
+            case BANG -> code.invoke(INVOKESTATIC, RUNTIME, "not", "(J)J");
+            default -> throw new IllegalStateException("Unknown operator " + expr.operator.getType());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        evaluate(stmt.expression);
+        code.op(POP2);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        evaluate(stmt.expression);
+        code.local(ALOAD, ref);
+        code.invoke(INVOKESTATIC, RUNTIME, "print", "(JLjava/lang/Object;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            code.op(ACONST_NULL);
+            code.local(ASTORE, ref);
+            code.pushLong(Values.NIL);
+        } else {
+            evaluate(stmt.initializer);
+        }
+        // 不在任何分配了帧的块中，是顶层的全局变量声明
+        if (scopes.isEmpty()) {
+            int mark = nextLocal;
+            int value = allocate(2);
+            code.local(LSTORE, value);
+            defineGlobal(stmt.name, value);
+            nextLocal = mark;
+            return null;
+        }
+        int innermost = scopes.size() - 1;
+        int slot = declared.get(innermost);
+        declared.set(innermost, slot + 1);
+        int variable = scopes.get(innermost) + 3 * slot;
+        code.local(LSTORE, variable);
+        code.local(ALOAD, ref);
+        code.local(ASTORE, variable + 2);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // 还没有解析的块没有变量解析结果，无法编译
+        if (stmt instanceof LazyBlock lazy && !lazy.isParsed()) {
+            throw new IllegalStateException("Unparsed block.");
+        }
+        Interpreter.BlockFrame frame = interpreter.frameOf(stmt);
+        if (frame == null) throw new IllegalStateException("Unresolved block.");
+        List<Stmt> statements = LazyBlock.statementsOf(stmt);
+        if (frame.size == 0) {
+            for (Stmt statement : statements) {
+                execute(statement);
+            }
+            return null;
+        }
+        int mark = nextLocal;
+        scopes.add(allocate(3 * frame.size));
+        declared.add(0);
+        for (Stmt statement : statements) {
+            execute(statement);
+        }
+        scopes.remove(scopes.size() - 1);
+        declared.remove(declared.size() - 1);
+        nextLocal = mark;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        ClassFile.Label otherwise = new ClassFile.Label();
+        ClassFile.Label end = new ClassFile.Label();
+        evaluate(stmt.condition);
+        code.invoke(INVOKESTATIC, RUNTIME, "isTruthy", "(J)Z");
+        code.jump(IFEQ, otherwise);
+        execute(stmt.thenBranch);
+        code.jump(GOTO, end);
+        code.mark(otherwise);
+        if (stmt.elseBranch != null) execute(stmt.elseBranch);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        ClassFile.Label top = new ClassFile.Label();
+        ClassFile.Label end = new ClassFile.Label();
+        code.mark(top);
+        evaluate(stmt.condition);
+        code.invoke(INVOKESTATIC, RUNTIME, "isTruthy", "(J)Z");
+        code.jump(IFEQ, end);
+        execute(stmt.body);
+        code.jump(GOTO, top);
+        code.mark(end);
+        return null;
+    }
+}
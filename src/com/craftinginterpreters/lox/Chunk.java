@@ -0,0 +1,93 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * 一段编译好的字节码：指令序列code，每个字节对应的源码行号lines，以及常量池constants。
+ * 常量池里放数字、字符串字面量以及全局变量名，相同的常量只存一份。
+ */
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    private Object[] constantPool;
+    // 常量在Values中的表示，和constantPool一一对应，对象常量的引用还是从constantPool取
+    private long[] constantValues;
+
+    void write(byte b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = b;
+        lines[count] = line;
+        count++;
+    }
+
+    // 返回常量在常量池中的下标，已经存在的常量直接复用
+    int addConstant(Object value) {
+        Integer index = constantIndex.get(value);
+        if (index != null) return index;
+        constants.add(value);
+        constantIndex.put(value, constants.size() - 1);
+        constantPool = null;
+        constantValues = null;
+        return constants.size() - 1;
+    }
+
+    Object[] constants() {
+        if (constantPool == null) {
+            constantPool = constants.toArray();
+        }
+        return constantPool;
+    }
+
+    long[] constantValues() {
+        if (constantValues == null) {
+            Object[] pool = constants();
+            constantValues = new long[pool.length];
+            for (int i = 0; i < pool.length; i++) {
+                constantValues[i] = Values.fromObject(pool[i]);
+            }
+        }
+        return constantValues;
+    }
+
+    String disassemble() {
+        StringBuilder sb = new StringBuilder();
+        Object[] pool = constants();
+        int offset = 0;
+        while (offset < count) {
+            byte op = code[offset];
+            sb.append(String.format("%04d %4d %-14s", offset, lines[offset], OpCode.name(op)));
+            if (OpCode.operandWidth(op) == 2) {
+                int operand = ((code[offset + 1] & 0xff) << 8) | (code[offset + 2] & 0xff);
+                sb.append(' ').append(operand);
+                switch (op) {
+                    case OpCode.CONSTANT:
+                    case OpCode.GET_GLOBAL:
+                    case OpCode.DEFINE_GLOBAL:
+                    case OpCode.SET_GLOBAL:
+                        sb.append(" '").append(Interpreter.stringify(pool[operand])).append('\'');
+                        break;
+                    case OpCode.JUMP:
+                    case OpCode.JUMP_IF_FALSE:
+                        sb.append(" -> ").append(offset + 3 + operand);
+                        break;
+                    case OpCode.LOOP:
+                        sb.append(" -> ").append(offset + 3 - operand);
+                        break;
+                }
+            }
+            sb.append('\n');
+            offset += 1 + OpCode.operandWidth(op);
+        }
+        return sb.toString();
+    }
+}
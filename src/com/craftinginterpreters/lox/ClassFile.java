@@ -0,0 +1,406 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * 最小的JVM class文件生成器，只包含JvmCompiler和AotCompiler需要的部分：常量池、字段、方法和Code属性。
+ * JDK 21中java.lang.classfile还不能用，也不想为此引入ASM。
+ *
+ * 生成的class文件版本是49(Java 5)：这个版本的类由类型推导校验器校验，不需要StackMapTable，
+ * 生成代码时就不用计算每个跳转目标处的栈帧类型。49版本不能使用invokedynamic，这里也用不到。
+ *
+ * 跳转使用两字节的偏移，方法体超过32KB时跳转可能越界，这时抛出IllegalStateException，
+ * 由调用方放弃编译。max_stack不做精确计算，由调用方给出上界。
+ */
+final class ClassFile {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int access;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<Method> methods = new ArrayList<>();
+
+    ClassFile(int access, String name, String superName, String... interfaceNames) {
+        this.access = access;
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+        this.interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    // 常量池，相同的项只写一次
+
+    private int entry(String key, int slots, PoolWriter writer) {
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        try {
+            writer.write(pool);
+        } catch (IOException e) {
+            // writeUTF在字符串超过65535字节时抛出UTFDataFormatException
+            throw new IllegalStateException("Constant too large.", e);
+        }
+        index = poolCount;
+        poolCount += slots;
+        if (poolCount > 0xffff) throw new IllegalStateException("Too many constants.");
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    private interface PoolWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    int utf8(String value) {
+        return entry("U" + value, 1, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return entry("C" + internalName, 1, out -> {
+            out.writeByte(7);
+            out.writeShort(name);
+        });
+    }
+
+    int string(String value) {
+        int utf8 = utf8(value);
+        return entry("S" + value, 1, out -> {
+            out.writeByte(8);
+            out.writeShort(utf8);
+        });
+    }
+
+    int integer(int value) {
+        return entry("I" + value, 1, out -> {
+            out.writeByte(3);
+            out.writeInt(value);
+        });
+    }
+
+    // long和double在常量池中占两项
+    int longConstant(long value) {
+        return entry("J" + value, 2, out -> {
+            out.writeByte(5);
+            out.writeLong(value);
+        });
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int n = utf8(name);
+        int d = utf8(descriptor);
+        return entry("N" + name + ":" + descriptor, 1, out -> {
+            out.writeByte(12);
+            out.writeShort(n);
+            out.writeShort(d);
+        });
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int c = classRef(owner);
+        int nt = nameAndType(name, descriptor);
+        return entry("M" + tag + owner + "." + name + ":" + descriptor, 1, out -> {
+            out.writeByte(tag);
+            out.writeShort(c);
+            out.writeShort(nt);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    void field(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    Code method(int access, String name, String descriptor) {
+        Method method = new Method(access, utf8(name), utf8(descriptor), new Code(this));
+        methods.add(method);
+        return method.code;
+    }
+
+    // 目前用掉的常量池项数和方法数，AotCompiler据此决定什么时候换一个新类
+    int constantCount() {
+        return poolCount;
+    }
+
+    int methodCount() {
+        return methods.size();
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            // Code属性名也要进常量池，先把方法体都结束掉
+            int codeName = utf8("Code");
+            List<byte[]> methodBytes = new ArrayList<>();
+            for (Method method : methods) {
+                methodBytes.add(method.toByteArray(codeName));
+            }
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces) out.writeShort(i);
+            out.writeShort(fields.size());
+            for (byte[] field : fields) out.write(field);
+            out.writeShort(methods.size());
+            for (byte[] method : methodBytes) out.write(method);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private record Method(int access, int name, int descriptor, Code code) {
+        byte[] toByteArray(int codeName) throws IOException {
+            byte[] body = code.finish();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(2 + 2 + 4 + body.length + 2 + 2);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0); // exception_table_length
+            out.writeShort(0); // attributes_count
+            return bytes.toByteArray();
+        }
+    }
+
+    // 跳转目标，可以在定义位置之前被引用，方法结束时回填偏移
+    static final class Label {
+        private int offset = -1;
+    }
+
+    /*
+     * 一个方法的字节码。指令按名字提供需要的几种，局部变量的load/store自动选用短格式。
+     */
+    static final class Code {
+        // 操作码
+        static final int ACONST_NULL = 0x01;
+        static final int ICONST_0 = 0x03;
+        static final int LCONST_0 = 0x09;
+        static final int ILOAD = 0x15;
+        static final int LLOAD = 0x16;
+        static final int ALOAD = 0x19;
+        static final int LALOAD = 0x2f;
+        static final int AALOAD = 0x32;
+        static final int ISTORE = 0x36;
+        static final int LSTORE = 0x37;
+        static final int ASTORE = 0x3a;
+        static final int LASTORE = 0x50;
+        static final int AASTORE = 0x53;
+        static final int POP = 0x57;
+        static final int POP2 = 0x58;
+        static final int DUP = 0x59;
+        static final int DUP2 = 0x5c;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int IF_ACMPNE = 0xa6;
+        static final int GOTO = 0xa7;
+        static final int RETURN = 0xb1;
+        static final int ATHROW = 0xbf;
+        static final int CHECKCAST = 0xc0;
+        static final int IFNULL = 0xc6;
+        static final int IFNONNULL = 0xc7;
+        static final int GETSTATIC = 0xb2;
+        static final int PUTSTATIC = 0xb3;
+        static final int GETFIELD = 0xb4;
+        static final int PUTFIELD = 0xb5;
+        static final int INVOKEVIRTUAL = 0xb6;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+        static final int NEW = 0xbb;
+        static final int ANEWARRAY = 0xbd;
+
+        private final ClassFile owner;
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private final List<int[]> fixups = new ArrayList<>();
+        private final List<Label> fixupLabels = new ArrayList<>();
+        int maxStack = 0;
+        int maxLocals = 0;
+
+        private Code(ClassFile owner) {
+            this.owner = owner;
+        }
+
+        private void u1(int value) {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        // 目前的字节码长度
+        int size() {
+            return length;
+        }
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        // 带常量池下标的指令：字段、方法、类
+        void op(int opcode, int poolIndex) {
+            u1(opcode);
+            u2(poolIndex);
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            op(opcode, this.owner.fieldRef(owner, name, descriptor));
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            op(opcode, this.owner.methodRef(owner, name, descriptor));
+        }
+
+        void type(int opcode, String internalName) {
+            op(opcode, owner.classRef(internalName));
+        }
+
+        void local(int opcode, int index) {
+            maxLocals = Math.max(maxLocals, index + (opcode == LLOAD || opcode == LSTORE ? 2 : 1));
+            if (index <= 3) {
+                // xload_n/xstore_n
+                int base = switch (opcode) {
+                    case ILOAD -> 0x1a;
+                    case LLOAD -> 0x1e;
+                    case ALOAD -> 0x2a;
+                    case ISTORE -> 0x3b;
+                    case LSTORE -> 0x3f;
+                    case ASTORE -> 0x4b;
+                    default -> throw new IllegalArgumentException("Not a local instruction.");
+                };
+                u1(base + index);
+            } else if (index <= 0xff) {
+                u1(opcode);
+                u1(index);
+            } else {
+                u1(0xc4); // wide
+                u1(opcode);
+                u2(index);
+            }
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(0x10); // bipush
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(0x11); // sipush
+                u2(value);
+            } else {
+                ldc(owner.integer(value));
+            }
+        }
+
+        void pushLong(long value) {
+            if (value == 0) {
+                u1(LCONST_0);
+            } else {
+                u1(0x14); // ldc2_w
+                u2(owner.longConstant(value));
+            }
+        }
+
+        void pushString(String value) {
+            ldc(owner.string(value));
+        }
+
+        private void ldc(int index) {
+            if (index <= 0xff) {
+                u1(0x12);
+                u1(index);
+            } else {
+                u1(0x13); // ldc_w
+                u2(index);
+            }
+        }
+
+        void jump(int opcode, Label target) {
+            fixups.add(new int[] { length, length + 1 });
+            fixupLabels.add(target);
+            u1(opcode);
+            u2(0);
+        }
+
+        void mark(Label label) {
+            label.offset = length;
+        }
+
+        private byte[] finish() {
+            for (int i = 0; i < fixups.size(); i++) {
+                int[] fixup = fixups.get(i);
+                Label target = fixupLabels.get(i);
+                if (target.offset < 0) throw new IllegalStateException("Unbound label.");
+                int offset = target.offset - fixup[0];
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Jump offset too large.");
+                }
+                code[fixup[1]] = (byte) (offset >> 8);
+                code[fixup[1] + 1] = (byte) offset;
+            }
+            if (length > 0xffff) throw new IllegalStateException("Method too large.");
+            return Arrays.copyOf(code, length);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * 把语法树编译成字节码(Chunk)，交给VM执行。
+ * 和clox的单遍编译器不同，这里的输入是Parser已经生成好的Stmt/Expr树，所以前端完全复用。
+ * 局部变量直接放在VM的操作数栈上：编译期维护一个locals列表，它和运行时栈上的布局一一对应，
+ * 变量在列表中的下标就是它在栈上的槽位。全局变量依旧按名字存取，名字放在常量池中。
+ * 一个块结束时要把块中声明的局部变量从栈上弹出。
+ */
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_U16 = 0xffff;
+
+    private final Chunk chunk = new Chunk();
+    private final List<String> locals = new ArrayList<>();
+    private final List<Integer> localDepths = new ArrayList<>();
+    private int scopeDepth = 0;
+    // 最近一个见到的token所在的行，字面量之类没有token的节点就用它
+    private int line = 1;
+
+    Chunk compile(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+        emit(OpCode.RETURN);
+        return chunk;
+    }
+
+    private void emit(byte op) {
+        chunk.write(op, line);
+    }
+
+    private void emit(byte op, int operand) {
+        emit(op);
+        emitShort(operand);
+    }
+
+    private void emitShort(int operand) {
+        chunk.write((byte) ((operand >> 8) & 0xff), line);
+        chunk.write((byte) (operand & 0xff), line);
+    }
+
+    private int constant(Object value) {
+        int index = chunk.addConstant(value);
+        if (index > MAX_U16) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    // 写一条带占位偏移的跳转指令，返回偏移所在的位置，等跳转目标确定后再回填
+    private int emitJump(byte op) {
+        emit(op, MAX_U16);
+        return chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        int jump = chunk.count - offset - 2;
+        if (jump > MAX_U16) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP);
+        int offset = chunk.count - loopStart + 2;
+        if (offset > MAX_U16) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    private int resolveLocal(Token name) {
+        for (int i = locals.size() - 1; i >= 0; i--) {
+            if (locals.get(i).equals(name.getLexeme())) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopeDepth++;
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        scopeDepth--;
+        while (!localDepths.isEmpty() && localDepths.get(localDepths.size() - 1) > scopeDepth) {
+            emit(OpCode.POP);
+            locals.remove(locals.size() - 1);
+            localDepths.remove(localDepths.size() - 1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition.accept(this);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        stmt.thenBranch.accept(this);
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emit(OpCode.POP);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        stmt.expression.accept(this);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.getLine();
+        if (stmt.initializer != null) {
+            stmt.initializer.accept(this);
+        } else {
+            emit(OpCode.NIL);
+        }
+        line = stmt.name.getLine();
+        if (scopeDepth == 0) {
+            emit(OpCode.DEFINE_GLOBAL, constant(stmt.name.getLexeme()));
+            return null;
+        }
+        if (locals.size() > MAX_U16) {
+            Lox.error(stmt.name, "Too many local variables.");
+        }
+        // 初始化器的值已经在栈顶了，它就是这个局部变量的存储位置
+        locals.add(stmt.name.getLexeme());
+        localDepths.add(scopeDepth);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk.count;
+        stmt.condition.accept(this);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        stmt.body.accept(this);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        expr.value.accept(this);
+        line = expr.name.getLine();
+        int slot = resolveLocal(expr.name);
+        if (slot != -1) {
+            emit(OpCode.SET_LOCAL, slot);
+        } else {
+            emit(OpCode.SET_GLOBAL, constant(expr.name.getLexeme()));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        line = expr.operator.getLine();
+        switch (expr.operator.getType()) {
+            case PLUS -> emit(OpCode.ADD);
+            case MINUS -> emit(OpCode.SUBTRACT);
+            case STAR -> emit(OpCode.MULTIPLY);
+            case SLASH -> emit(OpCode.DIVIDE);
+            case GREATER -> emit(OpCode.GREATER);
+            case GREATER_EQUAL -> emit(OpCode.GREATER_EQUAL);
+            case LESS -> emit(OpCode.LESS);
+            case LESS_EQUAL -> emit(OpCode.LESS_EQUAL);
+            case EQUAL_EQUAL -> emit(OpCode.EQUAL);
+            case BANG_EQUAL -> {
+                emit(OpCode.EQUAL);
+                emit(OpCode.NOT);
+            }
+            default -> Lox.error(expr.operator, "Unknown binary operator.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL);
+        } else if (expr.value == Boolean.TRUE) {
+            emit(OpCode.TRUE);
+        } else if (expr.value == Boolean.FALSE) {
+            emit(OpCode.FALSE);
+        } else {
+            emit(OpCode.CONSTANT, constant(expr.value));
+        }
+        return null;
+    }
+
+    // and/or 用条件跳转实现短路，跳转时栈顶留着的左操作数就是整个表达式的值
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        expr.left.accept(this);
+        if (expr.operator.getType() == TokenType.AND) {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.POP);
+            expr.right.accept(this);
+            patchJump(endJump);
+        } else {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emit(OpCode.POP);
+            expr.right.accept(this);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+        line = expr.operator.getLine();
+        switch (expr.operator.getType()) {
+            case MINUS -> emit(OpCode.NEGATE);
+            case BANG -> emit(OpCode.NOT);
+            default -> Lox.error(expr.operator, "Unknown unary operator.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.getLine();
+        int slot = resolveLocal(expr.name);
+        if (slot != -1) {
+            emit(OpCode.GET_LOCAL, slot);
+        } else {
+            emit(OpCode.GET_GLOBAL, constant(expr.name.getLexeme()));
+        }
+        return null;
+    }
+}
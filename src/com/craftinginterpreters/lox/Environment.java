@@ -1,43 +1,139 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+/*
+ * 变量存储。
+ * 局部作用域是一个按槽位(slot)索引的数组帧：Resolver在解析阶段已经为每个局部变量算好了
+ * (depth, slot)，运行时只要沿着enclosing走depth步，再直接下标访问，不需要任何字符串哈希。
+ * 局部变量的槽位就是它在所属块中的声明顺序，因为块内语句总是顺序执行，define时追加到数组末尾即可。
+ * 全局作用域无法像局部变量那样分配槽位：REPL每输入一行就单独解析一次，
+ * 全局变量可以在之后任何一行中定义。全局变量按名字的符号编号(见Symbols)存放在数组中，
+ * 访问时是一次数组下标而不是字符串哈希。
+ *
+ * 值使用Values中的标记表示：values数组存long，对象的引用存在并列的refs数组中，数字不需要装箱。
+ * 全局变量数组中存的是可变的Global单元，赋值只修改单元里的字段，也不会装箱。
+ * 重复定义同一个全局变量时复用原来的单元，所以单元一旦存在就一直有效，
+ * 变量引用处可以把找到的单元缓存下来(见GlobalSite)。
+ */
 public class Environment {
-    private final Environment enclosing;
-    private final Map<String,Object> values = new HashMap<>();
+    final Environment enclosing;
+    // 只有全局作用域使用，下标是符号编号，还没有定义的变量是null
+    private Global[] globals;
+    // 只有局部作用域使用
+    long[] values;
+    Object[] refs;
+    private int size = 0;
+    private static final long[] EMPTY_VALUES = new long[0];
+    private static final Object[] EMPTY_REFS = new Object[0];
+    // 节点树求值时的结果寄存器：ExprNode.evaluate返回long，结果是对象时引用放在这里
+    Object ref;
 
-    
+    static final class Global {
+        long value;
+        Object ref;
+
+        Global(long value, Object ref) {
+            this.value = value;
+            this.ref = ref;
+        }
+    }
+
+    /*
+     * 一处全局变量引用的内联缓存：第一次找到单元后记下来，之后直接使用。
+     * 单元在重新定义时被复用、从不删除，缓存不会过期，唯一的检查是还没找到时的null。
+     * 变量还没定义时不缓存，下次访问重新查数组，REPL中之后的输入行定义了它也能找到。
+     */
+    static final class GlobalSite {
+        private final Token name;
+        private Global cell;
+
+        GlobalSite(Token name) {
+            this.name = name;
+        }
+
+        Global cell(Environment globals) {
+            Global global = cell;
+            if (global == null) {
+                global = globals.global(name);
+                cell = global;
+            }
+            return global;
+        }
+    }
 
     Environment() {
         enclosing = null;
+        globals = new Global[Math.max(16, Symbols.count())];
     }
 
     Environment(Environment enclosing){
         this.enclosing = enclosing;
+        globals = null;
+        // 数组在第一次define时才分配，没有声明变量的块不需要存储
+        values = EMPTY_VALUES;
+        refs = EMPTY_REFS;
     }
 
-    void define(Token name,Object value){
-        values.put(name.getLexeme(), value);
+    // 块中声明的变量个数已经由Resolver数出来了，数组一次分配到位，define时不会再扩容
+    Environment(Environment enclosing, int size){
+        this.enclosing = enclosing;
+        globals = null;
+        values = new long[size];
+        refs = new Object[size];
+    }
+
+    // 定义全局变量，重复定义时复用原来的单元
+    void define(Token name, long value, Object ref){
+        int symbol = name.symbol();
+        if (symbol >= globals.length) {
+            globals = Arrays.copyOf(globals, Math.max(globals.length * 2, Symbols.count()));
+        }
+        Global global = globals[symbol];
+        if (global == null) {
+            globals[symbol] = new Global(value, ref);
+        } else {
+            global.value = value;
+            global.ref = ref;
+        }
     }
 
-    Object get(Token name){
-        if(values.containsKey(name.getLexeme())){
-            return values.get(name.getLexeme());
+    // 定义局部变量，槽位是声明顺序
+    void define(long value, Object ref){
+        if(size == values.length){
+            int capacity = size == 0 ? 4 : size * 2;
+            values = Arrays.copyOf(values, capacity);
+            refs = Arrays.copyOf(refs, capacity);
         }
-        if(enclosing != null) return enclosing.get(name);
-        throw new RuntimeError(name,"Undfined variable '"+name.getLexeme()+"'.");
+        values[size] = value;
+        refs[size] = ref;
+        size++;
     }
 
-    void assign(Token name, Object value){
-        if(values.containsKey(name.getLexeme())){
-            values.put(name.getLexeme(), value);
-            return;
+    // 查找全局变量的存储单元，读取和赋值都通过它
+    Global global(Token name){
+        int symbol = name.symbol();
+        Global global = symbol < globals.length ? globals[symbol] : null;
+        if(global == null){
+            throw new RuntimeError(name,"Undefined variable '"+name.getLexeme()+"'.");
         }
-        if(enclosing != null){
-            enclosing.assign(name,value);
-            return;
+        return global;
+    }
+
+    /*
+     * 块退出后帧留给同一个块下次进入时使用(见Interpreter.BlockFrame)：
+     * 槽位从0重新开始define，释放对象引用以免帧闲置时还留着上一次的字符串。
+     */
+    void reset(){
+        Arrays.fill(refs, 0, size, null);
+        size = 0;
+    }
+
+    Environment ancestor(int distance){
+        Environment environment = this;
+        for(int i = 0; i < distance; i++){
+            environment = environment.enclosing;
         }
-        throw new RuntimeError(name,"Undefined variable '"+name.getLexeme()+"'.");
+        return environment;
     }
 }
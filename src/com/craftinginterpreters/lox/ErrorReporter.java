@@ -0,0 +1,25 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * 编译期(扫描、解析)错误的报告方式，也就是Lox.report上面注释里提到的那个抽象。
+ * 默认的LOX直接交给Lox.error打印并设置hadError；
+ * 并行扫描和并行解析时每个任务用自己的BufferedErrorReporter先把错误记下来，
+ * 所有任务完成后再按源码顺序交给Lox，输出的内容和顺序不受线程调度影响。
+ */
+interface ErrorReporter {
+    void error(int line, String message);
+
+    void error(Token token, String message);
+
+    ErrorReporter LOX = new ErrorReporter() {
+        @Override
+        public void error(int line, String message) {
+            Lox.error(line, message);
+        }
+
+        @Override
+        public void error(Token token, String message) {
+            Lox.error(token, message);
+        }
+    };
+}
@@ -0,0 +1,706 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * 可执行的表达式节点。
+ * 由NodeCompiler从Expr树一次性翻译而来：运算符在编译期就选好了对应的节点类，
+ * 变量引用在编译期就确定了是局部(depth, slot)还是全局，分组直接被剥掉。
+ * 运行时每个节点只有一个evaluate方法，子节点直接以字段相连，
+ * 不再经过Visitor的accept/visit两次分派，也不再对TokenType做switch。
+ * frame就是当前作用域的Environment。
+ *
+ * 算术、比较和取负节点是自特化的：NodeCompiler只生成UninitializedBinary/UninitializedNegate，
+ * 它们第一次执行时根据看到的操作数类型把自己替换成特化节点，比如只见过两个double的加法变成AddDouble，
+ * 只见过两个字符串的加法变成Concat。特化节点遇到其他类型时再把自己替换成通用节点(Add、Subtract等)，
+ * 通用节点不会再改写。改写的结果可以用 --dump-nodes 看到。
+ *
+ * evaluate返回Values中的标记值，结果是对象时引用放在frame.ref中。
+ * 所以对第二个子节点求值之前，要先把第一个子节点的frame.ref取到局部变量里。
+ */
+abstract class ExprNode extends Node {
+    abstract long evaluate(Environment frame);
+
+    static final class Constant extends ExprNode {
+        private final long value;
+        private final Object ref;
+
+        Constant(Object value) {
+            this.value = Values.fromObject(value);
+            this.ref = value;
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            frame.ref = ref;
+            return value;
+        }
+
+        @Override
+        String label() {
+            return "Constant " + Values.stringify(value, ref);
+        }
+    }
+
+    static final class LocalGet extends ExprNode {
+        private final int depth;
+        private final int slot;
+
+        LocalGet(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            Environment target = frame.ancestor(depth);
+            frame.ref = target.refs[slot];
+            return target.values[slot];
+        }
+
+        @Override
+        String label() {
+            return "LocalGet depth=" + depth + " slot=" + slot;
+        }
+    }
+
+    static final class GlobalGet extends ExprNode {
+        private final Environment globals;
+        private final Token name;
+        private final Environment.GlobalSite site;
+
+        GlobalGet(Environment globals, Token name) {
+            this.globals = globals;
+            this.name = name;
+            this.site = new Environment.GlobalSite(name);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            Environment.Global global = site.cell(globals);
+            frame.ref = global.ref;
+            return global.value;
+        }
+
+        @Override
+        String label() {
+            return "GlobalGet " + name.getLexeme();
+        }
+    }
+
+    static final class LocalSet extends ExprNode {
+        private final int depth;
+        private final int slot;
+        private ExprNode value;
+
+        LocalSet(int depth, int slot, ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long result = value.evaluate(frame);
+            Environment target = frame.ancestor(depth);
+            target.values[slot] = result;
+            target.refs[slot] = frame.ref;
+            return result;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (value == oldChild) value = (ExprNode) newChild;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[] { value };
+        }
+
+        @Override
+        String label() {
+            return "LocalSet depth=" + depth + " slot=" + slot;
+        }
+    }
+
+    static final class GlobalSet extends ExprNode {
+        private final Environment globals;
+        private final Token name;
+        private final Environment.GlobalSite site;
+        private ExprNode value;
+
+        GlobalSet(Environment globals, Token name, ExprNode value) {
+            this.globals = globals;
+            this.name = name;
+            this.site = new Environment.GlobalSite(name);
+            this.value = adopt(value);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long result = value.evaluate(frame);
+            Environment.Global global = site.cell(globals);
+            global.value = result;
+            global.ref = frame.ref;
+            return result;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (value == oldChild) value = (ExprNode) newChild;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[] { value };
+        }
+
+        @Override
+        String label() {
+            return "GlobalSet " + name.getLexeme();
+        }
+    }
+
+    /*
+     * 二元运算，左右操作数都会先求值再检查类型，和Interpreter的顺序一致。
+     * apply是这个运算在已经求好值的操作数上的完整(通用)语义，改写节点时用它算出本次的结果，
+     * 避免重新对子节点求值造成副作用重复。
+     *
+     * 数字特化的*Double节点故意在自己的evaluate里再写一遍快速路径，而不是调用这里的evaluate：
+     * 共用的evaluate中apply的调用点只有一份类型记录，所有二元节点都经过它，JIT只能把它当成多态调用；
+     * 每个类自己的evaluate里运算是直接写出来的，热循环中测得快约三分之一。
+     * 其他节点调用apply就够了。
+     */
+    abstract static class Binary extends ExprNode {
+        ExprNode left;
+        final Token operator;
+        ExprNode right;
+
+        Binary(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        abstract long apply(Environment frame, long l, Object lRef, long r, Object rRef);
+
+        @Override
+        long evaluate(Environment frame) {
+            long l = left.evaluate(frame);
+            Object lRef = frame.ref;
+            long r = right.evaluate(frame);
+            return apply(frame, l, lRef, r, frame.ref);
+        }
+
+        final void checkNumberOperands(long l, long r) {
+            if (Values.isNumber(l) && Values.isNumber(r)) return;
+            throw new RuntimeError(operator, "Operands must be numbers.");
+        }
+
+        // 特化失败，换成通用节点，并用通用语义算出这一次的结果
+        final long generalize(Environment frame, long l, Object lRef, long r, Object rRef) {
+            return replace(generic(left, operator, right)).apply(frame, l, lRef, r, rRef);
+        }
+
+        @Override
+        final void replaceChild(Node oldChild, Node newChild) {
+            if (left == oldChild) left = (ExprNode) newChild;
+            else if (right == oldChild) right = (ExprNode) newChild;
+        }
+
+        @Override
+        final Node[] children() {
+            return new Node[] { left, right };
+        }
+
+        @Override
+        String label() {
+            return getClass().getSimpleName() + " '" + operator.getLexeme() + "' [line " + operator.getLine() + "]";
+        }
+    }
+
+    static Binary generic(ExprNode left, Token operator, ExprNode right) {
+        return switch (operator.getType()) {
+            case PLUS -> new Add(left, operator, right);
+            case MINUS -> new Subtract(left, operator, right);
+            case STAR -> new Multiply(left, operator, right);
+            case SLASH -> new Divide(left, operator, right);
+            case GREATER -> new Greater(left, operator, right);
+            case GREATER_EQUAL -> new GreaterEqual(left, operator, right);
+            case LESS -> new Less(left, operator, right);
+            case LESS_EQUAL -> new LessEqual(left, operator, right);
+            case EQUAL_EQUAL -> new Equal(left, operator, right);
+            case BANG_EQUAL -> new NotEqual(left, operator, right);
+            default -> throw new IllegalStateException("Unknown binary operator " + operator.getType());
+        };
+    }
+
+    // 还没有执行过的二元运算，第一次执行时根据操作数类型选择特化节点
+    static final class UninitializedBinary extends Binary {
+        UninitializedBinary(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            return replace(specialize(l, lRef, r, rRef)).apply(frame, l, lRef, r, rRef);
+        }
+
+        private Binary specialize(long l, Object lRef, long r, Object rRef) {
+            boolean numbers = Values.isNumber(l) && Values.isNumber(r);
+            return switch (operator.getType()) {
+                case PLUS -> {
+                    if (numbers) yield new AddDouble(left, operator, right);
+                    if (lRef instanceof String && rRef instanceof String
+                            && l == Values.OBJ && r == Values.OBJ) yield new Concat(left, operator, right);
+                    yield new Add(left, operator, right);
+                }
+                case MINUS -> numbers ? new SubtractDouble(left, operator, right) : generic(left, operator, right);
+                case STAR -> numbers ? new MultiplyDouble(left, operator, right) : generic(left, operator, right);
+                case SLASH -> numbers ? new DivideDouble(left, operator, right) : generic(left, operator, right);
+                case GREATER -> numbers ? new GreaterDouble(left, operator, right) : generic(left, operator, right);
+                case GREATER_EQUAL -> numbers ? new GreaterEqualDouble(left, operator, right) : generic(left, operator, right);
+                case LESS -> numbers ? new LessDouble(left, operator, right) : generic(left, operator, right);
+                case LESS_EQUAL -> numbers ? new LessEqualDouble(left, operator, right) : generic(left, operator, right);
+                default -> generic(left, operator, right);
+            };
+        }
+    }
+
+    static final class Add extends Binary {
+        Add(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            if (Values.isNumber(l) && Values.isNumber(r)) {
+                return Values.number(Values.asNumber(l) + Values.asNumber(r));
+            }
+            if (l == Values.OBJ && r == Values.OBJ
+                    && lRef instanceof String lString && rRef instanceof String rString) {
+                frame.ref = lString + rString;
+                return Values.OBJ;
+            }
+            throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+        }
+    }
+
+    static final class Concat extends Binary {
+        Concat(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            if (l == Values.OBJ && r == Values.OBJ
+                    && lRef instanceof String lString && rRef instanceof String rString) {
+                frame.ref = lString + rString;
+                return Values.OBJ;
+            }
+            return generalize(frame, l, lRef, r, rRef);
+        }
+    }
+
+    static final class AddDouble extends Binary {
+        AddDouble(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long l = left.evaluate(frame);
+            Object lRef = frame.ref;
+            long r = right.evaluate(frame);
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.number(Values.asNumber(l) + Values.asNumber(r));
+            return generalize(frame, l, lRef, r, frame.ref);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.number(Values.asNumber(l) + Values.asNumber(r));
+            return generalize(frame, l, lRef, r, rRef);
+        }
+    }
+
+    static final class Subtract extends Binary {
+        Subtract(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            checkNumberOperands(l, r);
+            return Values.number(Values.asNumber(l) - Values.asNumber(r));
+        }
+    }
+
+    static final class SubtractDouble extends Binary {
+        SubtractDouble(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long l = left.evaluate(frame);
+            Object lRef = frame.ref;
+            long r = right.evaluate(frame);
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.number(Values.asNumber(l) - Values.asNumber(r));
+            return generalize(frame, l, lRef, r, frame.ref);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.number(Values.asNumber(l) - Values.asNumber(r));
+            return generalize(frame, l, lRef, r, rRef);
+        }
+    }
+
+    static final class Multiply extends Binary {
+        Multiply(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            checkNumberOperands(l, r);
+            return Values.number(Values.asNumber(l) * Values.asNumber(r));
+        }
+    }
+
+    static final class MultiplyDouble extends Binary {
+        MultiplyDouble(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long l = left.evaluate(frame);
+            Object lRef = frame.ref;
+            long r = right.evaluate(frame);
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.number(Values.asNumber(l) * Values.asNumber(r));
+            return generalize(frame, l, lRef, r, frame.ref);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.number(Values.asNumber(l) * Values.asNumber(r));
+            return generalize(frame, l, lRef, r, rRef);
+        }
+    }
+
+    static final class Divide extends Binary {
+        Divide(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            checkNumberOperands(l, r);
+            return Values.number(Values.asNumber(l) / Values.asNumber(r));
+        }
+    }
+
+    static final class DivideDouble extends Binary {
+        DivideDouble(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long l = left.evaluate(frame);
+            Object lRef = frame.ref;
+            long r = right.evaluate(frame);
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.number(Values.asNumber(l) / Values.asNumber(r));
+            return generalize(frame, l, lRef, r, frame.ref);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.number(Values.asNumber(l) / Values.asNumber(r));
+            return generalize(frame, l, lRef, r, rRef);
+        }
+    }
+
+    static final class Greater extends Binary {
+        Greater(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            checkNumberOperands(l, r);
+            return Values.bool(Values.asNumber(l) > Values.asNumber(r));
+        }
+    }
+
+    static final class GreaterDouble extends Binary {
+        GreaterDouble(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long l = left.evaluate(frame);
+            Object lRef = frame.ref;
+            long r = right.evaluate(frame);
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.bool(Values.asNumber(l) > Values.asNumber(r));
+            return generalize(frame, l, lRef, r, frame.ref);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.bool(Values.asNumber(l) > Values.asNumber(r));
+            return generalize(frame, l, lRef, r, rRef);
+        }
+    }
+
+    static final class GreaterEqual extends Binary {
+        GreaterEqual(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            checkNumberOperands(l, r);
+            return Values.bool(Values.asNumber(l) >= Values.asNumber(r));
+        }
+    }
+
+    static final class GreaterEqualDouble extends Binary {
+        GreaterEqualDouble(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long l = left.evaluate(frame);
+            Object lRef = frame.ref;
+            long r = right.evaluate(frame);
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.bool(Values.asNumber(l) >= Values.asNumber(r));
+            return generalize(frame, l, lRef, r, frame.ref);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.bool(Values.asNumber(l) >= Values.asNumber(r));
+            return generalize(frame, l, lRef, r, rRef);
+        }
+    }
+
+    static final class Less extends Binary {
+        Less(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            checkNumberOperands(l, r);
+            return Values.bool(Values.asNumber(l) < Values.asNumber(r));
+        }
+    }
+
+    static final class LessDouble extends Binary {
+        LessDouble(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long l = left.evaluate(frame);
+            Object lRef = frame.ref;
+            long r = right.evaluate(frame);
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.bool(Values.asNumber(l) < Values.asNumber(r));
+            return generalize(frame, l, lRef, r, frame.ref);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.bool(Values.asNumber(l) < Values.asNumber(r));
+            return generalize(frame, l, lRef, r, rRef);
+        }
+    }
+
+    static final class LessEqual extends Binary {
+        LessEqual(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            checkNumberOperands(l, r);
+            return Values.bool(Values.asNumber(l) <= Values.asNumber(r));
+        }
+    }
+
+    static final class LessEqualDouble extends Binary {
+        LessEqualDouble(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long l = left.evaluate(frame);
+            Object lRef = frame.ref;
+            long r = right.evaluate(frame);
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.bool(Values.asNumber(l) <= Values.asNumber(r));
+            return generalize(frame, l, lRef, r, frame.ref);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            if (Values.isNumber(l) && Values.isNumber(r)) return Values.bool(Values.asNumber(l) <= Values.asNumber(r));
+            return generalize(frame, l, lRef, r, rRef);
+        }
+    }
+
+    static final class Equal extends Binary {
+        Equal(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            return Values.bool(Values.isEqual(l, lRef, r, rRef));
+        }
+    }
+
+    static final class NotEqual extends Binary {
+        NotEqual(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        long apply(Environment frame, long l, Object lRef, long r, Object rRef) {
+            return Values.bool(!Values.isEqual(l, lRef, r, rRef));
+        }
+    }
+
+    abstract static class Logical extends ExprNode {
+        ExprNode left;
+        ExprNode right;
+
+        Logical(ExprNode left, ExprNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        final void replaceChild(Node oldChild, Node newChild) {
+            if (left == oldChild) left = (ExprNode) newChild;
+            else if (right == oldChild) right = (ExprNode) newChild;
+        }
+
+        @Override
+        final Node[] children() {
+            return new Node[] { left, right };
+        }
+    }
+
+    // 左操作数决定结果时直接返回它，frame.ref中还是左操作数的引用
+    static final class And extends Logical {
+        And(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long l = left.evaluate(frame);
+            if (!Values.isTruthy(l)) return l;
+            return right.evaluate(frame);
+        }
+    }
+
+    static final class Or extends Logical {
+        Or(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long l = left.evaluate(frame);
+            if (Values.isTruthy(l)) return l;
+            return right.evaluate(frame);
+        }
+    }
+
+    abstract static class Unary extends ExprNode {
+        final Token operator;
+        ExprNode right;
+
+        Unary(Token operator, ExprNode right) {
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        final void replaceChild(Node oldChild, Node newChild) {
+            if (right == oldChild) right = (ExprNode) newChild;
+        }
+
+        @Override
+        final Node[] children() {
+            return new Node[] { right };
+        }
+
+        @Override
+        String label() {
+            return getClass().getSimpleName() + " '" + operator.getLexeme() + "' [line " + operator.getLine() + "]";
+        }
+    }
+
+    static final class UninitializedNegate extends Unary {
+        UninitializedNegate(Token operator, ExprNode right) {
+            super(operator, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long r = right.evaluate(frame);
+            if (Values.isNumber(r)) {
+                replace(new NegateDouble(operator, right));
+                return Values.number(-Values.asNumber(r));
+            }
+            return replace(new Negate(operator, right)).negate(r);
+        }
+    }
+
+    static final class NegateDouble extends Unary {
+        NegateDouble(Token operator, ExprNode right) {
+            super(operator, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            long r = right.evaluate(frame);
+            if (Values.isNumber(r)) return Values.number(-Values.asNumber(r));
+            return replace(new Negate(operator, right)).negate(r);
+        }
+    }
+
+    static final class Negate extends Unary {
+        Negate(Token operator, ExprNode right) {
+            super(operator, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            return negate(right.evaluate(frame));
+        }
+
+        long negate(long r) {
+            if (Values.isNumber(r)) return Values.number(-Values.asNumber(r));
+            throw new RuntimeError(operator, "Operand must be a number.");
+        }
+    }
+
+    static final class Not extends Unary {
+        Not(Token operator, ExprNode right) {
+            super(operator, right);
+        }
+
+        @Override
+        long evaluate(Environment frame) {
+            return Values.bool(!Values.isTruthy(right.evaluate(frame)));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * 扁平的语法树：所有节点存放在几个并列的基本类型数组里，节点就是数组下标，不再是一个个Expr/Stmt对象。
+ * 每个节点固定占用 kind(1字节) + a、b、c三个int字段 + token下标，没有对象头和指针，也不持有Token对象。
+ * 解析期间通过token下标去TokenBuffer里取词素；解析完成后执行只需要token的类型(操作符)和行号(运行时错误)，
+ * trim()时把这两列复制出来，TokenBuffer本身就可以被回收了。字面量和全局变量名放在常量池中，节点里存常量下标。
+ * 块和程序的语句列表存放在lists数组中连续的一段，节点里存起始位置和个数。
+ *
+ * 各类节点的字段含义(-1表示没有)：
+ *   LITERAL    a=常量下标
+ *   VARIABLE   a=作用域深度(-1是全局) b=局部变量槽位/全局变量名的常量下标    token=变量名
+ *   ASSIGN     a=值 b=作用域深度(-1是全局) c=局部变量槽位/全局变量名的常量下标  token=变量名
+ *   BINARY     a=左操作数 b=右操作数  token=操作符
+ *   LOGICAL    a=左操作数 b=右操作数  token=操作符
+ *   UNARY      a=操作数  token=操作符
+ *   GROUPING   a=内部表达式
+ *   EXPRESSION a=表达式
+ *   PRINT      a=表达式
+ *   VAR        a=初始化表达式 b=局部变量槽位(-1是全局) c=变量名的常量下标  token=变量名
+ *   BLOCK      a=语句列表在lists中的起始位置 b=语句个数 c=块中声明的局部变量个数
+ *   IF         a=条件 b=then分支 c=else分支
+ *   WHILE      a=条件 b=循环体
+ * 作用域深度和槽位由ArenaParser在解析完成后的变量解析pass中填写，含义和Resolver算出的(depth, slot)相同。
+ */
+final class FlatAst {
+    static final byte LITERAL = 0;
+    static final byte VARIABLE = 1;
+    static final byte ASSIGN = 2;
+    static final byte BINARY = 3;
+    static final byte LOGICAL = 4;
+    static final byte UNARY = 5;
+    static final byte GROUPING = 6;
+    static final byte EXPRESSION = 7;
+    static final byte PRINT = 8;
+    static final byte VAR = 9;
+    static final byte BLOCK = 10;
+    static final byte IF = 11;
+    static final byte WHILE = 12;
+
+    // 解析期间使用，trim()之后为null
+    private TokenBuffer tokens;
+    private byte[] tokenTypes;
+    private int[] tokenLines;
+
+    byte[] kind;
+    int[] a;
+    int[] b;
+    int[] c;
+    int[] token;
+    private int size = 0;
+
+    int[] lists = new int[16];
+    private int listSize = 0;
+
+    // 顶层语句在lists中的范围
+    int programStart;
+    int programCount;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    private Object[] constantArray;
+
+    FlatAst(TokenBuffer tokens) {
+        this.tokens = tokens;
+        // 平均每3个token左右一个节点
+        int capacity = Math.max(16, tokens.size() / 3);
+        kind = new byte[capacity];
+        a = new int[capacity];
+        b = new int[capacity];
+        c = new int[capacity];
+        token = new int[capacity];
+    }
+
+    int add(byte nodeKind, int nodeA, int nodeB, int nodeC, int tokenIndex) {
+        if (size == kind.length) {
+            int capacity = size * 2;
+            kind = Arrays.copyOf(kind, capacity);
+            a = Arrays.copyOf(a, capacity);
+            b = Arrays.copyOf(b, capacity);
+            c = Arrays.copyOf(c, capacity);
+            token = Arrays.copyOf(token, capacity);
+        }
+        kind[size] = nodeKind;
+        a[size] = nodeA;
+        b[size] = nodeB;
+        c[size] = nodeC;
+        token[size] = tokenIndex;
+        return size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // 把一组语句节点复制到lists末尾，返回起始位置
+    int addList(int[] nodes, int from, int count) {
+        if (listSize + count > lists.length) {
+            lists = Arrays.copyOf(lists, Math.max(lists.length * 2, listSize + count));
+        }
+        System.arraycopy(nodes, from, lists, listSize, count);
+        int start = listSize;
+        listSize += count;
+        return start;
+    }
+
+    // 相同的常量只保存一份
+    int constant(Object value) {
+        Integer index = constantIndex.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(value, index);
+        }
+        return index;
+    }
+
+    // 解析结束后调用：收紧数组，丢掉构建时用的去重表，只保留token的类型和行号
+    void trim() {
+        tokenTypes = tokens.typeOrdinals();
+        tokenLines = tokens.lineNumbers();
+        tokens = null;
+        kind = Arrays.copyOf(kind, size);
+        a = Arrays.copyOf(a, size);
+        b = Arrays.copyOf(b, size);
+        c = Arrays.copyOf(c, size);
+        token = Arrays.copyOf(token, size);
+        lists = Arrays.copyOf(lists, listSize);
+        constantArray = constants.toArray();
+        constants.clear();
+        constantIndex.clear();
+    }
+
+    Object constantAt(int index) {
+        return constantArray[index];
+    }
+
+    int line(int node) {
+        return tokenLines[token[node]];
+    }
+
+    TokenType tokenType(int node) {
+        return TokenBuffer.typeOf(tokenTypes[token[node]]);
+    }
+}
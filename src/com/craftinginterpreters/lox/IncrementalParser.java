@@ -0,0 +1,419 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * 增量的前端，给编辑器这类每次按键都要重新解析整个缓冲区的场景使用。
+ * 文本按顶层声明分成一段一段(Segment)，每段记下它在文本中的范围、解析出的语句和错误。
+ * 一次编辑(offset, 删除的长度, 插入的文本)只从受影响的第一个声明的开头重新扫描、解析，
+ * 一个声明接一个声明地往后，直到某个新声明的结尾正好落在编辑之后的某个旧声明的结尾上：
+ * 这时扫描器和解析器都处在声明之间的初始状态，后面的文本也没有变，所以后面的声明和原来完全一样，直接复用，
+ * 它们的Stmt对象不变。得到的语句列表和错误与对整个新文本重新解析的结果相同。
+ *
+ * 受影响的第一个声明：结尾(包括结尾处)在编辑位置之后的第一个声明。
+ * Parser解析一个声明时最多会多看一个token(if后面的else、同步时的关键字)，
+ * 所以编辑落在某个声明的第一个token上或者之前时，前一个声明也要重新解析。
+ *
+ * 为了让一次编辑的开销只和编辑本身有关，而不是和文件大小有关，文本和声明列表都用"间隙"的方式存放：
+ * 文本是一个gap buffer，连续在同一个地方打字只需要移动很少的字符；
+ * 声明列表在gap处分成两部分，gap之前的声明位置从文本开头算，行号是绝对的，
+ * gap之后的声明位置从文本末尾算，行号相对于文本末尾的行号(end)，
+ * 所以在gap处编辑时后面的声明不需要逐个平移。每次编辑先把gap移到受影响的第一个声明处。
+ * token的行号是相对于所在声明的Token.LineBase的，声明越过gap时只需要修改base。
+ *
+ * 错误按Lox.error的格式给出，先是所有扫描错误，再是所有解析错误，和一次性扫描、解析整个文件时的输出顺序一致。
+ */
+public final class IncrementalParser {
+    // 一条编译错误，toString()就是Lox打印的那一行
+    public record Diagnostic(int line, String where, String message) {
+        @Override
+        public String toString() {
+            return "[line " + line + "] Error" + where + ": " + message;
+        }
+    }
+
+    /*
+     * 一次编辑的结果。statements是更新后完整的语句列表(下一次编辑之前有效)；
+     * 新文本中[changedStart, changedEnd)这一段被重新扫描和解析过，
+     * 语句列表中从firstStatement开始的removedStatements条语句被换成了insertedStatements条新语句，其余的语句对象都没有变。
+     */
+    public record Update(List<Stmt> statements, int changedStart, int changedEnd,
+                         int firstStatement, int removedStatements, int insertedStatements) {}
+
+    // 扫描错误只有行号，行号相对于base；解析错误带着token
+    private record Problem(Token.LineBase base, int line, Token token, String message) {
+        Diagnostic diagnostic() {
+            if (token == null) return new Diagnostic(base.line() + line, "", message);
+            if (token.getType() == TokenType.EOF) return new Diagnostic(token.getLine(), " at end", message);
+            return new Diagnostic(token.getLine(), " at '" + token.getLexeme() + "'", message);
+        }
+    }
+
+    /*
+     * 一个顶层声明，范围从上一个声明的结尾(包括前面的空白和注释)到自己最后一个token的结尾。
+     * 在gap之后时三个位置都减去了文本长度，base的origin是end。
+     */
+    private static final class Segment {
+        int start;
+        int firstTokenEnd;
+        int end;
+        final Token.LineBase base;
+        // start处的行号，相对于base
+        final int startLine;
+        // 出错的声明是null
+        final Stmt statement;
+        final List<Problem> scanErrors;
+        final List<Problem> parseErrors;
+
+        Segment(int start, int firstTokenEnd, int end, Token.LineBase base, int startLine,
+                Stmt statement, List<Problem> scanErrors, List<Problem> parseErrors) {
+            this.start = start;
+            this.firstTokenEnd = firstTokenEnd;
+            this.end = end;
+            this.base = base;
+            this.startLine = startLine;
+            this.statement = statement;
+            this.scanErrors = scanErrors;
+            this.parseErrors = parseErrors;
+        }
+
+        void move(int offset, int lines, Token.LineBase origin) {
+            start += offset;
+            firstTokenEnd += offset;
+            end += offset;
+            base.line += lines;
+            base.origin = origin;
+        }
+    }
+
+    // gap buffer：[0, gapStart)和[gapEnd, chars.length)是文本
+    private static final class Text implements CharSequence {
+        private char[] chars;
+        private int gapStart;
+        private int gapEnd;
+
+        Text(String source) {
+            chars = new char[source.length() + 64];
+            source.getChars(0, source.length(), chars, 0);
+            gapStart = source.length();
+            gapEnd = chars.length;
+        }
+
+        @Override
+        public int length() {
+            return chars.length - (gapEnd - gapStart);
+        }
+
+        @Override
+        public char charAt(int index) {
+            return index < gapStart ? chars[index] : chars[index + gapEnd - gapStart];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            char[] copy = new char[end - start];
+            for (int i = start; i < end; i++) copy[i - start] = charAt(i);
+            return new String(copy);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+
+        void replace(int offset, int removed, String inserted) {
+            // 先把gap移到offset，删除的字符直接并入gap
+            if (offset < gapStart) {
+                int count = gapStart - offset;
+                System.arraycopy(chars, offset, chars, gapEnd - count, count);
+                gapStart = offset;
+                gapEnd -= count;
+            } else if (offset > gapStart) {
+                int count = offset - gapStart;
+                System.arraycopy(chars, gapEnd, chars, gapStart, count);
+                gapStart = offset;
+                gapEnd += count;
+            }
+            gapEnd += removed;
+            if (inserted.length() > gapEnd - gapStart) {
+                int tail = chars.length - gapEnd;
+                char[] grown = new char[Math.max(chars.length * 2, length() + inserted.length() + 64)];
+                System.arraycopy(chars, 0, grown, 0, gapStart);
+                System.arraycopy(chars, gapEnd, grown, grown.length - tail, tail);
+                gapEnd = grown.length - tail;
+                chars = grown;
+            }
+            inserted.getChars(0, inserted.length(), chars, gapStart);
+            gapStart += inserted.length();
+        }
+    }
+
+    private final Text text;
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Stmt> statements = new ArrayList<>();
+    // segments中[0, gap)的位置和行号是绝对的，[gap, size)的是相对于文本末尾的
+    private int gap = 0;
+    private int statementsBeforeGap = 0;
+    // 文本末尾所在的行号
+    private final Token.LineBase end;
+    // 最后一个声明之后的扫描错误(例如末尾没有闭合的字符串)，base总是相对于end
+    private List<Problem> trailingErrors = new ArrayList<>();
+
+    public IncrementalParser(String source) {
+        text = new Text(source);
+        end = new Token.LineBase(1 + newlines(source, 0, source.length()));
+        reparse(0, 0, 1, 0);
+    }
+
+    public List<Stmt> statements() {
+        return Collections.unmodifiableList(statements);
+    }
+
+    public String source() {
+        return text.toString();
+    }
+
+    // 需要遍历所有声明，只在需要显示错误时调用
+    public List<Diagnostic> diagnostics() {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        for (Segment segment : segments) {
+            for (Problem problem : segment.scanErrors) diagnostics.add(problem.diagnostic());
+        }
+        for (Problem problem : trailingErrors) diagnostics.add(problem.diagnostic());
+        for (Segment segment : segments) {
+            for (Problem problem : segment.parseErrors) diagnostics.add(problem.diagnostic());
+        }
+        return diagnostics;
+    }
+
+    public boolean hadError() {
+        if (!trailingErrors.isEmpty()) return true;
+        for (Segment segment : segments) {
+            if (!segment.scanErrors.isEmpty() || !segment.parseErrors.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    // 把[offset, offset + removed)替换成inserted
+    public Update edit(int offset, int removed, String inserted) {
+        if (offset < 0 || removed < 0 || offset + removed > text.length()) {
+            throw new IndexOutOfBoundsException("Edit [" + offset + ", " + (offset + removed) + ") outside of text of length " + text.length());
+        }
+        int first = firstAffected(offset);
+        moveGap(first);
+        // 从第first个声明的开头开始，它在编辑位置之前，位置和行号都不受这次编辑影响
+        int windowStart = 0;
+        int windowLine = 1;
+        if (first < segments.size()) {
+            Segment segment = segments.get(first);
+            windowStart = segment.start + text.length();
+            windowLine = segment.base.line() + segment.startLine;
+        }
+        // gap之后的声明是相对于文本末尾的，修改文本和末尾的行号之后它们就已经在新的位置上了
+        end.line += newlines(inserted, 0, inserted.length()) - newlines(text, offset, offset + removed);
+        text.replace(offset, removed, inserted);
+        return reparse(first, windowStart, windowLine, offset + inserted.length());
+    }
+
+    private int endOf(int index) {
+        Segment segment = segments.get(index);
+        return index < gap ? segment.end : segment.end + text.length();
+    }
+
+    private int firstAffected(int offset) {
+        int low = 0;
+        int high = segments.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (endOf(middle) < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (low == 0) return low;
+        if (low == segments.size()) return low - 1;
+        int firstTokenEnd = segments.get(low).firstTokenEnd + (low < gap ? 0 : text.length());
+        return offset <= firstTokenEnd ? low - 1 : low;
+    }
+
+    private void moveGap(int index) {
+        int length = text.length();
+        while (gap > index) {
+            gap--;
+            Segment segment = segments.get(gap);
+            segment.move(-length, -end.line, end);
+            if (segment.statement != null) statementsBeforeGap--;
+        }
+        while (gap < index) {
+            Segment segment = segments.get(gap);
+            segment.move(length, end.line, null);
+            if (segment.statement != null) statementsBeforeGap++;
+            gap++;
+        }
+    }
+
+    /*
+     * 从第first个声明(gap处)的开头，也就是文本的windowStart位置、第windowLine行重新解析。
+     * editEnd是插入的文本在新文本中的结尾，只有结尾不早于它的新声明才可能和旧声明对齐。
+     * 新的声明放在gap之前，gap移到它们后面。
+     */
+    private Update reparse(int first, int windowStart, int windowLine, int editEnd) {
+        Window window = new Window(windowStart, windowLine);
+        List<Segment> fresh = new ArrayList<>();
+        int reuseFrom = segments.size();
+        boolean aligned = false;
+        int old = first;
+        while (!window.parser.atEnd()) {
+            Segment segment = window.next();
+            fresh.add(segment);
+            if (segment.end < editEnd) continue;
+            while (old < segments.size() && endOf(old) < segment.end) old++;
+            if (old < segments.size() && endOf(old) == segment.end) {
+                reuseFrom = old + 1;
+                aligned = true;
+                break;
+            }
+        }
+        int changedEnd = fresh.isEmpty() ? windowStart : fresh.get(fresh.size() - 1).end;
+        if (!aligned) {
+            // 一直解析到了文本末尾
+            Token.LineBase base = new Token.LineBase(windowLine - 1 - end.line);
+            base.origin = end;
+            trailingErrors = window.scanErrors(Integer.MAX_VALUE, base);
+            changedEnd = text.length();
+        }
+
+        int removedStatements = 0;
+        for (int i = first; i < reuseFrom; i++) {
+            if (segments.get(i).statement != null) removedStatements++;
+        }
+        List<Stmt> inserted = new ArrayList<>();
+        for (Segment segment : fresh) {
+            if (segment.statement != null) inserted.add(segment.statement);
+        }
+        int firstStatement = statementsBeforeGap;
+        segments.subList(first, reuseFrom).clear();
+        segments.addAll(first, fresh);
+        statements.subList(firstStatement, firstStatement + removedStatements).clear();
+        statements.addAll(firstStatement, inserted);
+        gap = first + fresh.size();
+        statementsBeforeGap += inserted.size();
+        return new Update(statements(), windowStart, changedEnd, firstStatement, removedStatements, inserted.size());
+    }
+
+    private static int newlines(CharSequence chars, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (chars.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+
+    /*
+     * 从文本的start位置开始的一次流式扫描和解析，每次next()产生一个声明。
+     * 扫描器工作在从start开始的视图上，位置和行号都是相对的(行号从1开始)。
+     * Parser会多看一个token，所以扫描出来但还没有归入某个声明的token放在pending里。
+     */
+    private final class Window implements ErrorReporter {
+        private final int start;
+        private final int baseLine;
+        private final Scanner scanner;
+        final Parser parser;
+
+        private final List<Token> pending = new ArrayList<>();
+        private int[] pendingEnds = new int[16];
+        private int[] pendingLines = new int[16];
+        // 还没有归入某个声明的扫描错误，以及报告时扫描器所在的位置
+        private final List<Problem> pendingScanErrors = new ArrayList<>();
+        private int[] scanErrorOffsets = new int[4];
+        // 正在解析的声明的解析错误
+        private List<Problem> parseErrors = new ArrayList<>();
+
+        // 上一个声明的结尾和那里的行号
+        private int boundary = 0;
+        private int boundaryLine = 1;
+
+        Window(int start, int startLine) {
+            this.start = start;
+            this.baseLine = startLine - 1;
+            this.scanner = new Scanner(CharBuffer.wrap(text, start, text.length()), this) {
+                @Override
+                Token nextToken() {
+                    Token token = super.nextToken();
+                    scanned(token, tokenEnd(), line());
+                    return token;
+                }
+            };
+            this.parser = new Parser(scanner, this);
+        }
+
+        private void scanned(Token token, int end, int line) {
+            int index = pending.size();
+            if (index == pendingEnds.length) {
+                pendingEnds = Arrays.copyOf(pendingEnds, index * 2);
+                pendingLines = Arrays.copyOf(pendingLines, index * 2);
+            }
+            pending.add(token);
+            pendingEnds[index] = end;
+            pendingLines[index] = line;
+        }
+
+        @Override
+        public void error(int line, String message) {
+            int index = pendingScanErrors.size();
+            if (index == scanErrorOffsets.length) scanErrorOffsets = Arrays.copyOf(scanErrorOffsets, index * 2);
+            pendingScanErrors.add(new Problem(null, line, null, message));
+            scanErrorOffsets[index] = scanner.tokenStart();
+        }
+
+        @Override
+        public void error(Token token, String message) {
+            parseErrors.add(new Problem(null, 0, token, message));
+        }
+
+        Segment next() {
+            int segmentStart = boundary;
+            int startLine = boundaryLine;
+            parseErrors = new ArrayList<>();
+            Stmt statement = parser.nextDeclaration();
+            Token last = parser.lastConsumed();
+            int index = pending.size() - 1;
+            while (pending.get(index) != last) index--;
+
+            Token.LineBase base = new Token.LineBase(baseLine);
+            // 多看的那个token也先用这个base，它所在的声明解析完时会再换成那个声明的
+            for (Token token : pending) token.rebase(base);
+            int firstTokenEnd = pendingEnds[0];
+            boundary = pendingEnds[index];
+            boundaryLine = pendingLines[index];
+            int remaining = pending.size() - index - 1;
+            System.arraycopy(pendingEnds, index + 1, pendingEnds, 0, remaining);
+            System.arraycopy(pendingLines, index + 1, pendingLines, 0, remaining);
+            pending.subList(0, index + 1).clear();
+
+            List<Problem> scanErrors = scanErrors(boundary, base);
+            return new Segment(start + segmentStart, start + firstTokenEnd, start + boundary, base, startLine,
+                    statement, scanErrors, parseErrors.isEmpty() ? List.of() : parseErrors);
+        }
+
+        // 取出位置在end之前的扫描错误，行号改为相对于base
+        List<Problem> scanErrors(int end, Token.LineBase base) {
+            int count = 0;
+            while (count < pendingScanErrors.size() && scanErrorOffsets[count] < end) count++;
+            if (count == 0) return List.of();
+            List<Problem> errors = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Problem problem = pendingScanErrors.get(i);
+                errors.add(new Problem(base, problem.line(), null, problem.message()));
+            }
+            pendingScanErrors.subList(0, count).clear();
+            System.arraycopy(scanErrorOffsets, count, scanErrorOffsets, 0, pendingScanErrors.size());
+            return errors;
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package com.craftinginterpreters.lox;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.craftinginterpreters.lox.Expr.Assign;
 import com.craftinginterpreters.lox.Expr.Binary;
 import com.craftinginterpreters.lox.Expr.Grouping;
 import com.craftinginterpreters.lox.Expr.Literal;
+import com.craftinginterpreters.lox.Expr.Logical;
 import com.craftinginterpreters.lox.Expr.Unary;
 import com.craftinginterpreters.lox.Expr.Variable;
 import com.craftinginterpreters.lox.Stmt.*;
@@ -13,10 +16,70 @@ import com.craftinginterpreters.lox.Stmt.*;
 
 /*
  * 解释器类，主要的工作，使用visitor模式，后序遍历表达式树，计算表达式的值
+ * 值使用Values中的标记表示：表达式的求值结果放在value/ref这对"寄存器"里，
+ * visitor本身返回Void，这样数字、布尔和nil的结果都不需要装箱。
+ * 对象(字符串)结果的引用放在ref中，只有value == Values.OBJ时ref才有意义，
+ * 所以调用方在对下一个子表达式求值之前要先把ref取出来。
  */
-public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Void>,Stmt.Visitor<Void> {
 
-    private Environment environment = new Environment();
+    private final Environment globals = new Environment();
+    private Environment environment = globals;
+    /*
+     * Resolver对每个变量引用的解析结果：局部变量是Local(depth, slot)，全局变量是带内联缓存的GlobalSite。
+     * 两种放在同一个Map里，访问变量时只查一次。
+     */
+    private final Map<Expr, Object> sites = new HashMap<>();
+    // Resolver对每个块的分析结果
+    private final Map<Stmt.Block, BlockFrame> blocks = new HashMap<>();
+    // --jit 开启时不为null，见JvmCompiler
+    private JvmCompiler jit;
+    // 开启--jit时while循环的执行计数
+    private final Map<Stmt.While, JvmCompiler.Tier> loops = new HashMap<>();
+    // 最近一次求值的结果
+    private long value;
+    private Object ref;
+
+    record Local(int depth, int slot) {}
+
+    /*
+     * 块的帧：大小是块中声明的变量个数，事先分配好。
+     * Lox目前没有函数和闭包，帧不会被块结束后还在运行的代码引用，退出块时把帧重置后留给下一次进入，
+     * 循环体每次迭代都用同一个帧，不再分配。
+     * 只有外层环境和上次相同、并且帧没有正在使用(spare不为null)时才复用，否则分配一个新的，
+     * 以后加入递归调用时这里依然是正确的。
+     * 大小为0的块(没有声明)不分配帧，直接在外层环境中执行。
+     */
+    static final class BlockFrame {
+        final int size;
+        private Environment spare;
+        // --jit 的执行计数
+        final JvmCompiler.Tier tier = new JvmCompiler.Tier();
+
+        BlockFrame(int size) {
+            this.size = size;
+        }
+
+        Environment enter(Environment enclosing) {
+            Environment frame = spare;
+            if (frame == null || frame.enclosing != enclosing) {
+                return new Environment(enclosing, size);
+            }
+            spare = null;
+            return frame;
+        }
+
+        void exit(Environment frame) {
+            frame.reset();
+            spare = frame;
+        }
+    }
+
+
+    // 开启分层执行，热点块和循环编译成JVM字节码
+    void enableJit(){
+        jit = new JvmCompiler(this, globals);
+    }
 
     public void interpret(List<Stmt> statements ){
         try {
@@ -27,7 +90,9 @@ public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
             Lox.runtiemError(error);
         }
     }
-    private String stringify(Object value) {
+
+    // 仍使用Object表示的地方(ArenaInterpreter、常量折叠、反汇编)共用的打印格式
+    static String stringify(Object value) {
         if(value == null) return "nil";
         if(value instanceof Double) {
             String text = Double.toString((Double)value);
@@ -39,109 +104,168 @@ public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
         }
         return value.toString();
     }
+
+    private Void result(long value) {
+        this.value = value;
+        return null;
+    }
+
+    private Void result(Object ref) {
+        this.value = Values.OBJ;
+        this.ref = ref;
+        return null;
+    }
+
+    private Void number(double value) {
+        this.value = Values.number(value);
+        return null;
+    }
+
     @Override
-    public Object visitBinaryExpr(Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-        var value = switch(expr.operator.getType()){
+    public Void visitBinaryExpr(Binary expr) {
+        if (expr instanceof TypeInference.TypedBinary typed) return typedBinary(typed);
+        long left = evaluate(expr.left);
+        Object leftRef = ref;
+        long right = evaluate(expr.right);
+        Object rightRef = ref;
+        return switch(expr.operator.getType()){
             case MINUS -> {
                 checkNumberOperands(expr.operator, left, right);
-                yield ((double) left - (double) right);
+                yield number(Values.asNumber(left) - Values.asNumber(right));
             }
             case SLASH -> {
                 checkNumberOperands(expr.operator, left, right);
-                yield ((double) left / (double) right);
+                yield number(Values.asNumber(left) / Values.asNumber(right));
             }
             case STAR -> {
                 checkNumberOperands(expr.operator, left, right);
-                yield ((double) left / (double) right);
+                yield number(Values.asNumber(left) * Values.asNumber(right));
             }
             case PLUS -> {
-                if (left instanceof Double lDouble && right instanceof Double rDouble) {
-                    yield lDouble + rDouble;
+                if (Values.isNumber(left) && Values.isNumber(right)) {
+                    yield number(Values.asNumber(left) + Values.asNumber(right));
                 }
-                if (left instanceof String lString && right instanceof String rString) {
-                    yield lString + rString;
+                if (left == Values.OBJ && right == Values.OBJ
+                        && leftRef instanceof String lString && rightRef instanceof String rString) {
+                    yield result(lString + rString);
                 }
                 throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
             }
             case GREATER ->{ 
                 checkNumberOperands(expr.operator, left, right);
-                yield ((double) left > (double) right);
+                yield result(Values.bool(Values.asNumber(left) > Values.asNumber(right)));
             }
             case GREATER_EQUAL -> {
                 checkNumberOperands(expr.operator, left, right);
-                yield ((double) left >= (double) right);
+                yield result(Values.bool(Values.asNumber(left) >= Values.asNumber(right)));
             }
             case LESS -> {
                 checkNumberOperands(expr.operator, left, right);
-                yield ((double) left < (double) right);
+                yield result(Values.bool(Values.asNumber(left) < Values.asNumber(right)));
             }
             case LESS_EQUAL -> {
                 checkNumberOperands(expr.operator, left, right);
-                yield ((double) left <= (double) right);
+                yield result(Values.bool(Values.asNumber(left) <= Values.asNumber(right)));
             }
             case BANG_EQUAL -> {
-                yield !isEqual(left, right);
+                yield result(Values.bool(!Values.isEqual(left, leftRef, right, rightRef)));
             }
             case EQUAL_EQUAL -> {
-                yield isEqual(left, right);
+                yield result(Values.bool(Values.isEqual(left, leftRef, right, rightRef)));
             }
-            default -> null;
+            default -> result(Values.NIL);
+        };
+    }
+
+    // TypeInference已经证明了两个操作数的类型，不再检查
+    private Void typedBinary(TypeInference.TypedBinary expr) {
+        long left = evaluate(expr.left);
+        Object leftRef = ref;
+        long right = evaluate(expr.right);
+        if (expr.type == TypeInference.STRING) return result((String) leftRef + (String) ref);
+        double l = Values.asNumber(left);
+        double r = Values.asNumber(right);
+        return switch (expr.operator.getType()) {
+            case PLUS -> number(l + r);
+            case MINUS -> number(l - r);
+            case STAR -> number(l * r);
+            case SLASH -> number(l / r);
+            case GREATER -> result(Values.bool(l > r));
+            case GREATER_EQUAL -> result(Values.bool(l >= r));
+            case LESS -> result(Values.bool(l < r));
+            case LESS_EQUAL -> result(Values.bool(l <= r));
+            default -> throw new IllegalStateException("Unknown operator " + expr.operator.getType());
         };
-        return value;
     }
 
     @Override
-    public Object visitGroupingExpr(Grouping expr) {
-        return evaluate(expr);
+    public Void visitGroupingExpr(Grouping expr) {
+        evaluate(expr.expression);
+        return null;
     }
 
     @Override
-    public Object visitLiteralExpr(Literal expr) {
-        return expr.value;
+    public Void visitLiteralExpr(Literal expr) {
+        value = Values.fromObject(expr.value);
+        ref = expr.value;
+        return null;
+    }
+
+    // 短路求值，返回的是操作数本身的值而不是转换后的true/false
+    @Override
+    public Void visitLogicalExpr(Logical expr) {
+        long left = evaluate(expr.left);
+        if (expr.operator.getType() == TokenType.OR) {
+            if (Values.isTruthy(left)) return null;
+        } else {
+            if (!Values.isTruthy(left)) return null;
+        }
+        evaluate(expr.right);
+        return null;
     }
 
     /* 
      * 
     */
     @Override
-    public Object visitUnaryExpr(Unary expr) {
-        Object right = evaluate(expr);
+    public Void visitUnaryExpr(Unary expr) {
+        long right = evaluate(expr.right);
         return switch (expr.operator.getType()) {
             case MINUS ->  {
-                checkNumberOperand(expr.operator, right);
-                yield -(double)right;
+                if (!(expr instanceof TypeInference.TypedUnary)) checkNumberOperand(expr.operator, right);
+                yield number(-Values.asNumber(right));
             }
-            case BANG ->  !isTruthy(right);
-            case null,default->  null;
+            case BANG ->  result(Values.bool(!Values.isTruthy(right)));
+            case null,default->  result(Values.NIL);
         };
     }
 
-    private Object evaluate(Expr expr){
-        return expr.accept(this);
+    // 求值结果是对象时，引用在this.ref中
+    private long evaluate(Expr expr){
+        expr.accept(this);
+        return value;
     }
 
-    private boolean isTruthy(Object object){
+    static boolean isTruthy(Object object){
         if(object == null) return false;
         if(object instanceof Boolean bool) return bool;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b){
+    static boolean isEqual(Object a, Object b){
         if(a == null && b == null) return true;
         if(a == null) return false;
         return a.equals(b);
     }
 
-    private void checkNumberOperand(Token operator, Object operand){
-        if(operand instanceof Double) return;
+    private void checkNumberOperand(Token operator, long operand){
+        if(Values.isNumber(operand)) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right){
-        if(left instanceof Double && right instanceof Double) return;
-        
+    private void checkNumberOperands(Token operator, long left, long right){
+        if(Values.isNumber(left) && Values.isNumber(right)) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
     }
     @Override
     public Void visitExpressionStmt(Expression stmt) {
@@ -150,38 +274,114 @@ public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
     }
     @Override
     public Void visitPrintStmt(Print stmt) {
-      Object value = evaluate(stmt.expression);
-      System.out.println(stringify(value));
+      long value = evaluate(stmt.expression);
+      System.out.println(Values.stringify(value, ref));
       return null;
     }
 
     @Override
-    public Object visitVariableExpr(Variable expr) {
-        return environment.get(expr.name);
+    public Void visitIfStmt(If stmt) {
+        if (Values.isTruthy(evaluate(stmt.condition))) {
+            execute(stmt.thenBranch);
+        } else if (stmt.elseBranch != null) {
+            execute(stmt.elseBranch);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(While stmt) {
+        JvmCompiler.Tier tier = jit == null ? null : loops.computeIfAbsent(stmt, loop -> new JvmCompiler.Tier());
+        while (true) {
+            // 编译好的循环从条件判断开始接着执行，可以在任何一轮之后切换过去
+            if (tier != null) {
+                JvmCompiler.Compiled code = tier.code;
+                if (code != null) {
+                    code.run(environment);
+                    return null;
+                }
+            }
+            if (!Values.isTruthy(evaluate(stmt.condition))) return null;
+            execute(stmt.body);
+            if (tier != null && tier.tick(JvmCompiler.HOT_LOOP)) jit.compile(tier, stmt);
+        }
+    }
+
+    @Override
+    public Void visitVariableExpr(Variable expr) {
+        Object site = sites.get(expr);
+        if (site instanceof Local local) {
+            Environment frame = environment.ancestor(local.depth());
+            value = frame.values[local.slot()];
+            ref = frame.refs[local.slot()];
+            return null;
+        }
+        Environment.Global global = global(site, expr.name);
+        value = global.value;
+        ref = global.ref;
+        return null;
     }
     @Override
     public Void visitVarStmt(Var stmt) {
-        Object value = null;
+        long value = Values.NIL;
+        Object ref = null;
         if(stmt.initializer != null){
             value = evaluate(stmt.initializer);
+            ref = this.ref;
+        }
+        if (environment == globals) {
+            environment.define(stmt.name, value, ref);
+        } else {
+            environment.define(value, ref);
         }
-        environment.define(stmt.name, value);
         return null;
     }
 
     
 
     @Override
-    public Object visitAssignExpr(Assign expr) {
-        Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
-        return value;
+    public Void visitAssignExpr(Assign expr) {
+        long value = evaluate(expr.value);
+        Object site = sites.get(expr);
+        if (site instanceof Local local) {
+            Environment frame = environment.ancestor(local.depth());
+            frame.values[local.slot()] = value;
+            frame.refs[local.slot()] = ref;
+        } else {
+            Environment.Global global = global(site, expr.name);
+            global.value = value;
+            global.ref = ref;
+        }
+        return null;
     }
 
     
     @Override
     public Void visitBlockStmt(Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        // 延迟的块在这里才解析和变量解析，之后blocks中才有它的记录
+        List<Stmt> statements = LazyBlock.statementsOf(stmt);
+        BlockFrame block = blocks.get(stmt);
+        if (block != null && jit != null) {
+            JvmCompiler.Compiled code = block.tier.code;
+            if (code != null) {
+                code.run(environment);
+                return null;
+            }
+            if (block.tier.tick(JvmCompiler.HOT_BLOCK)) jit.compile(block.tier, stmt);
+        }
+        if (block == null) {
+            // 没有经过Resolver
+            executeBlock(statements, new Environment(environment));
+        } else if (block.size == 0) {
+            // 块中没有声明，直接在当前环境中执行
+            for (Stmt statement : statements) {
+                execute(statement);
+            }
+        } else {
+            Environment frame = block.enter(environment);
+            executeBlock(statements, frame);
+            block.exit(frame);
+        }
         return null;
     }
 
@@ -201,4 +401,42 @@ public class Interpreter implements Expr.Visitor<Object>,Stmt.Visitor<Void> {
     private void execute(Stmt stmt){
         stmt.accept(this);
     }
+
+    // 没有经过Resolver的引用(site为null)直接按名字查
+    private Environment.Global global(Object site, Token name){
+        if (site instanceof Environment.GlobalSite global) return global.cell(globals);
+        return globals.global(name);
+    }
+
+    // Resolver调用，记录变量引用在运行时的位置
+    void resolve(Expr expr, int depth, int slot){
+        sites.put(expr, new Local(depth, slot));
+    }
+
+    // Resolver调用，记录块中直接声明的变量个数
+    void resolveBlock(Stmt.Block block, int declarations){
+        blocks.put(block, new BlockFrame(declarations));
+    }
+
+    // NodeCompiler使用，块没有经过Resolver时返回null
+    BlockFrame frameOf(Stmt.Block block){
+        return blocks.get(block);
+    }
+
+    // Resolver在所有作用域中都没找到这个名字，它是全局变量
+    void resolveGlobal(Expr expr, Token name){
+        sites.put(expr, new Environment.GlobalSite(name));
+    }
+
+    // 流式执行时每条语句执行完就丢掉它的解析结果，避免sites随着文件长度增长
+    void forgetResolved(){
+        sites.clear();
+        blocks.clear();
+        loops.clear();
+    }
+
+    // 其他后端(NodeCompiler)复用Resolver的结果，返回null表示是全局变量
+    Local localOf(Expr expr){
+        return sites.get(expr) instanceof Local local ? local : null;
+    }
 }
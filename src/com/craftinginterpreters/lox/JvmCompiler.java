@@ -0,0 +1,216 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.craftinginterpreters.lox.BytecodeGenerator.OBJECT;
+import static com.craftinginterpreters.lox.ClassFile.Code.*;
+
+/*
+ * 树遍历解释器的第二层：把执行次数多的块和while循环编译成JVM字节码，作为隐藏类(hidden class)加载，
+ * 之后由HotSpot的JIT(C2)像普通Java代码一样优化。--jit 开启，只用于默认的树遍历解释器。
+ *
+ * 计数：Interpreter每次进入一个块、每次执行完while的一轮循环体时给对应的Tier计数，
+ * 达到阈值时调用compile。块编译后下次进入时直接调用编译好的代码；
+ * 循环编译后解释器在当前这一轮结束时就转到编译好的代码，由它从条件判断开始执行剩下的循环(相当于简单的OSR)。
+ * 状态都在Environment和全局单元中，两种执行方式可以在任何语句边界上切换。
+ *
+ * 编译分两步：生成class文件要读Resolver记录在Interpreter中的结果，那些表只能在解释器线程上访问，
+ * 所以在调用compile的线程上进行，这一步只是遍历一遍语法树，开销和解释执行一次差不多；
+ * 定义隐藏类(解析、校验、链接)和创建实例放在后台线程上，完成后写入Tier.code，
+ * 解释器在此之前照常解释执行。编译的任何一步失败(单元中有还没解析的LazyBlock、方法太大、校验失败)
+ * 都只是让这个单元留在解释执行，不再重试。
+ *
+ * 代码由BytecodeGenerator生成，单元内部声明的局部变量放在JVM局部变量中，
+ * 单元外面的局部变量通过传进来的Environment沿enclosing访问，全局变量通过GlobalSite缓存的单元访问。
+ */
+final class JvmCompiler {
+    static final int HOT_BLOCK = 1000;
+    static final int HOT_LOOP = 1000;
+
+    private static final String ENVIRONMENT = "com/craftinginterpreters/lox/Environment";
+    private static final String ENVIRONMENT_DESC = "L" + ENVIRONMENT + ";";
+    private static final String GLOBAL = "com/craftinginterpreters/lox/Environment$Global";
+    private static final String GLOBAL_SITE = "com/craftinginterpreters/lox/Environment$GlobalSite";
+    private static final String GLOBAL_SITE_DESC = "L" + GLOBAL_SITE + ";";
+    private static final String COMPILED = "com/craftinginterpreters/lox/JvmCompiler$Compiled";
+    private static final String CLASS_NAME = "com/craftinginterpreters/lox/JitCode";
+
+    // 编译好的单元，environment是解释器执行到这个单元时的当前环境
+    interface Compiled {
+        void run(Environment environment);
+    }
+
+    // 一个块或者while循环的执行计数和编译结果，code由后台线程写入
+    static final class Tier {
+        private int count = 0;
+        volatile Compiled code;
+
+        // 恰好在达到阈值的那一次返回true
+        boolean tick(int threshold) {
+            return ++count == threshold;
+        }
+    }
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+    private ExecutorService executor;
+
+    JvmCompiler(Interpreter interpreter, Environment globals) {
+        this.interpreter = interpreter;
+        this.globals = globals;
+    }
+
+    // unit是Stmt.Block或者Stmt.While
+    void compile(Tier tier, Stmt unit) {
+        Generator generator = new Generator();
+        byte[] bytes;
+        try {
+            bytes = generator.generate(unit);
+        } catch (RuntimeException e) {
+            // 单元中有无法编译的部分，继续解释执行
+            return;
+        }
+        Object[] constants = generator.constants.toArray();
+        executor().execute(() -> {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+                MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+                        MethodType.methodType(void.class, Object[].class));
+                tier.code = (Compiled) constructor.invoke(constants);
+            } catch (Throwable e) {
+                // 生成的类没有通过校验或者无法加载，单元继续解释执行
+            }
+        });
+    }
+
+    private ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "lox-jit");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /*
+     * 局部变量表：0是this，1是传进来的environment，2是REF，之后分配给单元内的Lox变量和临时值。
+     * 单元外面的局部变量通过environment沿enclosing访问，全局变量通过GlobalSite缓存的单元访问。
+     */
+    private final class Generator extends BytecodeGenerator {
+        private static final int THIS = 0;
+        private static final int ENV = 1;
+
+        private final ClassFile classFile = new ClassFile(ClassFile.ACC_FINAL | ClassFile.ACC_SUPER,
+                CLASS_NAME, OBJECT, COMPILED);
+        // 生成的类的构造函数参数，0是全局作用域，后面是每处全局变量引用的GlobalSite
+        private final List<Object> constants = new ArrayList<>();
+
+        Generator() {
+            super(JvmCompiler.this.interpreter, 2);
+        }
+
+        byte[] generate(Stmt unit) {
+            constants.add(globals);
+            begin(classFile.method(ClassFile.ACC_PUBLIC, "run", "(" + ENVIRONMENT_DESC + ")V"));
+            execute(unit);
+            code.op(RETURN);
+
+            classFile.field(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "globals", ENVIRONMENT_DESC);
+            for (int i = 1; i < constants.size(); i++) {
+                classFile.field(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "g" + i, GLOBAL_SITE_DESC);
+            }
+            ClassFile.Code init = classFile.method(ClassFile.ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V");
+            init.maxStack = 3;
+            init.maxLocals = 2;
+            init.local(ALOAD, 0);
+            init.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+            for (int i = 0; i < constants.size(); i++) {
+                String descriptor = i == 0 ? ENVIRONMENT_DESC : GLOBAL_SITE_DESC;
+                init.local(ALOAD, 0);
+                init.local(ALOAD, 1);
+                init.pushInt(i);
+                init.op(AALOAD);
+                init.type(CHECKCAST, i == 0 ? ENVIRONMENT : GLOBAL_SITE);
+                init.field(PUTFIELD, CLASS_NAME, i == 0 ? "globals" : "g" + i, descriptor);
+            }
+            init.op(RETURN);
+            return classFile.toByteArray();
+        }
+
+        // 单元外面第distance层的Environment
+        private void loadOuter(int distance) {
+            code.local(ALOAD, ENV);
+            for (int i = 0; i < distance; i++) {
+                code.field(GETFIELD, ENVIRONMENT, "enclosing", ENVIRONMENT_DESC);
+            }
+        }
+
+        // 把这处全局变量引用的单元放到栈顶，变量没定义时GlobalSite.cell抛出和解释器相同的错误
+        private void loadGlobalCell(Token name) {
+            constants.add(new Environment.GlobalSite(name));
+            code.local(ALOAD, THIS);
+            code.field(GETFIELD, CLASS_NAME, "g" + (constants.size() - 1), GLOBAL_SITE_DESC);
+            code.local(ALOAD, THIS);
+            code.field(GETFIELD, CLASS_NAME, "globals", ENVIRONMENT_DESC);
+            code.invoke(INVOKEVIRTUAL, GLOBAL_SITE, "cell", "(" + ENVIRONMENT_DESC + ")L" + GLOBAL + ";");
+        }
+
+        @Override
+        void loadExternal(Token name, Interpreter.Local local) {
+            if (local == null) {
+                loadGlobalCell(name);
+                code.op(DUP);
+                code.field(GETFIELD, GLOBAL, "ref", "Ljava/lang/Object;");
+                code.local(ASTORE, ref);
+                code.field(GETFIELD, GLOBAL, "value", "J");
+                return;
+            }
+            loadOuter(outerDistance(local));
+            code.op(DUP);
+            code.field(GETFIELD, ENVIRONMENT, "refs", "[Ljava/lang/Object;");
+            code.pushInt(local.slot());
+            code.op(AALOAD);
+            code.local(ASTORE, ref);
+            code.field(GETFIELD, ENVIRONMENT, "values", "[J");
+            code.pushInt(local.slot());
+            code.op(LALOAD);
+        }
+
+        @Override
+        void storeExternal(Token name, Interpreter.Local local, int value) {
+            if (local == null) {
+                loadGlobalCell(name);
+                code.op(DUP);
+                code.local(LLOAD, value);
+                code.field(PUTFIELD, GLOBAL, "value", "J");
+                code.local(ALOAD, ref);
+                code.field(PUTFIELD, GLOBAL, "ref", "Ljava/lang/Object;");
+                return;
+            }
+            loadOuter(outerDistance(local));
+            code.op(DUP);
+            code.field(GETFIELD, ENVIRONMENT, "values", "[J");
+            code.pushInt(local.slot());
+            code.local(LLOAD, value);
+            code.op(LASTORE);
+            code.field(GETFIELD, ENVIRONMENT, "refs", "[Ljava/lang/Object;");
+            code.pushInt(local.slot());
+            code.local(ALOAD, ref);
+            code.op(AASTORE);
+        }
+
+        // 编译单元是块或者循环，其中的声明一定属于单元里某个分配了帧的块
+        @Override
+        void defineGlobal(Token name, int value) {
+            throw new IllegalStateException("Declaration outside compiled scope.");
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/*
+ * 预解析模式下的块语句：加载时Parser只检查了块的语法，保存的是块内容对应的token范围，
+ * 第一次执行到这个块时才真正解析成语句列表。从来没有执行过的块不会创建任何Expr/Stmt对象，
+ * 也不会经过优化和变量解析。
+ *
+ * 优化、类型推导和变量解析也跟着推迟：Optimizer和TypeInference遇到没有解析的块只做标记，
+ * Resolver保存遇到这个块时外层的作用域，解析完成后再对块的内容补做这几步。
+ * 补做的类型推导不知道块外面变量的类型，其余的结果和立即解析时相同。
+ * 块的内容在加载时已经确认没有语法错误和变量解析错误(见Parser.deferredBlock)，所以补做时不会再报告错误。
+ */
+final class LazyBlock extends Stmt.Block {
+    // 块内容的token范围，解析完成后为null
+    private Parser parser;
+    private boolean optimize = false;
+    private boolean infer = false;
+    private Resolver resolver;
+    private List<Stmt> body;
+
+    LazyBlock(Parser parser) {
+        super(null);
+        this.parser = parser;
+    }
+
+    // 块中的语句，普通的块直接返回，延迟的块第一次调用时解析
+    static List<Stmt> statementsOf(Stmt.Block block) {
+        if (block instanceof LazyBlock lazy) return lazy.statements();
+        return block.statements;
+    }
+
+    boolean isParsed() {
+        return body != null;
+    }
+
+    void optimizeWhenParsed() {
+        optimize = true;
+    }
+
+    void inferWhenParsed() {
+        infer = true;
+    }
+
+    void resolveWhenParsed(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    private List<Stmt> statements() {
+        if (body == null) {
+            List<Stmt> statements = parser.parse();
+            if (optimize) statements = new Optimizer().optimize(statements);
+            if (infer) statements = new TypeInference().inferBlock(statements);
+            if (resolver != null) resolver.resolveBlock(this, statements);
+            parser = null;
+            resolver = null;
+            body = statements;
+        }
+        return body;
+    }
+}
@@ -3,10 +3,17 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 //TODO:shell exit code 查询
 public class Lox {
@@ -15,29 +22,152 @@ public class Lox {
     而com.craftinginterpreters.lox.Lox.report和com.craftinginterpreters.lox.Lox.error方法放在Lox类的
     主要原因也是要设置这个值
      */
-    private static boolean hadError = false;
-    private static boolean hadRuntimeError = false;
+    // 流式多线程模式下由解析线程设置，执行线程读取，所以是volatile的
+    private static volatile boolean hadError = false;
+    private static volatile boolean hadRuntimeError = false;
     private static Interpreter interpreter = new Interpreter();
+    /*
+     * 执行后端，各个后端的输出应当一致：
+     * TREE：默认的树遍历解释器
+     * NODES：--nodes，先把语法树翻译成预先链接好的可执行节点树再执行
+     * VM：--vm，字节码编译器加虚拟机
+     * SSA：--ssa，先翻译成SSA中间表示并优化，再生成字节码交给同一个虚拟机，--dump-ssa 打印中间表示
+     * SEALED：--sealed，翻译成sealed接口和record组成的树，用模式匹配switch分派执行，
+     *   --sealed-visitor 执行同一棵树但用Visitor分派，见SealedInterpreter
+     */
+    private enum Backend { TREE, NODES, VM, SSA, SEALED }
+    private static Backend backend = Backend.TREE;
+    private static boolean dumpBytecode = false;
+    private static boolean dumpNodes = false;
+    private static boolean dumpSsa = false;
+    // 常量折叠、死分支消除和类型推导默认开启，--no-optimize 关闭，--dump-ast 打印最终执行的语法树
+    private static boolean optimize = true;
+    private static boolean dumpAst = false;
+    // 源码编码，默认UTF-8而不是平台默认编码，--encoding=<charset> 指定
+    private static Charset charset = StandardCharsets.UTF_8;
+    /*
+     * 流式执行：--stream 边解析边执行，--stream-threaded 在另一个线程上扫描和解析，
+     * 通过有界队列把语句交给执行线程
+     */
+    private enum Streaming { OFF, INLINE, THREADED }
+    private static Streaming streaming = Streaming.OFF;
+    private static final int STREAM_QUEUE_CAPACITY = 64;
+    // --parallel-scan 把大文件切块后用fork-join并行扫描
+    private static boolean parallelScan = false;
+    // --parallel-parse 把顶层声明分段后并行解析
+    private static boolean parallelParse = false;
+    /*
+     * --lazy 预解析模式：块在加载时只检查语法，第一次执行时才解析，见LazyBlock。
+     * 只用于默认的树遍历解释器，其他后端在执行前就要翻译整棵树，延迟没有意义。
+     */
+    private static boolean lazyBlocks = false;
+    // --jit 分层执行：热点块和循环编译成JVM字节码，见JvmCompiler。同样只用于树遍历解释器
+    private static boolean jit = false;
+    // --arena 解析成扁平的FlatAst并由ArenaInterpreter按下标执行，不经过Expr/Stmt对象
+    private static boolean arena = false;
+    /*
+     * 解析结果的磁盘缓存，见ScriptCache：--cache 写在脚本旁边，--cache-dir=<dir> 写在指定目录。
+     * 流式执行和--arena不经过List<Stmt>，不使用缓存。
+     */
+    private static boolean cache = false;
+    private static Path cacheDir = null;
+    // --compile=<jar> 不执行脚本，而是提前编译成可以直接运行的jar，见AotCompiler
+    private static Path compileTo = null;
+    private static ArenaInterpreter arenaInterpreter = new ArenaInterpreter();
+    private static VM vm = new VM();
+    private static NodeInterpreter nodeInterpreter = new NodeInterpreter(interpreter);
+    private static SealedInterpreter sealedInterpreter;
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage:jlox [script]");
-            System.exit(64);
-            runFile(args[0]);
-        } else if (args.length == 1) {
+        int argIndex = 0;
+        while (argIndex < args.length && args[argIndex].startsWith("--")) {
+            if (args[argIndex].startsWith("--encoding=")) {
+                charset = Charset.forName(args[argIndex].substring("--encoding=".length()));
+                argIndex++;
+                continue;
+            }
+            if (args[argIndex].startsWith("--cache-dir=")) {
+                cache = true;
+                cacheDir = Paths.get(args[argIndex].substring("--cache-dir=".length()));
+                argIndex++;
+                continue;
+            }
+            if (args[argIndex].startsWith("--compile=")) {
+                compileTo = Paths.get(args[argIndex].substring("--compile=".length()));
+                argIndex++;
+                continue;
+            }
+            switch (args[argIndex]) {
+                case "--vm" -> backend = Backend.VM;
+                case "--nodes" -> backend = Backend.NODES;
+                case "--ssa" -> backend = Backend.SSA;
+                case "--sealed" -> {
+                    backend = Backend.SEALED;
+                    sealedInterpreter = SealedInterpreter.create(false);
+                }
+                case "--sealed-visitor" -> {
+                    backend = Backend.SEALED;
+                    sealedInterpreter = SealedInterpreter.create(true);
+                }
+                case "--dump-bytecode" -> dumpBytecode = true;
+                case "--dump-nodes" -> dumpNodes = true;
+                case "--dump-ssa" -> dumpSsa = true;
+                case "--no-optimize" -> optimize = false;
+                case "--dump-ast" -> dumpAst = true;
+                case "--stream" -> streaming = Streaming.INLINE;
+                case "--stream-threaded" -> streaming = Streaming.THREADED;
+                case "--parallel-scan" -> parallelScan = true;
+                case "--parallel-parse" -> parallelParse = true;
+                case "--lazy" -> lazyBlocks = true;
+                case "--jit" -> jit = true;
+                case "--arena" -> arena = true;
+                case "--cache" -> cache = true;
+                default -> usage();
+            }
+            argIndex++;
+        }
+        if (jit && backend == Backend.TREE) interpreter.enableJit();
+        int remaining = args.length - argIndex;
+        if (remaining > 1 || (compileTo != null && remaining == 0)) {
+            usage();
+        } else if (remaining == 1) {
+            runFile(args[argIndex]);
         } else {
             runPrompt();
         }
     }
 
+    private static void usage() {
+        System.out.println("Usage:jlox [--vm|--nodes|--ssa|--sealed|--sealed-visitor] [--no-optimize] [--dump-ast] [--dump-bytecode] [--dump-nodes] [--dump-ssa] [--encoding=<charset>] [--stream|--stream-threaded] [--parallel-scan] [--parallel-parse] [--lazy] [--jit] [--arena] [--cache|--cache-dir=<dir>] [--compile=<jar>] [script]");
+        System.exit(64);
+    }
+
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        if (compileTo != null) {
+            compileFile(Paths.get(path));
+        } else if (streaming != Streaming.OFF) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(path), charset)) {
+                Parser parser = new Parser(new Scanner(new ReaderSource(reader)));
+                if (streaming == Streaming.THREADED) {
+                    runStreamThreaded(parser);
+                } else {
+                    runStream(parser);
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else if (cache && !arena) {
+            runCached(Paths.get(path));
+        } else {
+            //文件被内存映射后直接交给Scanner，不再先读成byte[]再解码成String，堆上不会有两份源码
+            run(MappedSource.load(Paths.get(path), charset));
+        }
         if(hadError) System.exit(65);
         if(hadRuntimeError) System.exit(70);
     }
 
     private static void runPrompt() throws IOException {
-        InputStreamReader inputStreamReader = new InputStreamReader(System.in);
+        InputStreamReader inputStreamReader = new InputStreamReader(System.in, charset);
         BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
         while (true) {
             System.out.println("> ");
@@ -49,14 +179,182 @@ public class Lox {
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+    private static void run(CharSequence source) {
+        if (arena) {
+            runArena(source);
+            return;
+        }
+        List<Stmt> statements = parse(source, lazyBlocks && backend == Backend.TREE);
         if(hadError) return;
-        interpreter.interpret(statements);
-        
+        execute(statements);
+    }
+
+    /*
+     * 缓存命中时不读源码，直接执行还原出的语法树。
+     * 没有命中时正常解析，但不延迟块的解析：缓存要保存完整的语法树。
+     */
+    private static void runCached(Path path) throws IOException {
+        ScriptCache scriptCache = ScriptCache.open(path, cacheDir, charset);
+        List<Stmt> statements = scriptCache.load();
+        if (statements == null) {
+            statements = parse(MappedSource.load(path, charset), false);
+            if(hadError) return;
+            scriptCache.store(statements);
+        }
+        execute(statements);
+    }
+
+    /*
+     * 提前编译：前端和执行时完全一样(包括优化和变量解析)，然后把语法树交给AotCompiler而不是解释器。
+     * 脚本大到无法编译时按运行时错误的退出码退出。
+     */
+    private static void compileFile(Path path) throws IOException {
+        List<Stmt> statements = parse(MappedSource.load(path, charset), false);
+        if(hadError) return;
+        statements = prepare(statements);
+        if(hadError) return;
+        try {
+            new AotCompiler(interpreter).compile(statements, compileTo);
+        } catch (IllegalStateException e) {
+            System.err.println("Cannot compile " + path + ": " + e.getMessage());
+            hadRuntimeError = true;
+        }
+    }
+
+    private static List<Stmt> parse(CharSequence source, boolean deferBlocks) {
+        Parser parser;
+        if (parallelScan) {
+            parser = new Parser(ParallelScanner.scanTokens(source));
+        } else {
+            Scanner scanner = new Scanner(source);
+            parser = new Parser(scanner.scanTokenBuffer());
+        }
+        if (deferBlocks) parser.deferBlocks();
+        return parallelParse ? ParallelParser.parse(parser) : parser.parse();
+    }
+
+    private static void runArena(CharSequence source) {
+        TokenBuffer tokens = new Scanner(source).scanTokenBuffer();
+        FlatAst ast = new ArenaParser(tokens).parse();
+        if(hadError) return;
+        arenaInterpreter.interpret(ast);
+    }
+
+    /*
+     * 流式执行：Parser每解析出一条顶层语句就立即执行，不需要等整个文件解析完，
+     * 执行过的语句随即被丢弃，内存占用只和最大的单条语句有关。
+     * 和普通模式不同，遇到语法错误时前面的语句已经执行过了；之后的语句不再执行，但会继续解析以报告所有语法错误。
+     * 出现运行时错误后就停止。
+     */
+    private static void runStream(Parser parser) {
+        Stmt statement;
+        while ((statement = parser.parseNext()) != null) {
+            if (hadError) continue;
+            executeStreamed(statement);
+            if (hadRuntimeError) return;
+        }
+    }
+
+    private static void executeStreamed(Stmt statement) {
+        execute(List.of(statement));
+        //语句只执行一次，它的变量解析结果不会再用到
+        interpreter.forgetResolved();
+    }
+
+    // 标记队列结束
+    private static final Stmt END_OF_STREAM = new Stmt.Block(new ArrayList<>());
+
+    /*
+     * 和runStream一样，只是扫描和解析放在单独的线程上，通过有界队列把语句交给当前线程执行。
+     * 队列满时解析线程会阻塞，所以内存依然有上界。优化、变量解析和执行都在当前线程进行。
+     * 解析线程先设置hadError再把后续语句放入队列，所以执行线程看到错误之后的语句时一定能看到hadError。
+     */
+    private static void runStreamThreaded(Parser parser) {
+        BlockingQueue<Stmt> queue = new ArrayBlockingQueue<>(STREAM_QUEUE_CAPACITY);
+        RuntimeException[] failure = new RuntimeException[1];
+        Thread producer = new Thread(() -> {
+            try {
+                Stmt statement;
+                while ((statement = parser.parseNext()) != null) {
+                    queue.put(statement);
+                }
+            } catch (RuntimeException e) {
+                failure[0] = e;
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                queue.put(END_OF_STREAM);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "lox-parser");
+        producer.setDaemon(true);
+        producer.start();
+        try {
+            Stmt statement;
+            while ((statement = queue.take()) != END_OF_STREAM) {
+                if (hadError) continue;
+                executeStreamed(statement);
+                if (hadRuntimeError) {
+                    producer.interrupt();
+                    return;
+                }
+            }
+            producer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (failure[0] != null) throw failure[0];
+    }
+
+    private static void execute(List<Stmt> statements) {
+        statements = prepare(statements);
+        //resolver发现错误时也不执行
+        if(hadError) return;
+        switch (backend) {
+            case VM -> {
+                Chunk chunk = new Compiler().compile(statements);
+                if(hadError) return;
+                if (dumpBytecode) System.err.print(chunk.disassemble());
+                vm.interpret(chunk);
+            }
+            case SSA -> {
+                Chunk chunk = new SsaCompiler().compile(statements, optimize, dumpSsa);
+                if(hadError) return;
+                if (dumpBytecode) System.err.print(chunk.disassemble());
+                vm.interpret(chunk);
+            }
+            case NODES -> nodeInterpreter.interpret(statements, dumpNodes);
+            case SEALED -> sealedInterpreter.interpret(statements, interpreter);
+            case TREE -> interpreter.interpret(statements);
+        }
+
+    }
+
+    // 执行或编译之前的优化和变量解析
+    private static List<Stmt> prepare(List<Stmt> statements) {
+        if (optimize) {
+            Optimizer optimizer = new Optimizer();
+            List<Stmt> optimized = optimizer.optimize(statements);
+            // 死分支里的静态错误也要和不优化时一样报告，所以在删分支之前的树上检查，有错误就不再往下走
+            if (optimizer.pruned()) {
+                Resolver.check(statements);
+                if (hadError) return optimized;
+            }
+            statements = new TypeInference().infer(optimized);
+        }
+        if (dumpAst) {
+            AstPrinter printer = new AstPrinter();
+            for (Stmt statement : statements) {
+                System.err.println(printer.print(statement));
+            }
+        }
+
+        Resolver resolver = new Resolver(interpreter);
+        resolver.resolve(statements);
+        return statements;
     }
 
     public static void error(int line, String message) {
@@ -72,7 +370,7 @@ public class Lox {
     }
 
     public static void runtiemError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.getToken().getLine() + "]");
+        LoxRuntime.report(error);
         hadRuntimeError = true; //标记为true，当从文件读取脚本时，如果判断出现错误，就退出代码。
     }
     /*
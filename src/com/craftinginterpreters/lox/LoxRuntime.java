@@ -0,0 +1,125 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+/*
+ * 编译成JVM字节码的Lox代码调用的运行时函数，值的表示和Interpreter一样是Values中的标记long，
+ * 对象的引用单独传递。语义、打印格式和错误信息都和Interpreter一致。
+ *
+ * 这些方法都很小，生成的代码直接invokestatic调用，由C2内联，不需要在字节码里展开类型检查。
+ * 运行时错误只带行号：生成代码的时候就把token的行号作为常量写进去了，运行时不需要token。
+ *
+ * AotCompiler生成的jar只带上这个类、Values和RuntimeError，不包含扫描器、解析器和解释器。
+ */
+final class LoxRuntime {
+    private LoxRuntime() {}
+
+    static long negate(long value, int line) {
+        if (!Values.isNumber(value)) throw new RuntimeError(line, "Operand must be a number.");
+        return Values.number(-Values.asNumber(value));
+    }
+
+    static long not(long value) {
+        return Values.bool(!Values.isTruthy(value));
+    }
+
+    static boolean isTruthy(long value) {
+        return Values.isTruthy(value);
+    }
+
+    static boolean bothNumbers(long left, long right) {
+        return Values.isNumber(left) && Values.isNumber(right);
+    }
+
+    static long addNumbers(long left, long right) {
+        return Values.number(Values.asNumber(left) + Values.asNumber(right));
+    }
+
+    // 加法中不是两个数字的情况，只有两个字符串可以相加，结果是对象
+    static String concat(long left, Object leftRef, long right, Object rightRef, int line) {
+        if (left == Values.OBJ && right == Values.OBJ
+                && leftRef instanceof String lString && rightRef instanceof String rString) {
+            return lString + rString;
+        }
+        throw new RuntimeError(line, "Operands must be two numbers or two strings.");
+    }
+
+    static long subtract(long left, long right, int line) {
+        checkNumbers(left, right, line);
+        return Values.number(Values.asNumber(left) - Values.asNumber(right));
+    }
+
+    static long multiply(long left, long right, int line) {
+        checkNumbers(left, right, line);
+        return Values.number(Values.asNumber(left) * Values.asNumber(right));
+    }
+
+    static long divide(long left, long right, int line) {
+        checkNumbers(left, right, line);
+        return Values.number(Values.asNumber(left) / Values.asNumber(right));
+    }
+
+    static long greater(long left, long right, int line) {
+        checkNumbers(left, right, line);
+        return Values.bool(Values.asNumber(left) > Values.asNumber(right));
+    }
+
+    static long greaterEqual(long left, long right, int line) {
+        checkNumbers(left, right, line);
+        return Values.bool(Values.asNumber(left) >= Values.asNumber(right));
+    }
+
+    static long less(long left, long right, int line) {
+        checkNumbers(left, right, line);
+        return Values.bool(Values.asNumber(left) < Values.asNumber(right));
+    }
+
+    static long lessEqual(long left, long right, int line) {
+        checkNumbers(left, right, line);
+        return Values.bool(Values.asNumber(left) <= Values.asNumber(right));
+    }
+
+    static long equal(long left, Object leftRef, long right, Object rightRef) {
+        return Values.bool(Values.isEqual(left, leftRef, right, rightRef));
+    }
+
+    static long notEqual(long left, Object leftRef, long right, Object rightRef) {
+        return Values.bool(!Values.isEqual(left, leftRef, right, rightRef));
+    }
+
+    static void print(long value, Object ref) {
+        System.out.println(Values.stringify(value, ref));
+    }
+
+    // AOT编译的全局变量，每个元素一开始都是UNDEFINED
+    static long[] globalValues(int count) {
+        long[] values = new long[count];
+        Arrays.fill(values, Values.UNDEFINED);
+        return values;
+    }
+
+    // 读写可能还没有定义的全局变量时检查，错误和Environment中的一致
+    static long defined(long value, String name, int line) {
+        if (value == Values.UNDEFINED) throw new RuntimeError(line, "Undefined variable '" + name + "'.");
+        return value;
+    }
+
+    // AOT编译的脚本的入口，运行时错误的报告方式和退出码与jlox执行脚本时相同
+    static void execute(Runnable script) {
+        try {
+            script.run();
+        } catch (RuntimeError error) {
+            report(error);
+            System.exit(70);
+        }
+    }
+
+    static void report(RuntimeError error) {
+        System.err.println(error.getMessage() + "\n[line " + error.getLine() + "]");
+    }
+
+    private static void checkNumbers(long left, long right, int line) {
+        if (Values.isNumber(left) && Values.isNumber(right)) return;
+        throw new RuntimeError(line, "Operands must be numbers.");
+    }
+}
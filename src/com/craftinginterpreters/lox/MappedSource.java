@@ -0,0 +1,96 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * 内存映射的源码文件，作为CharSequence交给Scanner，整个文件不会被复制到堆上。
+ *
+ * 注意这里的下标是字节偏移，charAt返回的是那个字节本身(0-255)。这对Scanner来说是足够的：
+ * Lox中所有有意义的字符(运算符、数字、标识符、引号、换行)都是ASCII，
+ * 而UTF-8和ISO-8859-1这类与ASCII兼容的编码中，多字节字符的每个字节都不会落在ASCII范围内，
+ * 所以按字节扫描不会把非ASCII字符误认成token，它们只会出现在字符串和注释里。
+ * 真正需要文本的时候(词素、字符串字面量的值)，subSequence(...).toString()才用指定的编码解码那一小段字节。
+ * 其他编码(例如UTF-16)不满足这个前提，load会退回到解码成CharBuffer。
+ */
+final class MappedSource implements CharSequence {
+    private final ByteBuffer buffer;
+    private final Charset charset;
+    private final int offset;
+    private final int length;
+
+    private MappedSource(ByteBuffer buffer, Charset charset, int offset, int length) {
+        this.buffer = buffer;
+        this.charset = charset;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    static CharSequence load(Path path, Charset charset) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Script too large to map: " + path);
+            }
+            // 映射在channel关闭后依然有效
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (!isAsciiCompatible(charset)) {
+            return charset.decode(buffer);
+        }
+        int start = 0;
+        if (charset.equals(StandardCharsets.UTF_8) && hasUtf8Bom(buffer)) {
+            start = 3;
+        }
+        return new MappedSource(buffer, charset, start, buffer.limit() - start);
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8)
+                || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean hasUtf8Bom(ByteBuffer buffer) {
+        return buffer.limit() >= 3
+                && buffer.get(0) == (byte) 0xEF
+                && buffer.get(1) == (byte) 0xBB
+                && buffer.get(2) == (byte) 0xBF;
+    }
+
+    // UTF-8多字节字符的后续字节，Scanner报告非法字符时用来跳过整个字符
+    static boolean isContinuation(char c) {
+        return c >= 0x80 && c <= 0xBF;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buffer.get(offset + index) & 0xff);
+    }
+
+    // 把[index, index + length)的字节复制到dst开头，给VectorSkipper成块读取
+    void copyTo(int index, byte[] dst, int length) {
+        buffer.get(offset + index, dst, 0, length);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new MappedSource(buffer, charset, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return charset.decode(buffer.slice(offset, length)).toString();
+    }
+}
@@ -0,0 +1,50 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * ExprNode和StmtNode的公共父类，提供节点树的改写能力。
+ * 每个节点都记着自己的父节点，节点可以在运行时用replace把自己在父节点中的位置换成另一个节点，
+ * 后续执行就直接走新节点。特化节点(例如只见过double的加法)就是靠这个机制把自己装进树里的。
+ */
+abstract class Node {
+    Node parent;
+
+    // 建立父子关系，构造节点时对每个子节点调用
+    final <T extends Node> T adopt(T child) {
+        if (child != null) child.parent = this;
+        return child;
+    }
+
+    // 用replacement替换自己，返回replacement方便调用方接着用它求值
+    final <T extends Node> T replace(T replacement) {
+        parent.replaceChild(this, replacement);
+        replacement.parent = parent;
+        return replacement;
+    }
+
+    // 有可被替换的子节点的节点需要覆盖这个方法
+    void replaceChild(Node oldChild, Node newChild) {
+        throw new IllegalStateException(getClass().getSimpleName() + " has no replaceable children.");
+    }
+
+    Node[] children() {
+        return new Node[0];
+    }
+
+    // 调试输出时显示的节点描述，默认是类名，特化后的类名可以直接看出改写的结果
+    String label() {
+        return getClass().getSimpleName();
+    }
+
+    String dump() {
+        StringBuilder sb = new StringBuilder();
+        dump(sb, 0);
+        return sb.toString();
+    }
+
+    private void dump(StringBuilder sb, int indent) {
+        sb.append("  ".repeat(indent)).append(label()).append('\n');
+        for (Node child : children()) {
+            if (child != null) child.dump(sb, indent + 1);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/*
+ * 把Parser生成的Stmt/Expr树翻译成可直接执行的StmtNode/ExprNode树。
+ * 这里是唯一一次对语法树做Visitor分派，之后每次执行都只是沿着节点字段调用evaluate/execute。
+ * 二元运算生成的是UninitializedBinary，由它在第一次执行时特化，见ExprNode。
+ * 变量的(depth, slot)和块的帧大小来自Resolver记录在Interpreter中的结果，
+ * 没有声明变量的块翻译成不创建帧的Sequence。
+ */
+class NodeCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private final Interpreter resolved;
+    private final Environment globals;
+    // 变量声明在全局作用域还是块中，翻译时就已经知道了，不需要运行时再判断
+    private int blockDepth = 0;
+
+    NodeCompiler(Interpreter resolved, Environment globals) {
+        this.resolved = resolved;
+        this.globals = globals;
+    }
+
+    StmtNode[] compile(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = statements.get(i).accept(this);
+        }
+        return nodes;
+    }
+
+    private ExprNode compile(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        blockDepth++;
+        StmtNode[] body = compile(stmt.statements);
+        blockDepth--;
+        Interpreter.BlockFrame frame = resolved.frameOf(stmt);
+        if (frame == null) return new StmtNode.Block(body, 0);
+        if (frame.size == 0) return new StmtNode.Sequence(body);
+        return new StmtNode.Block(body, frame.size);
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new StmtNode.Expression(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        return new StmtNode.If(compile(stmt.condition), stmt.thenBranch.accept(this),
+                stmt.elseBranch == null ? null : stmt.elseBranch.accept(this));
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        return new StmtNode.Print(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        if (blockDepth == 0) {
+            return new StmtNode.DefineGlobal(globals, stmt.name, compile(stmt.initializer));
+        }
+        return new StmtNode.DefineLocal(compile(stmt.initializer));
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        return new StmtNode.While(compile(stmt.condition), stmt.body.accept(this));
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        ExprNode value = compile(expr.value);
+        Interpreter.Local local = resolved.localOf(expr);
+        if (local != null) {
+            return new ExprNode.LocalSet(local.depth(), local.slot(), value);
+        }
+        return new ExprNode.GlobalSet(globals, expr.name, value);
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        Token operator = expr.operator;
+        // 具体是哪种运算节点留到第一次执行时根据操作数类型决定
+        return new ExprNode.UninitializedBinary(left, operator, right);
+    }
+
+    // 分组只影响解析时的结合，执行时没有意义
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        return new ExprNode.Constant(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        if (expr.operator.getType() == TokenType.OR) {
+            return new ExprNode.Or(left, right);
+        }
+        return new ExprNode.And(left, right);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        ExprNode right = compile(expr.right);
+        return switch (expr.operator.getType()) {
+            case MINUS -> new ExprNode.UninitializedNegate(expr.operator, right);
+            case BANG -> new ExprNode.Not(expr.operator, right);
+            default -> throw new IllegalStateException("Unknown unary operator " + expr.operator.getType());
+        };
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        Interpreter.Local local = resolved.localOf(expr);
+        if (local != null) {
+            return new ExprNode.LocalGet(local.depth(), local.slot());
+        }
+        return new ExprNode.GlobalGet(globals, expr.name);
+    }
+}
@@ -0,0 +1,37 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/*
+ * 以NodeCompiler翻译出的节点树作为执行方式的后端。
+ * 全局作用域在REPL的多次输入之间保留。
+ */
+class NodeInterpreter {
+    private final Environment globals = new Environment();
+    // Resolver把变量解析结果记录在Interpreter里
+    private final Interpreter resolved;
+
+    NodeInterpreter(Interpreter resolved) {
+        this.resolved = resolved;
+    }
+
+    /*
+     * dumpNodes为true时，执行结束后把节点树打印到stderr。
+     * 因为节点在执行中会改写自己，这时打印出来的就是特化之后的样子。
+     */
+    void interpret(List<Stmt> statements, boolean dumpNodes) {
+        StmtNode[] program = new NodeCompiler(resolved, globals).compile(statements);
+        try {
+            for (StmtNode node : program) {
+                node.execute(globals);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtiemError(error);
+        }
+        if (dumpNodes) {
+            for (StmtNode node : program) {
+                System.err.print(node.dump());
+            }
+        }
+    }
+}
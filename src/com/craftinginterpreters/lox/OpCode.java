@@ -0,0 +1,68 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * 字节码虚拟机的指令集。
+ * 每条指令是一个字节的操作码，后面跟着0个或多个字节的操作数。
+ * 常量下标、局部变量槽位以及跳转偏移都是两个字节(大端序)。
+ * 没有用enum，因为虚拟机的分派循环直接对byte做switch，省掉ordinal到enum的转换。
+ */
+final class OpCode {
+    private OpCode() {}
+
+    static final byte CONSTANT = 0;       // u16 常量池下标
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;      // u16 栈槽位
+    static final byte SET_LOCAL = 6;      // u16 栈槽位
+    static final byte GET_GLOBAL = 7;     // u16 变量名的常量池下标
+    static final byte DEFINE_GLOBAL = 8;  // u16 变量名的常量池下标
+    static final byte SET_GLOBAL = 9;     // u16 变量名的常量池下标
+    static final byte EQUAL = 10;
+    static final byte GREATER = 11;
+    static final byte GREATER_EQUAL = 12;
+    static final byte LESS = 13;
+    static final byte LESS_EQUAL = 14;
+    static final byte ADD = 15;
+    static final byte SUBTRACT = 16;
+    static final byte MULTIPLY = 17;
+    static final byte DIVIDE = 18;
+    static final byte NOT = 19;
+    static final byte NEGATE = 20;
+    static final byte PRINT = 21;
+    static final byte JUMP = 22;          // u16 向前跳转的偏移
+    static final byte JUMP_IF_FALSE = 23; // u16 向前跳转的偏移，不弹出条件
+    static final byte LOOP = 24;          // u16 向后跳转的偏移
+    static final byte RETURN = 25;
+
+    private static final String[] NAMES = {
+        "CONSTANT", "NIL", "TRUE", "FALSE", "POP",
+        "GET_LOCAL", "SET_LOCAL", "GET_GLOBAL", "DEFINE_GLOBAL", "SET_GLOBAL",
+        "EQUAL", "GREATER", "GREATER_EQUAL", "LESS", "LESS_EQUAL",
+        "ADD", "SUBTRACT", "MULTIPLY", "DIVIDE", "NOT", "NEGATE",
+        "PRINT", "JUMP", "JUMP_IF_FALSE", "LOOP", "RETURN"
+    };
+
+    static String name(byte op) {
+        return NAMES[op];
+    }
+
+    // 操作数的字节数，反汇编时用
+    static int operandWidth(byte op) {
+        switch (op) {
+            case CONSTANT:
+            case GET_LOCAL:
+            case SET_LOCAL:
+            case GET_GLOBAL:
+            case DEFINE_GLOBAL:
+            case SET_GLOBAL:
+            case JUMP:
+            case JUMP_IF_FALSE:
+            case LOOP:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+}
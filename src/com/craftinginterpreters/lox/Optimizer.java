@@ -0,0 +1,177 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * 在Parser.parse()之后、Resolver之前运行的优化pass，返回一棵新的语法树：
+ * 1.常量折叠：操作数都是字面量的一元/二元表达式直接在编译期算出结果，自底向上进行，
+ *   所以 (60 * 60) * 24 会变成一个字面量。
+ * 2.去掉分组：Grouping只影响解析时的结合，解析完成后就没有用了。
+ * 3.逻辑表达式左操作数是字面量时，直接选出结果(and/or返回的是操作数本身)。
+ * 4.死分支消除：条件是字面量的if只保留会执行的分支，条件为假的while整个删掉。
+ *
+ * 折叠必须保持Lox的语义：如果字面量的类型会在运行时报错(例如 1 + "a" 或者 -"x")，
+ * 就不折叠，保留原来的表达式，让错误照常在运行时以同样的行号报告出来。
+ * 被删掉的语句用null表示，块和顶层语句列表中直接去掉，必须有语句的位置(if分支、循环体)换成空块。
+ * 删掉分支(if/while/and/or)时记下pruned：被删掉的代码里的静态错误Resolver看不到了，
+ * 需要在原来的树上另外检查，见Lox.prepare。
+ */
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private boolean pruned = false;
+
+    boolean pruned() {
+        return pruned;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            Stmt optimized = statement.accept(this);
+            if (optimized != null) result.add(optimized);
+        }
+        return result;
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    private Stmt optimizeRequired(Stmt stmt) {
+        Stmt optimized = stmt.accept(this);
+        return optimized == null ? new Stmt.Block(new ArrayList<>()) : optimized;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        // 还没有解析的块等解析之后再优化
+        if (stmt instanceof LazyBlock lazy && !lazy.isParsed()) {
+            lazy.optimizeWhenParsed();
+            return lazy;
+        }
+        return new Stmt.Block(optimize(LazyBlock.statementsOf(stmt)));
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        return new Stmt.Expression(optimize(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal literal) {
+            pruned = true;
+            if (Interpreter.isTruthy(literal.value)) return stmt.thenBranch.accept(this);
+            return stmt.elseBranch == null ? null : stmt.elseBranch.accept(this);
+        }
+        Stmt elseBranch = stmt.elseBranch == null ? null : stmt.elseBranch.accept(this);
+        return new Stmt.If(condition, optimizeRequired(stmt.thenBranch), elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(optimize(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        return new Stmt.Var(stmt.name, optimize(stmt.initializer));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal literal && !Interpreter.isTruthy(literal.value)) {
+            pruned = true;
+            return null;
+        }
+        return new Stmt.While(condition, optimizeRequired(stmt.body));
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        return new Expr.Assign(expr.name, optimize(expr.value));
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal l && right instanceof Expr.Literal r) {
+            Object a = l.value;
+            Object b = r.value;
+            switch (expr.operator.getType()) {
+                case EQUAL_EQUAL:
+                    return new Expr.Literal(Interpreter.isEqual(a, b));
+                case BANG_EQUAL:
+                    return new Expr.Literal(!Interpreter.isEqual(a, b));
+                case PLUS:
+                    if (a instanceof String sa && b instanceof String sb) return new Expr.Literal(sa + sb);
+                    break;
+                default:
+                    break;
+            }
+            if (a instanceof Double x && b instanceof Double y) {
+                switch (expr.operator.getType()) {
+                    case PLUS: return new Expr.Literal(x + y);
+                    case MINUS: return new Expr.Literal(x - y);
+                    case STAR: return new Expr.Literal(x * y);
+                    case SLASH: return new Expr.Literal(x / y);
+                    case GREATER: return new Expr.Literal(x > y);
+                    case GREATER_EQUAL: return new Expr.Literal(x >= y);
+                    case LESS: return new Expr.Literal(x < y);
+                    case LESS_EQUAL: return new Expr.Literal(x <= y);
+                    default: break;
+                }
+            }
+        }
+        // 不能折叠，或者折叠后运行时会报错
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal literal) {
+            pruned = true;
+            boolean truthy = Interpreter.isTruthy(literal.value);
+            if (expr.operator.getType() == TokenType.OR) return truthy ? left : right;
+            return truthy ? right : left;
+        }
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal literal) {
+            switch (expr.operator.getType()) {
+                case BANG:
+                    return new Expr.Literal(!Interpreter.isTruthy(literal.value));
+                case MINUS:
+                    if (literal.value instanceof Double d) return new Expr.Literal(-d);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+}
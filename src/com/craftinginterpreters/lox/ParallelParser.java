@@ -0,0 +1,83 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * 并行解析顶层声明。
+ * 先用Parser.declarationStarts()找出顶层声明之间的边界，把相邻的若干个声明合成一段，
+ * 每段由一个独立的Parser实例在fork-join线程池上解析，最后按顺序拼接成和Parser.parse()相同的语句列表。
+ * 每段的错误先记在自己的BufferedErrorReporter里，全部完成后按段的顺序交给Lox，
+ * 所以错误输出是确定的，不受线程调度影响。
+ * 每段的Parser到段的结尾就当作EOF。某一段的声明出错后同步到了段尾时，
+ * 从头解析的话这个声明可能延续到后面的段中，这时从这一段开始改为顺序解析剩下的部分，
+ * 错误信息和Parser.parse()完全一样。
+ */
+final class ParallelParser {
+    // 每段至少这么多个token，太小的话任务调度的开销比解析本身还大
+    private static final int MIN_SEGMENT_TOKENS = 1 << 14;
+
+    private static final class ParseTask extends RecursiveTask<List<Stmt>> {
+        final int start;
+        final Parser parser;
+        final BufferedErrorReporter reporter = new BufferedErrorReporter();
+
+        ParseTask(Parser whole, int start, int end) {
+            this.start = start;
+            this.parser = whole.range(start, end, reporter);
+        }
+
+        @Override
+        protected List<Stmt> compute() {
+            return parser.parse();
+        }
+    }
+
+    private ParallelParser() {
+    }
+
+    static List<Stmt> parse(Parser parser) {
+        int[] starts = parser.declarationStarts();
+        int eof = starts[starts.length - 1];
+        int segments = Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, (eof - starts[0]) / MIN_SEGMENT_TOKENS);
+        if (segments <= 1) {
+            return parser.parse();
+        }
+
+        // 按token数大致均分，每段的边界都取在某个顶层声明的开头
+        List<ParseTask> tasks = new ArrayList<>(segments);
+        int from = starts[0];
+        int next = 1;
+        for (int i = 1; i <= segments && from < eof; i++) {
+            long target = starts[0] + (long) (eof - starts[0]) * i / segments;
+            while (next < starts.length - 1 && starts[next] < target) next++;
+            int to = i == segments ? eof : starts[next];
+            if (to > from) {
+                tasks.add(new ParseTask(parser, from, to));
+                from = to;
+            }
+        }
+
+        ForkJoinPool.commonPool().invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                invokeAll(tasks);
+                return null;
+            }
+        });
+
+        List<Stmt> statements = new ArrayList<>();
+        for (ParseTask task : tasks) {
+            List<Stmt> segment = task.join();
+            if (task.parser.overran()) {
+                statements.addAll(parser.range(task.start, eof, ErrorReporter.LOX).parse());
+                break;
+            }
+            statements.addAll(segment);
+            task.reporter.flush();
+        }
+        return statements;
+    }
+}
@@ -0,0 +1,139 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * 并行扫描大文件，结果和Scanner.scanTokens()逐个token相同(类型、词素、字面量、行号)，错误报告的内容和顺序也相同。
+ *
+ * 源码在换行符之后切分成若干块，用fork-join并行扫描，每块都假设自己从"普通"状态开始，行号从1开始计。
+ * 因为切分点都紧跟在'\n'之后，而//注释到换行就结束，数字和标识符也不会跨行，
+ * 所以只有一种情况这个假设不成立：前一块结尾有一个跨越切分点的多行字符串。
+ * 拼接时按顺序检查：如果某块在结尾报了"Unterminated string."而它又不是最后一块，说明下一块的推测扫描作废，
+ * 就从这个字符串的开头重新扫描到下一块的结尾，新的结果代替下一块继续拼接(字符串可能跨越多个块，会继续这样处理)。
+ * 各块的token行号在拼接时加上前面所有块的换行数修正成绝对行号，扫描错误也是在这时才按顺序报告的。
+ */
+final class ParallelScanner {
+    // 每块至少这么多字符，小文件直接用单个Scanner
+    private static final int MIN_CHUNK = 1 << 16;
+
+    // 一块的扫描结果，行号都是相对这次扫描开头的(从1开始)
+    private static final class Chunk {
+        final List<Token> tokens;
+        final List<BufferedErrorReporter.Diagnostic> errors;
+        // 这次扫描经过的换行数
+        final int newlines;
+        // 结尾未闭合字符串的绝对起始位置，没有则为-1
+        final int unterminatedStart;
+        final int unterminatedLine;
+
+        Chunk(List<Token> tokens, List<BufferedErrorReporter.Diagnostic> errors, int newlines,
+              int unterminatedStart, int unterminatedLine) {
+            this.tokens = tokens;
+            this.errors = errors;
+            this.newlines = newlines;
+            this.unterminatedStart = unterminatedStart;
+            this.unterminatedLine = unterminatedLine;
+        }
+    }
+
+    private static final class ScanTask extends RecursiveTask<Chunk> {
+        private final CharSequence source;
+        private final int from;
+        private final int to;
+
+        ScanTask(CharSequence source, int from, int to) {
+            this.source = source;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Chunk compute() {
+            return scan(source, from, to);
+        }
+    }
+
+    private ParallelScanner() {
+    }
+
+    static List<Token> scanTokens(CharSequence source) {
+        int[] bounds = split(source);
+        int count = bounds.length - 1;
+        if (count <= 1) {
+            return new Scanner(source).scanTokens();
+        }
+
+        List<ScanTask> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tasks.add(new ScanTask(source, bounds[i], bounds[i + 1]));
+        }
+        ForkJoinPool.commonPool().invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                invokeAll(tasks);
+                return null;
+            }
+        });
+
+        List<Token> tokens = new ArrayList<>();
+        // 当前这次扫描开头所在的绝对行号减1
+        int lineOffset = 0;
+        Chunk chunk = tasks.get(0).join();
+        int index = 0;
+        while (true) {
+            boolean crosses = chunk.unterminatedStart >= 0 && index + 1 < count;
+            for (Token token : chunk.tokens) {
+                tokens.add(lineOffset == 0 ? token
+                        : new Token(token.getType(), token.getLexeme(), token.getLiteral(), token.getLine() + lineOffset));
+            }
+            // 跨越切分点的字符串报的"Unterminated string."是误报，它总是这一块的最后一个错误
+            int errors = crosses ? chunk.errors.size() - 1 : chunk.errors.size();
+            for (int i = 0; i < errors; i++) {
+                BufferedErrorReporter.Diagnostic error = chunk.errors.get(i);
+                Lox.error(error.line() + lineOffset, error.message());
+            }
+
+            index++;
+            if (crosses) {
+                // 下一块是从字符串中间开始的，从字符串开头重新扫描到下一块的结尾
+                lineOffset += chunk.unterminatedLine - 1;
+                chunk = scan(source, chunk.unterminatedStart, bounds[index + 1]);
+            } else {
+                lineOffset += chunk.newlines;
+                if (index == count) break;
+                chunk = tasks.get(index).join();
+            }
+        }
+        tokens.add(new Token(TokenType.EOF, "", null, lineOffset + 1));
+        return tokens;
+    }
+
+    // 在换行符之后切分，返回各块的边界，第一个是0，最后一个是源码长度
+    private static int[] split(CharSequence source) {
+        int length = source.length();
+        int count = Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, length / MIN_CHUNK);
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        for (int i = 1; i < count; i++) {
+            int position = Math.max((int) ((long) length * i / count), bounds.get(bounds.size() - 1));
+            while (position < length && source.charAt(position) != '\n') position++;
+            if (position + 1 >= length) break;
+            if (position + 1 > bounds.get(bounds.size() - 1)) bounds.add(position + 1);
+        }
+        bounds.add(length);
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static Chunk scan(CharSequence source, int from, int to) {
+        BufferedErrorReporter errors = new BufferedErrorReporter();
+        Scanner scanner = new Scanner(source.subSequence(from, to), errors);
+        List<Token> tokens = scanner.scanTokens();
+        // 去掉每块自己的EOF，拼接完再加上整个源码的EOF
+        tokens.remove(tokens.size() - 1);
+        int unterminated = scanner.unterminatedStart() < 0 ? -1 : from + scanner.unterminatedStart();
+        return new Chunk(tokens, errors.diagnostics(), scanner.line() - 1, unterminated, scanner.unterminatedLine());
+    }
+}
@@ -2,8 +2,8 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.function.Consumer;
-import java.util.function.Supplier;
 
 import com.craftinginterpreters.lox.Stmt.Print;
 
@@ -35,6 +35,23 @@ import com.craftinginterpreters.lox.Stmt.Print;
 public class Parser {
     private final List<Token> tokens;
     private int current = 0;
+    // 流式模式下token从scanner按需拉取，tokens只是一个小窗口
+    private final Scanner scanner;
+    // 从TokenBuffer解析时tokens为null，只有语法树需要的token才创建Token对象
+    private final TokenBuffer buffer;
+    // 只解析end之前的token，到end就当作EOF。并行解析时每个Parser负责其中一段顶层声明
+    private final int end;
+    // 出错后的同步停在了end上，而end后面还有token：一直往下解析的话同步会继续，这一段的结果不可信
+    private boolean overran = false;
+    private final ErrorReporter reporter;
+    // 预解析模式：块只检查语法，保存成LazyBlock，第一次执行时再解析
+    private boolean deferBlocks = false;
+    // 延迟块的内容在加载时已经整体检查过，解析它时遇到的内层块只需要找到配对的'}'
+    private boolean blocksChecked = false;
+    // 预解析检查用：检查中的块里已经声明的变量名(token下标)，以及正在初始化的变量名
+    private int[] declared = new int[16];
+    private int declaredCount = 0;
+    private int initializing = -1;
 
     // parser内的方法通过这个类确定是否unwind解析器
     // 当出现这个异常时，可能解析器并不会处于奇怪的状态，此时就不需要同步了
@@ -45,7 +62,84 @@ public class Parser {
     }
 
     public Parser(List<Token> tokens) {
+        this(tokens, null, null, 0, Integer.MAX_VALUE, ErrorReporter.LOX);
+    }
+
+    public Parser(Scanner scanner) {
+        this(new ArrayList<>(), scanner, null, 0, Integer.MAX_VALUE, ErrorReporter.LOX);
+    }
+
+    Parser(Scanner scanner, ErrorReporter reporter) {
+        this(new ArrayList<>(), scanner, null, 0, Integer.MAX_VALUE, reporter);
+    }
+
+    Parser(TokenBuffer buffer) {
+        this(null, null, buffer, 0, Integer.MAX_VALUE, ErrorReporter.LOX);
+    }
+
+    private Parser(List<Token> tokens, Scanner scanner, TokenBuffer buffer, int start, int end, ErrorReporter reporter) {
         this.tokens = tokens;
+        this.scanner = scanner;
+        this.buffer = buffer;
+        this.current = start;
+        this.end = end;
+        this.reporter = reporter;
+    }
+
+    // 解析同一个token序列中[start, end)这一段的Parser，错误交给reporter
+    Parser range(int start, int end, ErrorReporter reporter) {
+        Parser parser = new Parser(tokens, null, buffer, start, end, reporter);
+        parser.deferBlocks = deferBlocks;
+        return parser;
+    }
+
+    /*
+     * 并行解析用：这一段中有声明出错后一直同步到了段的结尾。
+     * 从头解析时，同步或者出错的块会继续吃掉下一段的token(例如少了'}'的块会一直延伸到文件末尾)，
+     * 这一段及之后的结果和错误都要作废，从这一段开头重新顺序解析。
+     */
+    boolean overran() {
+        return overran;
+    }
+
+    // 开启预解析模式，需要整个token序列都在内存中，流式解析不能使用
+    void deferBlocks() {
+        deferBlocks = true;
+    }
+
+    /*
+     * 并行解析用：返回每个顶层声明开始处的token下标，最后一个元素是EOF的下标。
+     * 和synchronize()一样，分号和块的结尾就是语句的边界，只是这里还要跟踪括号的嵌套：
+     * 只有不在任何()或{}里的';'，以及让嵌套回到0层的'}'才结束一个顶层声明，
+     * 后面紧跟着else的除外，那是if语句还没有结束。
+     * 括号不配对时后面的部分会连成一整段，交给一个Parser去报告错误。
+     */
+    int[] declarationStarts() {
+        int[] starts = new int[16];
+        int count = 0;
+        int depth = 0;
+        int index = current;
+        starts[count++] = index;
+        while (typeAt(index) != TokenType.EOF) {
+            TokenType type = typeAt(index);
+            index++;
+            switch (type) {
+                case LEFT_PAREN, LEFT_BRACE -> depth++;
+                case RIGHT_PAREN -> depth = Math.max(depth - 1, 0);
+                case RIGHT_BRACE, SEMICOLON -> {
+                    if (type == TokenType.RIGHT_BRACE) depth = Math.max(depth - 1, 0);
+                    if (depth == 0 && typeAt(index) != TokenType.ELSE && typeAt(index) != TokenType.EOF) {
+                        if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+                        starts[count++] = index;
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        if (count == starts.length) starts = Arrays.copyOf(starts, count + 1);
+        starts[count++] = index;
+        return Arrays.copyOf(starts, count);
     }
 
     public List<Stmt> parse(){
@@ -56,6 +150,46 @@ public class Parser {
         return statements;
     } 
 
+    /*
+     * 流式解析：每次返回一个顶层声明，源码结束时返回null。
+     * 每次开始前丢弃已经消费过的token(只保留previous()要用的最后一个)，
+     * 所以占用的内存只和最大的那条语句有关，而不是整个文件。
+     */
+    Stmt parseNext(){
+        discardConsumed();
+        while(!isAtEnd()){
+            Stmt stmt = declaration();
+            //出错后declaration()已经同步到下一条语句，返回的是null
+            if(stmt != null) return stmt;
+        }
+        return null;
+    }
+
+    /*
+     * 增量解析用：和parseNext一样是流式的，但只解析一个顶层声明，出错时返回null(已经同步到下一个声明的开头)。
+     * 调用前先用atEnd()确认还有声明。
+     */
+    Stmt nextDeclaration(){
+        discardConsumed();
+        return declaration();
+    }
+
+    boolean atEnd(){
+        return isAtEnd();
+    }
+
+    // 最近消费的token，也就是刚解析完的声明的最后一个token
+    Token lastConsumed(){
+        return previous();
+    }
+
+    private void discardConsumed(){
+        if(current > 1){
+            tokens.subList(0, current - 1).clear();
+            current = 1;
+        }
+    }
+
     private Stmt declaration(){
         try{
             if(match(TokenType.VAR)) return varDeclaration();
@@ -67,7 +201,8 @@ public class Parser {
     }
 
     private Stmt varDeclaration(){
-        Token name = consume(TokenType.IDENTIFIER,"Expected variable name.");
+        consume(TokenType.IDENTIFIER,"Expected variable name.");
+        Token name = previous();
         Expr initializer = null;
         if(match(TokenType.EQUAL)){
             initializer = expression();
@@ -78,11 +213,249 @@ public class Parser {
 
 
     private Stmt statement() {
+        if(match(TokenType.FOR)) return forStatement();
+        if(match(TokenType.IF)) return ifStatement();
         if(match(TokenType.PRINT)) return printStatement();
-        if(match(TokenType.LEFT_BRACE)) return new Stmt.Block(block());
+        if(match(TokenType.WHILE)) return whileStatement();
+        if(match(TokenType.LEFT_BRACE)) return deferBlocks ? deferredBlock() : new Stmt.Block(block());
         return expressionStatement();
     }
 
+    /*
+     * 预解析一个块('{'已经被消费)：沿着语法规则走一遍块中的token，但不创建任何语法树节点，
+     * 通过后只记下块内容的token范围，返回一个LazyBlock。
+     * 检查同时覆盖了Resolver在块内会报告的错误(同一作用域中重复声明、在初始化器中读取自己)，
+     * 这两种错误只和块内部的作用域有关，不依赖外层。
+     * 检查只回答"这个块能不能延迟"，不报告错误：发现问题就回到块的开头按原来的方式立即解析，
+     * 由正常的解析过程和Resolver报告错误、进行同步，所以错误信息、顺序和退出码(65)都和立即解析时一样。
+     * 检查时比较保守，例如 var a = a = 1; 也会被当作有问题，这只会让这个块不延迟，不影响结果。
+     */
+    private Stmt deferredBlock() {
+        int open = current - 1;
+        if (blocksChecked) {
+            skipBlock();
+        } else {
+            try {
+                checkBlock();
+            } catch (InvalidBlock invalid) {
+                current = open + 1;
+                declaredCount = 0;
+                initializing = -1;
+                return new Stmt.Block(block());
+            }
+        }
+        Parser body = range(open + 1, current - 1, reporter);
+        body.blocksChecked = true;
+        return new LazyBlock(body);
+    }
+
+    // 已经检查过的块只需要找到配对的'}'
+    private void skipBlock() {
+        int depth = 1;
+        while (depth > 0) {
+            TokenType type = peekType();
+            if (type == TokenType.LEFT_BRACE) depth++;
+            if (type == TokenType.RIGHT_BRACE) depth--;
+            advance();
+        }
+    }
+
+    // 预解析检查失败时抛出，不报告错误，所以没有调用栈，可以共用一个实例
+    private static final class InvalidBlock extends RuntimeException {
+        InvalidBlock() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final InvalidBlock INVALID_BLOCK = new InvalidBlock();
+
+    /*
+     * 下面的check*方法和对应的解析方法接受完全相同的token序列，
+     * 区别是不创建节点，遇到错误直接抛出INVALID_BLOCK。
+     * 变量名按作用域压在declared里，scope是当前作用域在declared中的起始位置。
+     */
+    private void checkBlock() {
+        int scope = declaredCount;
+        while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+            if (match(TokenType.VAR)) {
+                checkVarDeclaration(scope);
+            } else {
+                checkStatement();
+            }
+        }
+        expect(TokenType.RIGHT_BRACE);
+        declaredCount = scope;
+    }
+
+    private void checkVarDeclaration(int scope) {
+        expect(TokenType.IDENTIFIER);
+        int name = current - 1;
+        for (int i = scope; i < declaredCount; i++) {
+            if (sameLexeme(declared[i], name)) throw INVALID_BLOCK;
+        }
+        if (match(TokenType.EQUAL)) {
+            initializing = name;
+            checkExpression(PREC_ASSIGNMENT);
+            initializing = -1;
+        }
+        expect(TokenType.SEMICOLON);
+        if (declaredCount == declared.length) declared = Arrays.copyOf(declared, declaredCount * 2);
+        declared[declaredCount++] = name;
+    }
+
+    private void checkStatement() {
+        if (match(TokenType.FOR)) {
+            // desugar之后带初始化器的for循环外面有一个块，初始化器声明的变量在这个块的作用域里
+            expect(TokenType.LEFT_PAREN);
+            int scope = declaredCount;
+            if (match(TokenType.VAR)) {
+                checkVarDeclaration(scope);
+            } else if (!match(TokenType.SEMICOLON)) {
+                checkExpression(PREC_ASSIGNMENT);
+                expect(TokenType.SEMICOLON);
+            }
+            if (!check(TokenType.SEMICOLON)) checkExpression(PREC_ASSIGNMENT);
+            expect(TokenType.SEMICOLON);
+            if (!check(TokenType.RIGHT_PAREN)) checkExpression(PREC_ASSIGNMENT);
+            expect(TokenType.RIGHT_PAREN);
+            checkStatement();
+            declaredCount = scope;
+        } else if (match(TokenType.IF)) {
+            expect(TokenType.LEFT_PAREN);
+            checkExpression(PREC_ASSIGNMENT);
+            expect(TokenType.RIGHT_PAREN);
+            checkStatement();
+            if (match(TokenType.ELSE)) checkStatement();
+        } else if (match(TokenType.WHILE)) {
+            expect(TokenType.LEFT_PAREN);
+            checkExpression(PREC_ASSIGNMENT);
+            expect(TokenType.RIGHT_PAREN);
+            checkStatement();
+        } else if (match(TokenType.LEFT_BRACE)) {
+            checkBlock();
+        } else {
+            // print语句和表达式语句
+            match(TokenType.PRINT);
+            checkExpression(PREC_ASSIGNMENT);
+            expect(TokenType.SEMICOLON);
+        }
+    }
+
+    // 返回表达式是不是单独一个变量，只有它可以作为赋值的目标
+    private boolean checkExpression(int minPrecedence) {
+        boolean variable = checkPrefix();
+        while (true) {
+            TokenType type = peekType();
+            int precedence = PRECEDENCE[type.ordinal()];
+            if (precedence == PREC_NONE || precedence < minPrecedence) return variable;
+            advance();
+            if (type == TokenType.EQUAL) {
+                if (!variable) throw INVALID_BLOCK;
+                checkExpression(PREC_ASSIGNMENT);
+            } else {
+                checkExpression(precedence + 1);
+            }
+            variable = false;
+        }
+    }
+
+    private boolean checkPrefix() {
+        switch (peekType()) {
+            case BANG, MINUS -> {
+                advance();
+                checkExpression(PREC_UNARY);
+                return false;
+            }
+            case FALSE, TRUE, NIL, NUMBER, STRING -> {
+                advance();
+                return false;
+            }
+            case LEFT_PAREN -> {
+                advance();
+                checkExpression(PREC_ASSIGNMENT);
+                expect(TokenType.RIGHT_PAREN);
+                return false;
+            }
+            case IDENTIFIER -> {
+                advance();
+                if (initializing >= 0 && sameLexeme(current - 1, initializing)) throw INVALID_BLOCK;
+                return true;
+            }
+            default -> throw INVALID_BLOCK;
+        }
+    }
+
+    private void expect(TokenType type) {
+        if (!check(type)) throw INVALID_BLOCK;
+        advance();
+    }
+
+    private boolean sameLexeme(int i, int j) {
+        if (buffer != null) return buffer.sameLexeme(i, j);
+        return tokens.get(i).getLexeme().equals(tokens.get(j).getLexeme());
+    }
+
+    /*
+     * for循环是语法糖，这里直接desugar成while循环：
+     * { initializer; while(condition) { body; increment; } }
+     * 后端(interpreter等)因此只需要处理while。
+     */
+    private Stmt forStatement(){
+        consume(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
+        Stmt initializer;
+        if(match(TokenType.SEMICOLON)){
+            initializer = null;
+        }else if(match(TokenType.VAR)){
+            initializer = varDeclaration();
+        }else{
+            initializer = expressionStatement();
+        }
+
+        Expr condition = null;
+        if(!check(TokenType.SEMICOLON)){
+            condition = expression();
+        }
+        consume(TokenType.SEMICOLON, "Expect ';' after loop condition.");
+
+        Expr increment = null;
+        if(!check(TokenType.RIGHT_PAREN)){
+            increment = expression();
+        }
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
+        Stmt body = statement();
+
+        if(increment != null){
+            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
+        }
+        if(condition == null) condition = new Expr.Literal(true);
+        body = new Stmt.While(condition, body);
+        if(initializer != null){
+            body = new Stmt.Block(Arrays.asList(initializer, body));
+        }
+        return body;
+    }
+
+    // else 与最近的 if 绑定，解决悬空else问题
+    private Stmt ifStatement(){
+        consume(TokenType.LEFT_PAREN, "Expect '(' after 'if'.");
+        Expr condition = expression();
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after if condition.");
+        Stmt thenBranch = statement();
+        Stmt elseBranch = null;
+        if(match(TokenType.ELSE)){
+            elseBranch = statement();
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    private Stmt whileStatement(){
+        consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
+        Expr condition = expression();
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
+        Stmt body = statement();
+        return new Stmt.While(condition, body);
+    }
+
     private Stmt printStatement(){
         Expr value = expression();
         consume(TokenType.SEMICOLON, "Expected ';' after value.");
@@ -113,38 +486,133 @@ public class Parser {
      * | 解析成if或者switch语句
      * * 或者 + 解析成while或者for循环
      * ? 解析成if
+     *
+     * 语句部分依旧是递归下降，表达式部分换成了Pratt解析(precedence climbing)：
+     * 原来每一级优先级(assignment、or、and、equality、comparison、term、factor)都是一个方法，
+     * 解析一个最简单的primary也要从上到下穿过每一级，每一级都要拿当前token和这一级的操作符逐个比较。
+     * 现在每个TokenType作为中缀操作符时的优先级(绑定力)存在按ordinal索引的静态数组PRECEDENCE中，
+     * parsePrecedence先解析前缀部分，然后只要下一个token的优先级不低于要求的最低优先级，就把它作为中缀操作符继续解析，
+     * 遇到一个操作符只需要查一次表。
+     * 左结合的操作符用比自己高一级的优先级解析右操作数，这样同级的操作符会留给外层循环，结果是左关联的嵌套树；
+     * 右结合的赋值用自己的优先级解析右侧。
+     * 得到的语法树和原来按语法规则逐级下降得到的完全一样，见note/Lox中的表达式语法。
      */
+    private static final int PREC_NONE = 0;
+    private static final int PREC_ASSIGNMENT = 1; // =
+    private static final int PREC_OR = 2;         // or
+    private static final int PREC_AND = 3;        // and
+    private static final int PREC_EQUALITY = 4;   // == !=
+    private static final int PREC_COMPARISON = 5; // < > <= >=
+    private static final int PREC_TERM = 6;       // + -
+    private static final int PREC_FACTOR = 7;     // * /
+    private static final int PREC_UNARY = 8;      // ! -
+
+    private static final int[] PRECEDENCE = new int[TokenType.values().length];
+    static {
+        PRECEDENCE[TokenType.EQUAL.ordinal()] = PREC_ASSIGNMENT;
+        PRECEDENCE[TokenType.OR.ordinal()] = PREC_OR;
+        PRECEDENCE[TokenType.AND.ordinal()] = PREC_AND;
+        PRECEDENCE[TokenType.BANG_EQUAL.ordinal()] = PREC_EQUALITY;
+        PRECEDENCE[TokenType.EQUAL_EQUAL.ordinal()] = PREC_EQUALITY;
+        PRECEDENCE[TokenType.GREATER.ordinal()] = PREC_COMPARISON;
+        PRECEDENCE[TokenType.GREATER_EQUAL.ordinal()] = PREC_COMPARISON;
+        PRECEDENCE[TokenType.LESS.ordinal()] = PREC_COMPARISON;
+        PRECEDENCE[TokenType.LESS_EQUAL.ordinal()] = PREC_COMPARISON;
+        PRECEDENCE[TokenType.MINUS.ordinal()] = PREC_TERM;
+        PRECEDENCE[TokenType.PLUS.ordinal()] = PREC_TERM;
+        PRECEDENCE[TokenType.SLASH.ordinal()] = PREC_FACTOR;
+        PRECEDENCE[TokenType.STAR.ordinal()] = PREC_FACTOR;
+    }
+
     // parse expression rule
     private Expr expression() {
-        return assignment();
-    }
-
-    // 二元操作符的规则都是类似的，左边是更高优先级的操作符规则，中间是操作符，右边是更高优先级的操作符规则
-    // 规则中如果左操作数是non-terminal，因此就解析为调用解析对应non-terminal规则的方法将结果保存到临时变量中作为左操作数
-    // 规则中的(...)*解析为while循环，当不匹配TokenType列表时退出
-    // 循环中会消费操作符，并调用non-terminal的解析方法生成右操作数，并和左操作数结合组成一个表达式
-    // 当结束循环后，我们就将表达式组成了一左关联的嵌套树结果
-    // 如果表达式遇到了 TokenType列表中的操作符 就会进入到while中，否则就会返回non-terminal的结果
-    // 如此，对应规则的解析方法就匹配了自身以及更高优先级的表达式了
-    private Expr parseBinary(Supplier<Expr> higherRuleParsingMethodSupplier, TokenType... types) {
-        Expr expr = higherRuleParsingMethodSupplier.get();
-        while (match(types)) {
-            // 如果match了,注意到match会消费一个token，因此
-            // 操作符应该取previous()
+        return parsePrecedence(PREC_ASSIGNMENT);
+    }
+
+    // 解析优先级不低于minPrecedence的表达式
+    private Expr parsePrecedence(int minPrecedence) {
+        Expr expr = prefix();
+        while (true) {
+            TokenType type = peekType();
+            int precedence = PRECEDENCE[type.ordinal()];
+            if (precedence == PREC_NONE || precedence < minPrecedence) return expr;
+            advance();
             Token operator = previous();
-            Expr right = higherRuleParsingMethodSupplier.get();
-            expr = new Expr.Binary(expr, operator, right);
+            switch (type) {
+                case EQUAL -> expr = assignment(expr, operator);
+                case OR, AND -> expr = new Expr.Logical(expr, operator, parsePrecedence(precedence + 1));
+                default -> expr = new Expr.Binary(expr, operator, parsePrecedence(precedence + 1));
+            }
+        }
+    }
+
+    /*
+     * 遇到=时左边已经按普通表达式解析完了，如果它是一个变量就组装成赋值表达式，否则报错(但不需要同步，解析器的状态没有问题)。
+     * 右侧递归解析，赋值是右结合的。
+     */
+    private Expr assignment(Expr target, Token equals) {
+        Expr value = parsePrecedence(PREC_ASSIGNMENT);
+        if (target instanceof Expr.Variable) {
+            Token name = ((Expr.Variable) target).name;
+            return new Expr.Assign(name, value);
         }
-        return expr;
+        error(equals, "Invalid assignment target.");
+        return target;
     }
 
-    // 比较当前token是不是属于传入的指定TokenTypes之一
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
+    /*
+     * 前缀部分：一元表达式和primary
+     * unary → ("!"|"-") unary | primary;
+     * primary → NUMBER|STRING|"true"|"false"|"nil"|"(" expression ")"|IDENTIFIER;
+     */
+    private Expr prefix() {
+        TokenType type = peekType();
+        switch (type) {
+            case BANG, MINUS -> {
                 advance();
-                return true;
+                Token operator = previous();
+                // 注意到，这里就出现了递归
+                Expr right = parsePrecedence(PREC_UNARY);
+                return new Expr.Unary(operator, right);
             }
+            case FALSE -> {
+                advance();
+                return new Expr.Literal(false);
+            }
+            case TRUE -> {
+                advance();
+                return new Expr.Literal(true);
+            }
+            case NIL -> {
+                advance();
+                return new Expr.Literal(null);
+            }
+            case NUMBER, STRING -> {
+                advance();
+                return new Expr.Literal(previousLiteral());
+            }
+            case LEFT_PAREN -> {
+                advance();
+                Expr expr = expression();
+                consume(TokenType.RIGHT_PAREN, "Expect ')' after expression");
+                return new Expr.Grouping(expr);
+            }
+            case IDENTIFIER -> {
+                advance();
+                return new Expr.Variable(previous());
+            }
+            default -> {
+                //此时，是一个无法开启一个表达式的token
+                throw error(peek(), "Expect expression");
+            }
+        }
+    }
+
+    // 当前token是指定类型时消费它
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
         return false;
     }
@@ -153,150 +621,73 @@ public class Parser {
     private boolean check(TokenType type) {
         if (isAtEnd())
             return false;
-        return peek().getType() == type;
+        return peekType() == type;
     }
 
-    // advance会消费一个token并返回这个token
-    private Token advance() {
+    // advance会消费一个token，需要这个token时再调用previous()
+    private void advance() {
         if (!isAtEnd())
             current++;
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().getType() == TokenType.EOF;
+        return peekType() == TokenType.EOF;
+    }
+
+    // 当前token的类型，从TokenBuffer解析时不需要创建Token对象
+    private TokenType peekType() {
+        if (current >= end) return TokenType.EOF;
+        if (buffer != null) return buffer.type(current);
+        return peek().getType();
+    }
+
+    private TokenType typeAt(int index) {
+        if (buffer != null) return buffer.type(index);
+        return tokens.get(index).getType();
     }
 
-    // 返回我们要消费的当前token
+    // 返回我们要消费的当前token，到了end就是EOF，不会看到这一段之后的token
     private Token peek() {
+        if (current >= end) return endOfRange();
+        if (buffer != null) return buffer.token(current);
+        //只有流式模式才会走到列表末尾，普通模式下列表最后一个总是EOF
+        if (current == tokens.size()) tokens.add(scanner.nextToken());
         return tokens.get(current);
     }
 
+    // 这一段的结尾当作EOF，行号用段内最后一个token的；最后一段的结尾就是真正的EOF
+    private Token endOfRange() {
+        if (typeAt(end) == TokenType.EOF) return buffer != null ? buffer.token(end) : tokens.get(end);
+        Token last = buffer != null ? buffer.token(end - 1) : tokens.get(end - 1);
+        return new Token(TokenType.EOF, "", null, last.getLine());
+    }
+
     // 返回最近消费过的token
     private Token previous() {
+        if (buffer != null) return buffer.token(current - 1);
         return tokens.get(current - 1);
     }
 
-    /*
-     * 这里处理按照表达式正常解析，当遇到了=，就认为它是赋值操作符，然后将解析右边，最终组装起来整个结果为复制表达式树节点
-     * 这里使用递归而不是循环处理右结合的赋值表达式的右手侧。并且，
-     */
-    private Expr assignment(){
-        Expr expr = equality();
-        if(match(TokenType.EQUAL)){
-            Token equals = previous();
-            Expr value = assignment();
-
-            if(expr instanceof Expr.Variable){
-                Token name = ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value);
-            }
-            error(equals,"Invalid assignment target.");
-        }
-
-        return expr;
-    }
-
-    // parse equality rule "equality -> comparison(("!="|"=="")comparison)*;"
-    private Expr equality() {
-
-        return parseBinary(this::comparison, TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL);
-        // Expr expr = comparison();
-        // while(match(TokenType.BANG_EQUAL,TokenType.EQUAL_EQUAL)){
-        // 如果match了,注意到match会消费一个token，因此
-        // 操作符应该取previous()
-        // Token operator = previous();
-        // Expr right = comparison();
-        // expr = new Expr.Binary(expr, operator, right);
-        // }
-        // return expr;
-    }
-
-    // 解析comparison规则 "comparison → term ( (">"|">="|"<"|"<=") term)*;"
-    private Expr comparison() {
-        return parseBinary(this::term, TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS,
-                TokenType.LESS_EQUAL);
-        // Expr expr = term();
-
-        // while(match(TokenType.GREATER,TokenType.GREATER_EQUAL,TokenType.LESS,TokenType.LESS_EQUAL)){
-        // Token operator = previous();
-        // Expr right = term();
-        // expr = new Expr.Binary(expr, operator, right);
-        // }
-        // return expr;
-    }
-
-    // 解析term规则 "term → factor( ("-"/"+") factor)*;"
-    private Expr term() {
-        return parseBinary(this::factor, TokenType.MINUS,TokenType.PLUS);
-        // Expr expr = factor();
-        // while(match(TokenType.PLUS,TokenType.MINUS)){
-        // Token operator = previous();
-        // Expr right = factor();
-        // expr = new Expr.Binary(expr, operator, right);
-        // }
-        // return expr;
-    }
-
-    // 解析factor规则 "factor → unary( ("/"|"*") unary) *;"
-    private Expr factor() {
-        return parseBinary(this::unary, TokenType.SLASH, TokenType.STAR);
-        // Expr expr = unary();
-        // while(match(TokenType.SLASH,TokenType.STAR)){
-        // Token operator = previous();
-        // Expr right = unary();
-        // expr = new Expr.Binary(expr, operator, right);
-        // }
-        // return expr;
-    }
-
-    // 解析一元表达式unary
-    // unary → ("!"|"-") unary
-    // | primary;
-    private Expr unary() {
-        if (match(TokenType.BANG, TokenType.MINUS)) {
-            Token operator = previous();
-            // 注意到，这里就出现了递归
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
-        }
-        return primary();
-    }
-
-    // 解析 primary → NUMBER|STRING|"true"|"false"|"nil"|"(" expression ")";
-    private Expr primary() {
-        if (match(TokenType.FALSE))
-            return new Expr.Literal(false);
-        if (match(TokenType.TRUE))
-            return new Expr.Literal(true);
-        if (match(TokenType.NIL))
-            return new Expr.Literal(null);
-        if (match(TokenType.NUMBER, TokenType.STRING)) {
-            return new Expr.Literal(previous().getLiteral());
-        }
-
-        if (match(TokenType.LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression");
-            return new Expr.Grouping(expr);
-        }
-
-        if(match(TokenType.IDENTIFIER)){
-            return new Expr.Variable(previous());
-        }
+    private TokenType previousType() {
+        if (buffer != null) return buffer.type(current - 1);
+        return previous().getType();
+    }
 
-        //此时，是一个无法开启一个表达式的token
-       throw error(peek(), "Expect expression");
+    private Object previousLiteral() {
+        if (buffer != null) return buffer.literal(current - 1);
+        return previous().getLiteral();
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type))
-            return advance();
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
         throw error(peek(), message);
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
@@ -306,9 +697,9 @@ public class Parser {
         //丢弃这个token
         advance();
         while (!isAtEnd()) {
-            if (previous().getType() == TokenType.SEMICOLON)
+            if (previousType() == TokenType.SEMICOLON)
                 return;
-            switch (peek().getType()) {
+            switch (peekType()) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -321,5 +712,6 @@ public class Parser {
             }
             advance();
         }
+        if (current >= end && typeAt(end) != TokenType.EOF) overran = true;
     }
 }
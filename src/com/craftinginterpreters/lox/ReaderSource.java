@@ -0,0 +1,85 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/*
+ * 从Reader按需读取的源码，给流式模式下的Scanner使用。
+ * 它是一个会"变长"的CharSequence(类似一个不断被append的StringBuilder)：
+ * length()返回目前已经读入的字符数，但在Scanner快要读完缓冲区时会先再读一块，
+ * 所以只要输入还没结束，Scanner的isAtEnd()/peekNext()就不会误判到了结尾。
+ * 具体保证是：length()返回时，要么已经到了输入结尾，要么比charAt访问过的最大下标至少多出3个字符
+ * (Scanner的current最多比访问过的下标大1，peekNext再往后看1个)。
+ *
+ * Scanner在开始扫描每个token时调用release(start)，start之前的字符以后不会再用到，
+ * 下次读入时就会被丢弃，所以缓冲区只需要容纳最长的那个token(通常是长字符串或注释)。
+ * 下标是从输入开头算起的绝对位置，用int表示，因此单个输入最多2^31-1个字符。
+ */
+final class ReaderSource implements CharSequence {
+    private static final int CHUNK = 8192;
+
+    private final Reader reader;
+    private char[] buffer = new char[CHUNK * 2];
+    // buffer[0]对应的绝对下标
+    private int base = 0;
+    // 已经读入的字符数，也就是buffer中有效数据末尾的绝对下标
+    private int count = 0;
+    private int highest = -1;
+    private int mark = 0;
+    private boolean eof = false;
+
+    ReaderSource(Reader reader) {
+        this.reader = reader;
+    }
+
+    void release(int position) {
+        mark = position;
+    }
+
+    @Override
+    public int length() {
+        while (!eof && count - highest <= 3) {
+            fill();
+        }
+        return count;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index > highest) highest = index;
+        return buffer[index - base];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(buffer, start - base, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, mark - base, count - mark);
+    }
+
+    private void fill() {
+        // 丢掉mark之前已经不再需要的字符
+        if (mark > base) {
+            System.arraycopy(buffer, mark - base, buffer, 0, count - mark);
+            base = mark;
+        }
+        if (count - base + CHUNK > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count - base + CHUNK));
+        }
+        try {
+            int n = reader.read(buffer, count - base, CHUNK);
+            if (n < 0) {
+                eof = true;
+            } else {
+                count += n;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/*
+ * 变量解析(resolution)的静态分析pass，位于Parser.parse()和Interpreter.interpret()之间。
+ * 它遍历一次语法树，对每一个变量引用(Expr.Variable和Expr.Assign)计算出：
+ * depth：引用处和声明处之间隔了几层作用域
+ * slot：变量在声明它的作用域中的下标(即声明顺序)
+ * 并把结果交给interpreter记录下来，运行时直接按下标访问数组帧，不再沿着作用域链逐层做哈希查找。
+ *
+ * 只有块作用域会被跟踪。如果在所有作用域中都没找到这个变量，就认为它是全局变量，
+ * 记录为一个GlobalSite，运行时按符号编号查找并缓存找到的单元。
+ * 和解释器不同，这里没有副作用也没有控制流：if的两个分支都会解析，while的循环体只解析一次。
+ *
+ * 块中直接声明的变量个数交给interpreter记录，运行时按这个大小分配帧。
+ * 没有声明任何变量的块不创建作用域，它里面的引用直接算到外层，depth不把它计算在内，运行时也不为它创建帧。
+ * 块中的声明只能是块的直接子语句(if和while的分支不能是声明)，所以进入块之前就能数出来。
+ *
+ * 还没有解析的LazyBlock不会进入，而是交给一个新的Resolver记住当时外层的作用域，块解析完成后由它来解析块的内容。
+ * 外层作用域之后还会继续声明变量，所以同时记下当时每个作用域中的变量个数：
+ * 槽位是声明顺序，槽位小于这个数的变量才是在块之前声明的，块里能看到的只有这些。
+ *
+ * check()只做静态检查、不向interpreter记录任何结果(interpreter为null)，用在Optimizer删掉分支之前的树上。
+ * 这时还没有解析的LazyBlock直接跳过：Parser只延迟通过了同样检查的块。
+ */
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Interpreter interpreter;
+    private final Stack<Scope> scopes = new Stack<>();
+    // 延迟解析块时使用：块外面的作用域(最外层在前)，以及遇到块时每个作用域已经声明的变量个数
+    private final Scope[] enclosing;
+    private final int[] enclosingSizes;
+
+    // 一个块作用域：变量名到槽位的映射，以及变量是否已经完成初始化
+    private static class Scope {
+        final Map<String, Integer> slots = new HashMap<>();
+        final Map<String, Boolean> defined = new HashMap<>();
+    }
+
+    Resolver(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.enclosing = new Scope[0];
+        this.enclosingSizes = new int[0];
+    }
+
+    // 只报告错误，解析结果不记录
+    static void check(List<Stmt> statements) {
+        new Resolver((Interpreter) null).resolve(statements);
+    }
+
+    // 记住outer当前所有的作用域，用来稍后解析一个延迟的块
+    private Resolver(Resolver outer) {
+        this.interpreter = outer.interpreter;
+        int count = outer.enclosing.length;
+        this.enclosing = Arrays.copyOf(outer.enclosing, count + outer.scopes.size());
+        this.enclosingSizes = Arrays.copyOf(outer.enclosingSizes, enclosing.length);
+        for (int i = 0; i < outer.scopes.size(); i++) {
+            enclosing[count + i] = outer.scopes.get(i);
+            enclosingSizes[count + i] = outer.scopes.get(i).slots.size();
+        }
+    }
+
+    // 延迟的块解析完成后也调用这里，和立即解析时一样
+    void resolveBlock(Stmt.Block block, List<Stmt> statements) {
+        int declarations = 0;
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var) declarations++;
+        }
+        if (interpreter != null) interpreter.resolveBlock(block, declarations);
+        if (declarations == 0) {
+            resolve(statements);
+            return;
+        }
+        beginScope();
+        resolve(statements);
+        endScope();
+    }
+
+    void resolve(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void beginScope() {
+        scopes.push(new Scope());
+    }
+
+    private void endScope() {
+        scopes.pop();
+    }
+
+    // 声明和定义分成两步，这样可以发现 var a = a; 这种在初始化器中读取自己的情况
+    private void declare(Token name) {
+        if (scopes.isEmpty()) return;
+        Scope scope = scopes.peek();
+        if (scope.slots.containsKey(name.getLexeme())) {
+            Lox.error(name, "Already a variable with this name in this scope.");
+            return;
+        }
+        scope.slots.put(name.getLexeme(), scope.slots.size());
+        scope.defined.put(name.getLexeme(), false);
+    }
+
+    private void define(Token name) {
+        if (scopes.isEmpty()) return;
+        scopes.peek().defined.put(name.getLexeme(), true);
+    }
+
+    // 从最内层作用域向外找，找到了就记录(depth, slot)，找不到就是全局变量
+    private void resolveLocal(Expr expr, Token name) {
+        if (interpreter == null) return;
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).slots.get(name.getLexeme());
+            if (slot != null) {
+                interpreter.resolve(expr, scopes.size() - 1 - i, slot);
+                return;
+            }
+        }
+        for (int i = enclosing.length - 1; i >= 0; i--) {
+            Integer slot = enclosing[i].slots.get(name.getLexeme());
+            if (slot != null && slot < enclosingSizes[i]) {
+                interpreter.resolve(expr, scopes.size() + enclosing.length - 1 - i, slot);
+                return;
+            }
+        }
+        interpreter.resolveGlobal(expr, name);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt instanceof LazyBlock lazy && !lazy.isParsed()) {
+            if (interpreter == null) return null;
+            lazy.resolveWhenParsed(new Resolver(this));
+            return null;
+        }
+        resolveBlock(stmt, LazyBlock.statementsOf(stmt));
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        if (stmt.elseBranch != null) resolve(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        declare(stmt.name);
+        if (stmt.initializer != null) {
+            resolve(stmt.initializer);
+        }
+        define(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        resolveLocal(expr, expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (!scopes.isEmpty() && scopes.peek().defined.get(expr.name.getLexeme()) == Boolean.FALSE) {
+            Lox.error(expr.name, "Can't read local variable in its own initializer.");
+        }
+        resolveLocal(expr, expr.name);
+        return null;
+    }
+}
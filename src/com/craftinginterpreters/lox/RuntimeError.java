@@ -2,12 +2,26 @@ package com.craftinginterpreters.lox;
 
 public class RuntimeError extends RuntimeException {
     private final Token token;
+    private final int line;
 
     public RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
+        this.line = token.getLine();
     }
+
+    // 字节码虚拟机运行时只有指令对应的行号，没有token
+    public RuntimeError(int line, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
+    }
+
     public Token getToken() {
         return token;
     }
+
+    public int getLine() {
+        return line;
+    }
 }
@@ -1,9 +1,7 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /*
 scanner的核心是一个循环。从源码的第一个字符开始，scanner找到这个字符应该属于的词素，然后消费它以及后续所有属于这个词素一部分的字符。
@@ -19,83 +17,196 @@ scanner的核心是一个循环。从源码的第一个字符开始，scanner找
  */
 public class Scanner {
 
-    private final String source;
+    // 可以是String，也可以是MappedSource这样直接建立在内存映射文件上的视图
+    private final CharSequence source;
 
-    private final List<Token> tokens = new ArrayList<>();
+    // scanToken()每次最多产生一个token，放在这里由nextToken()取走
+    private Token produced;
+    // scanTokenBuffer()时token直接写进这里，不创建Token对象
+    private TokenBuffer buffer;
 
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    private static final Map<String,TokenType> keywords;
+    // 成块跳过空白、注释和字符串内容的快速路径，不可用时为null，走逐字符扫描
+    private final BlockSkipper skipper;
+
+    // ParallelScanner给每个分块一个BufferedErrorReporter，确认分块的扫描结果有效后再按顺序报告
+    private final ErrorReporter reporter;
+    // 扫描到结尾时还没闭合的字符串的起始位置和起始行，没有则为-1
+    private int unterminatedStart = -1;
+    private int unterminatedLine;
+
+    /*
+     * 字符类别表。scanToken()先把当前字符映射成类别，再按类别跳到对应的处理代码，
+     * 相当于状态机的起始状态上的转移表；标识符、数字的后续字符也通过这张表判断，不再做多次区间比较。
+     * 非ASCII字符都归为OTHER。
+     */
+    private static final byte OTHER = 0;
+    private static final byte SPACE = 1;
+    private static final byte NEWLINE = 2;
+    private static final byte DIGIT = 3;
+    private static final byte ALPHA = 4;
+    private static final byte QUOTE = 5;
+    private static final byte SLASH = 6;
+    // 只有一个字符的token
+    private static final byte SINGLE = 7;
+    // 后面可以跟一个'='的token：! = < >
+    private static final byte EQUAL_SUFFIX = 8;
+
+    private static final byte[] CHAR_CLASS = new byte[128];
+    // SINGLE和EQUAL_SUFFIX类字符单独出现时的token类型
+    private static final TokenType[] ONE_CHAR_TOKENS = new TokenType[128];
+    // EQUAL_SUFFIX类字符后面跟着'='时的token类型
+    private static final TokenType[] EQUAL_TOKENS = new TokenType[128];
+
     static {
-        keywords = new HashMap<>();
-        keywords.put("and",TokenType.AND);
-        keywords.put("class",TokenType.CLASS);
-        keywords.put("else",TokenType.ELSE);
-        keywords.put("false",TokenType.FALSE);
-        keywords.put("for",TokenType.FOR);
-        keywords.put("fun",TokenType.FUN);
-        keywords.put("if",TokenType.IF);
-        keywords.put("nil",TokenType.NIL);
-        keywords.put("or",TokenType.OR);
-        keywords.put("print",TokenType.PRINT);
-        keywords.put("return",TokenType.RETURN);
-        keywords.put("super",TokenType.SUPER);
-        keywords.put("this",TokenType.THIS);
-        keywords.put("true",TokenType.TRUE);
-        keywords.put("var",TokenType.VAR);
-        keywords.put("while",TokenType.WHILE);
-    }
-
-    public Scanner(String source) {
+        CHAR_CLASS[' '] = SPACE;
+        CHAR_CLASS['\r'] = SPACE;
+        CHAR_CLASS['\t'] = SPACE;
+        CHAR_CLASS['\n'] = NEWLINE;
+        for (char c = '0'; c <= '9'; c++) CHAR_CLASS[c] = DIGIT;
+        for (char c = 'a'; c <= 'z'; c++) CHAR_CLASS[c] = ALPHA;
+        for (char c = 'A'; c <= 'Z'; c++) CHAR_CLASS[c] = ALPHA;
+        CHAR_CLASS['_'] = ALPHA;
+        CHAR_CLASS['"'] = QUOTE;
+        CHAR_CLASS['/'] = SLASH;
+
+        single('(', TokenType.LEFT_PAREN);
+        single(')', TokenType.RIGHT_PAREN);
+        single('{', TokenType.LEFT_BRACE);
+        single('}', TokenType.RIGHT_BRACE);
+        single(',', TokenType.COMMA);
+        single('.', TokenType.DOT);
+        single('-', TokenType.MINUS);
+        single('+', TokenType.PLUS);
+        single(';', TokenType.SEMICOLON);
+        single('*', TokenType.STAR);
+
+        equalSuffix('!', TokenType.BANG, TokenType.BANG_EQUAL);
+        equalSuffix('=', TokenType.EQUAL, TokenType.EQUAL_EQUAL);
+        equalSuffix('<', TokenType.LESS, TokenType.LESS_EQUAL);
+        equalSuffix('>', TokenType.GREATER, TokenType.GREATER_EQUAL);
+    }
+
+    private static void single(char c, TokenType type) {
+        CHAR_CLASS[c] = SINGLE;
+        ONE_CHAR_TOKENS[c] = type;
+    }
+
+    private static void equalSuffix(char c, TokenType alone, TokenType withEqual) {
+        CHAR_CLASS[c] = EQUAL_SUFFIX;
+        ONE_CHAR_TOKENS[c] = alone;
+        EQUAL_TOKENS[c] = withEqual;
+    }
+
+    private static byte classOf(char c) {
+        return c < 128 ? CHAR_CLASS[c] : OTHER;
+    }
+
+    // 数字字面量快速路径用到的10的幂，10^22以内都可以用double精确表示
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    public Scanner(CharSequence source) {
+        this(source, ErrorReporter.LOX);
+    }
+
+    Scanner(CharSequence source, ErrorReporter reporter) {
         this.source = source;
+        this.skipper = BlockSkipper.forSource(source);
+        this.reporter = reporter;
+    }
+
+    int line() {
+        return line;
+    }
+
+    // 最近扫描的token在源码中的起止位置，IncrementalParser用来记录每个声明覆盖的范围
+    int tokenStart() {
+        return start;
+    }
+
+    int tokenEnd() {
+        return current;
+    }
+
+    int unterminatedStart() {
+        return unterminatedStart;
+    }
+
+    int unterminatedLine() {
+        return unterminatedLine;
     }
 
     public List<Token> scanTokens() {
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.getType() != TokenType.EOF);
+        return tokens;
+    }
+
+    /*
+     * 扫描整个源码到紧凑的TokenBuffer中，给Parser使用。
+     * 容量按平均每4个字符一个token预估，不够时再扩容。
+     */
+    TokenBuffer scanTokenBuffer() {
+        buffer = new TokenBuffer(source, source.length() / 4);
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+        buffer.add(TokenType.EOF, current, current, line, 0);
+        TokenBuffer result = buffer;
+        buffer = null;
+        return result;
+    }
+
+    /*
+     * 拉取式的接口：每次调用返回下一个token，源码结束后一直返回EOF token。
+     * 流式模式下Parser直接从这里按需取token，不需要先生成完整的token列表。
+     */
+    Token nextToken() {
+        while (!isAtEnd()) {
+            start = current;
+            //当前token开始之前的字符不会再用到了
+            if (source instanceof ReaderSource reader) reader.release(start);
+            scanToken();
+            if (produced != null) {
+                Token token = produced;
+                produced = null;
+                return token;
+            }
+        }
+        return new Token(TokenType.EOF, "", null, line);
     }
 
     private void scanToken() {
         char c = advance();
-        switch (c) {
-            //single char token
-            case '(':
-                addToken(TokenType.LEFT_PAREN);
-                break;
-            case ')':
-                addToken(TokenType.RIGHT_PAREN);
-                break;
-            case '{':
-                addToken(TokenType.LEFT_BRACE);
-                break;
-            case '}':
-                addToken(TokenType.RIGHT_BRACE);
-                break;
-            case ',':
-                addToken(TokenType.COMMA);
-                break;
-            case '.':
-                addToken(TokenType.DOT);
-                break;
-            case '-':
-                addToken(TokenType.MINUS);
+        switch (classOf(c)) {
+            case SPACE:
+                //忽略空白符
+                skipWhitespace();
                 break;
-            case '+':
-                addToken(TokenType.PLUS);
+            case NEWLINE:
+                //换行增加行数
+                line++;
+                skipWhitespace();
                 break;
-            case ';':
-                addToken(TokenType.SEMICOLON);
+            case SINGLE:
+                addToken(ONE_CHAR_TOKENS[c]);
                 break;
-            case '*':
-                addToken(TokenType.STAR);
+            case EQUAL_SUFFIX:
+                //一个或者两个char的token
+                addToken(match('=') ? EQUAL_TOKENS[c] : ONE_CHAR_TOKENS[c]);
                 break;
-            case '/':
+            case SLASH:
                 /*
                 处理除法操作符的时候，要考虑注释文本的情况，如果前向操作符依旧是/，那么说明这是单行注释
                 单行注释的处理就会一直消费字符直到一行结束。
@@ -103,43 +214,29 @@ public class Scanner {
                  */
                 if(match('/')){
                  // "//"此符号忽略整行 ，没有处理"/**/"这种
-                 while(peek() !='\n'&& !isAtEnd()) advance();
+                 if(skipper != null){
+                     current = skipper.findNewline(current);
+                 }else{
+                     while(peek() !='\n'&& !isAtEnd()) advance();
+                 }
                 }else{
                     addToken(TokenType.SLASH);
                 }
                 break;
-            //一个或者两个char的token
-            case '!':
-                addToken(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
-                break;
-            case '=':
-                addToken(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
-                break;
-            case '<':
-                addToken(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
-                break;
-            case '>':
-                addToken(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
+            case QUOTE:
+                string();
                 break;
-            case '\r':
-            case '\t':
-            case ' ':
-                //忽略空白符
+            case DIGIT:
+                number(c);
                 break;
-            case '\n':
-                //换行增加行数
-                line++;
+            case ALPHA:
+                identifier();
                 break;
-            case '"':string();break;
             default:
-                //由于每个十进制数字都增加一个case很繁琐，因此就放到default中增加一个判断
-                if(isDigit(c)){
-                    //如果是数字，就开始处理整个数字
-                    number();
-                }else if(isAlpha(c)){
-                    identifier();
-                }else{
-                    Lox.error(line, "Unexpected character.");
+                error("Unexpected character.");
+                //按字节扫描UTF-8源码时，一个非ASCII字符占多个字节，只报告一次
+                if(source instanceof MappedSource){
+                    while(MappedSource.isContinuation(peek())) advance();
                 }
                 break;
         }
@@ -150,31 +247,66 @@ public class Scanner {
     * 这里同时创建了Token以及解释器后面会使用的实际字符串值。如果要支持转义序列(escape sequences)，我们需要在这里反转义
     */
     private void string() {
+        int stringLine = line;
         //直到碰到第二个'"'以及没有到结尾，就一直消费字符串
+        if(skipper != null){
+            current = skipper.findQuote(current);
+            line += skipper.newlines();
+        }
         while (peek() !='"' && !isAtEnd()){
             if(peek() =='\n')line++;
             advance();
         }
         //如果到结尾还没有遇到第二个'"'，就报错
         if(isAtEnd()){
-            Lox.error(line,"Unterminated string.");
+            unterminatedStart = start;
+            unterminatedLine = stringLine;
+            error("Unterminated string.");
             return;
         }
         //消费第二个'"'
         advance();
-        //截取前后双引号内的数据
-        String value = source.substring(start+1,current-1);
+        //截取前后双引号内的数据，写入TokenBuffer时不需要，由TokenBuffer按需截取
+        String value = buffer == null ? source.subSequence(start+1,current-1).toString() : null;
         addToken(TokenType.STRING,value);
     }
 
 
+    private void error(String message) {
+        reporter.error(line, message);
+    }
+
+    /*
+     * 连续的空白(缩进、空行)交给skipper成块跳过。只有一个空白字符时不值得启动向量比较，
+     * 下一个字符不是空白就直接返回；没有skipper时每个空白字符还是由scanToken()逐个处理。
+     */
+    private void skipWhitespace() {
+        if (skipper == null) return;
+        char next = peek();
+        if (next != ' ' && next != '\t' && next != '\r' && next != '\n') return;
+        current = skipper.skipWhitespace(current);
+        line += skipper.newlines();
+    }
+
     private void addToken(TokenType tokenType) {
         addToken(tokenType, null);
     }
 
     private void addToken(TokenType tokenType, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(tokenType, text, literal, line));
+        if (buffer != null) {
+            buffer.add(tokenType, start, current, line, 0);
+            return;
+        }
+        String text = source.subSequence(start, current).toString();
+        produced = new Token(tokenType, text, literal, line);
+    }
+
+    private void addNumber(double value) {
+        if (buffer != null) {
+            buffer.add(TokenType.NUMBER, start, current, line, value);
+            return;
+        }
+        addToken(TokenType.NUMBER, value);
     }
 
     private char advance() {
@@ -196,7 +328,7 @@ public class Scanner {
     }
     //我们是可以给peek改造成接收一个参数表示前瞻字符的数量，但是单独定一个peekNext的原因是我们想要明确的表示我们的scanner最多前看两个字符
     private char peekNext() {
-        if(current+1>source.length()) return '\0';
+        if(current+1>=source.length()) return '\0';
         return source.charAt(current+1);
     }
 
@@ -217,7 +349,7 @@ public class Scanner {
     但是后者的实现就会有很多奇怪的事情，特别是如果我们允许数字上可以有方法，比如"12.sqrt()"
      */
     private boolean isDigit(char c) {
-        return c >= '0' && c <= '9';
+        return classOf(c) == DIGIT;
     }
 
 
@@ -226,37 +358,92 @@ public class Scanner {
     如果确实有小数。我们就继续尽可能的消费数字。
     由于要越过十进制点查看，因此我们需要向前看第二个字符，因为除非我们确认'.'后面有一个数字，否则我们不想消费'.'，
     因此，需要一个peekNext方法。
-    最后，我们转换整个词素为它的数字值。
+    读取数字的同时就把所有数字累加成一个整数mantissa，并记下小数位数scale，值就是mantissa / 10^scale。
+    数字不超过15位时mantissa和10^scale都能用double精确表示，一次除法的结果是正确舍入的，和Double.parseDouble一致；
+    更长的数字才回退到截取词素再解析。
     注意：书中的scanner本身会把11a这种拆分为 11 和 a。其中11是数字而a是标识符。scanner不处理这个问题，他会持续消费输入
      */
-    private void number() {
-        while(isDigit(peek())) advance();
+    private void number(char first) {
+        long mantissa = first - '0';
+        int digits = 1;
+        while(isDigit(peek())){
+            mantissa = mantissa * 10 + (advance() - '0');
+            digits++;
+        }
+        int scale = 0;
         if(peek()=='.'&&isDigit(peekNext())){
             advance();
-            while (isDigit(peek()))advance();
+            while (isDigit(peek())){
+                mantissa = mantissa * 10 + (advance() - '0');
+                digits++;
+                scale++;
+            }
+        }
+        if(digits <= 15){
+            addNumber(mantissa / POWERS_OF_TEN[scale]);
+        }else{
+            addNumber(Double.parseDouble(source.subSequence(start,current).toString()));
         }
-        addToken(TokenType.NUMBER,Double.parseDouble(source.substring(start,current)));
-    }
-
-    //标识符以英文字符或者_开始
-    private boolean isAlpha(char c) {
-        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c == '_');
     }
 
     private boolean isAlphaNumeric(char c) {
-        return isAlpha(c) || isDigit(c) ;
+        byte charClass = classOf(c);
+        return charClass == ALPHA || charClass == DIGIT;
     }
+
     private void identifier() {
         while(isAlphaNumeric(peek())){
             advance();
         }
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if(type == null) {
-            type = TokenType.IDENTIFIER;
+        addToken(keyword());
+    }
+
+    /*
+     * 关键字识别不截取字符串也不查HashMap，而是一棵按字符展开的trie：
+     * 先按首字符分支，有共同前缀的(false/for/fun，this/true)再按第二个字符分支，
+     * 最后用checkKeyword逐个字符比较剩下的部分，整个过程没有内存分配。
+     */
+    private TokenType keyword() {
+        switch (source.charAt(start)) {
+            case 'a': return checkKeyword(1, "nd", TokenType.AND);
+            case 'c': return checkKeyword(1, "lass", TokenType.CLASS);
+            case 'e': return checkKeyword(1, "lse", TokenType.ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", TokenType.FALSE);
+                        case 'o': return checkKeyword(2, "r", TokenType.FOR);
+                        case 'u': return checkKeyword(2, "n", TokenType.FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", TokenType.IF);
+            case 'n': return checkKeyword(1, "il", TokenType.NIL);
+            case 'o': return checkKeyword(1, "r", TokenType.OR);
+            case 'p': return checkKeyword(1, "rint", TokenType.PRINT);
+            case 'r': return checkKeyword(1, "eturn", TokenType.RETURN);
+            case 's': return checkKeyword(1, "uper", TokenType.SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", TokenType.THIS);
+                        case 'r': return checkKeyword(2, "ue", TokenType.TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", TokenType.VAR);
+            case 'w': return checkKeyword(1, "hile", TokenType.WHILE);
+        }
+        return TokenType.IDENTIFIER;
+    }
+
+    // 词素从offset开始剩下的部分正好是rest时返回关键字类型，否则就是普通标识符
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return TokenType.IDENTIFIER;
+        for (int i = 0; i < rest.length(); i++) {
+            if (source.charAt(start + offset + i) != rest.charAt(i)) return TokenType.IDENTIFIER;
         }
-        addToken(type);
-    
+        return type;
     }
 
 }
@@ -0,0 +1,487 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/*
+ * 解析结果的磁盘缓存：--cache 把脚本解析出的语法树序列化到脚本旁边的<script>.loxc，
+ * --cache-dir=<dir> 则放到指定目录下以内容哈希命名的文件里。下次运行同一个脚本时内存映射缓存文件直接还原语法树，
+ * 不再扫描和解析源码。
+ *
+ * 缓存的键是FORMAT_VERSION、源码编码和源码字节的SHA-256。脚本改过、换了编码或者解释器的格式版本变了，
+ * 头部记录的键就对不上，缓存被当作过期。缓存文件被截断或者内容损坏(CRC32C校验失败、解码越界)时同样返回null，
+ * 调用方退回到正常解析，并用新的结果覆盖缓存。
+ *
+ * 保存的是Parser的直接输出，优化和变量解析仍然在每次运行时进行，所以--no-optimize等选项不影响缓存。
+ * 只缓存没有语法错误的解析结果。
+ *
+ * 文件格式，整数都是无符号变长编码(varint)，头部除外：
+ *   头部：magic "LOXC"，格式版本(int)，32字节的键，负载长度(int)，负载的CRC32C(int)
+ *   负载：字符串表，常量池，顶层语句个数，按前序排列的语法树
+ * 字符串表保存所有词素和字符串常量，相同的字符串只存一次；常量池保存token和Literal的值，同样去重。
+ * 语法树中每个节点以一个标签字节开头(0表示null)，后面按字段顺序排列子节点和token，
+ * token编码为类型序号、词素在字符串表中的下标、行号和字面量在常量池中的下标。
+ */
+final class ScriptCache {
+    // 语法树或者编码方式有变化时加一，旧的缓存文件随即失效
+    static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+    private static final int KEY_LENGTH = 32;
+    private static final int HEADER_LENGTH = 4 + 4 + KEY_LENGTH + 4 + 4;
+
+    // 节点标签
+    private static final int NULL = 0;
+    private static final int BLOCK = 1;
+    private static final int EXPRESSION = 2;
+    private static final int IF = 3;
+    private static final int PRINT = 4;
+    private static final int VAR = 5;
+    private static final int WHILE = 6;
+    private static final int ASSIGN = 7;
+    private static final int BINARY = 8;
+    private static final int GROUPING = 9;
+    private static final int LITERAL = 10;
+    private static final int LOGICAL = 11;
+    private static final int UNARY = 12;
+    private static final int VARIABLE = 13;
+
+    // 常量标签
+    private static final int CONST_NIL = 0;
+    private static final int CONST_TRUE = 1;
+    private static final int CONST_FALSE = 2;
+    private static final int CONST_NUMBER = 3;
+    private static final int CONST_STRING = 4;
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private final Path file;
+    private final byte[] key;
+
+    private ScriptCache(Path file, byte[] key) {
+        this.file = file;
+        this.key = key;
+    }
+
+    /*
+     * directory为null时缓存文件放在脚本旁边，否则放在directory下，文件名是键的十六进制。
+     * 计算键需要读一遍脚本，这里同样用内存映射，不把源码复制到堆上。
+     */
+    static ScriptCache open(Path script, Path directory, Charset charset) throws IOException {
+        byte[] key = key(script, charset);
+        Path file;
+        if (directory == null) {
+            file = script.resolveSibling(script.getFileName() + ".loxc");
+        } else {
+            StringBuilder name = new StringBuilder(KEY_LENGTH * 2 + 5);
+            for (byte b : key) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            file = directory.resolve(name.append(".loxc").toString());
+        }
+        return new ScriptCache(file, key);
+    }
+
+    private static byte[] key(Path script, Charset charset) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(ByteBuffer.allocate(4).putInt(0, FORMAT_VERSION));
+        digest.update(charset.name().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(script, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Script too large to map: " + script);
+            }
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+        return digest.digest();
+    }
+
+    // 缓存不存在、过期或者损坏时返回null
+    List<Stmt> load() {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) return null;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) return null;
+            for (int i = 0; i < KEY_LENGTH; i++) {
+                if (buffer.get() != key[i]) return null;
+            }
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length != buffer.remaining()) return null;
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.slice());
+            if ((int) crc.getValue() != checksum) return null;
+            return new Decoder(buffer).decode();
+        } catch (RuntimeException e) {
+            // 校验通过但解码失败，说明是不同版本的代码写的同版本号文件，同样当作损坏
+            return null;
+        }
+    }
+
+    /*
+     * 先写到同一目录下的临时文件再原子地改名，并发运行同一个脚本的进程不会读到写了一半的文件。
+     * 缓存只是优化，写不进去(目录只读、磁盘满)时什么也不做。
+     */
+    void store(List<Stmt> statements) {
+        byte[] payload = new Encoder().encode(statements);
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).put(key).putInt(payload.length).putInt((int) crc.getValue());
+        Path temp = null;
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                out.write(header.array());
+                out.write(payload);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /*
+     * 遍历语法树写出节点，同时收集字符串表和常量池。
+     * 两张表要写在语法树前面，所以语法树先写到单独的缓冲区里，最后再拼起来。
+     */
+    private static final class Encoder implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final ByteArrayOutputStream tree = new ByteArrayOutputStream();
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> stringTable = new ArrayList<>();
+        // HashMap允许null键，nil也在这里去重
+        private final Map<Object, Integer> constants = new HashMap<>();
+        private final List<Object> constantPool = new ArrayList<>();
+
+        byte[] encode(List<Stmt> statements) {
+            writeVarint(tree, statements.size());
+            for (Stmt statement : statements) {
+                stmt(statement);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(tree.size() + stringTable.size() * 8);
+            writeVarint(out, stringTable.size());
+            for (String string : stringTable) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, bytes.length);
+                out.writeBytes(bytes);
+            }
+            writeVarint(out, constantPool.size());
+            for (Object value : constantPool) {
+                if (value == null) {
+                    out.write(CONST_NIL);
+                } else if (value instanceof Boolean bool) {
+                    out.write(bool ? CONST_TRUE : CONST_FALSE);
+                } else if (value instanceof Double number) {
+                    out.write(CONST_NUMBER);
+                    long bits = Double.doubleToRawLongBits(number);
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        out.write((int) (bits >>> shift));
+                    }
+                } else {
+                    out.write(CONST_STRING);
+                    writeVarint(out, string((String) value));
+                }
+            }
+            out.writeBytes(tree.toByteArray());
+            return out.toByteArray();
+        }
+
+        private void stmt(Stmt stmt) {
+            if (stmt == null) {
+                tree.write(NULL);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void expr(Expr expr) {
+            if (expr == null) {
+                tree.write(NULL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void token(Token token) {
+            writeVarint(tree, token.getType().ordinal());
+            writeVarint(tree, string(token.getLexeme()));
+            writeVarint(tree, token.getLine());
+            writeVarint(tree, constant(token.getLiteral()));
+        }
+
+        private int string(String string) {
+            Integer index = strings.get(string);
+            if (index == null) {
+                index = stringTable.size();
+                strings.put(string, index);
+                stringTable.add(string);
+            }
+            return index;
+        }
+
+        private int constant(Object value) {
+            if (value != null && !(value instanceof Boolean || value instanceof Double || value instanceof String)) {
+                throw new IllegalArgumentException("Cannot cache constant " + value);
+            }
+            Integer index = constants.get(value);
+            if (index == null) {
+                index = constantPool.size();
+                constants.put(value, index);
+                constantPool.add(value);
+                // 字符串表在常量池之前写出，字符串常量要在这时就放进字符串表
+                if (value instanceof String string) string(string);
+            }
+            return index;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            List<Stmt> statements = LazyBlock.statementsOf(stmt);
+            tree.write(BLOCK);
+            writeVarint(tree, statements.size());
+            for (Stmt statement : statements) {
+                stmt(statement);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tree.write(EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tree.write(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            tree.write(PRINT);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            tree.write(VAR);
+            token(stmt.name);
+            expr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tree.write(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tree.write(ASSIGN);
+            token(expr.name);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tree.write(BINARY);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tree.write(GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tree.write(LITERAL);
+            writeVarint(tree, constant(expr.value));
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tree.write(LOGICAL);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tree.write(UNARY);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tree.write(VARIABLE);
+            token(expr.name);
+            return null;
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /*
+     * 直接从映射的缓冲区读。所有下标都经过检查，损坏的文件只会抛出RuntimeException，由load处理。
+     */
+    private static final class Decoder {
+        private final ByteBuffer buffer;
+        private String[] strings;
+        private Object[] constants;
+
+        Decoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        List<Stmt> decode() {
+            strings = new String[count()];
+            // 字符串表中相同的内容只有一份，还原出的词素也共享同一个String
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[count()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            constants = new Object[count()];
+            for (int i = 0; i < constants.length; i++) {
+                constants[i] = switch (buffer.get()) {
+                    case CONST_NIL -> null;
+                    case CONST_TRUE -> Boolean.TRUE;
+                    case CONST_FALSE -> Boolean.FALSE;
+                    case CONST_NUMBER -> buffer.getDouble();
+                    case CONST_STRING -> strings[readVarint()];
+                    default -> throw new IllegalStateException("Bad constant tag.");
+                };
+            }
+            List<Stmt> statements = statements();
+            if (buffer.hasRemaining()) throw new IllegalStateException("Trailing bytes.");
+            return statements;
+        }
+
+        private List<Stmt> statements() {
+            int count = count();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(stmt());
+            }
+            return statements;
+        }
+
+        private Stmt stmt() {
+            int tag = buffer.get();
+            return switch (tag) {
+                case NULL -> null;
+                case BLOCK -> new Stmt.Block(statements());
+                case EXPRESSION -> new Stmt.Expression(expr());
+                case IF -> new Stmt.If(expr(), stmt(), stmt());
+                case PRINT -> new Stmt.Print(expr());
+                case VAR -> new Stmt.Var(token(), expr());
+                case WHILE -> new Stmt.While(expr(), stmt());
+                default -> throw new IllegalStateException("Bad statement tag " + tag + ".");
+            };
+        }
+
+        private Expr expr() {
+            int tag = buffer.get();
+            return switch (tag) {
+                case NULL -> null;
+                case ASSIGN -> new Expr.Assign(token(), expr());
+                case BINARY -> new Expr.Binary(expr(), token(), expr());
+                case GROUPING -> new Expr.Grouping(expr());
+                case LITERAL -> new Expr.Literal(constants[readVarint()]);
+                case LOGICAL -> new Expr.Logical(expr(), token(), expr());
+                case UNARY -> new Expr.Unary(token(), expr());
+                case VARIABLE -> new Expr.Variable(token());
+                default -> throw new IllegalStateException("Bad expression tag " + tag + ".");
+            };
+        }
+
+        private Token token() {
+            TokenType type = TOKEN_TYPES[readVarint()];
+            String lexeme = strings[readVarint()];
+            int line = readVarint();
+            return new Token(type, lexeme, constants[readVarint()], line);
+        }
+
+        // 元素个数不会超过剩余的字节数，提前检查以免损坏的文件让这里分配巨大的数组
+        private int count() {
+            int count = readVarint();
+            if (count > buffer.remaining()) throw new IllegalStateException("Bad count.");
+            return count;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    if (value < 0) throw new IllegalStateException("Bad varint.");
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Bad varint.");
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * 把经过Resolver的Stmt/Expr树翻译成record形式的SealedStmt/SealedExpr树(由GenerateAst --records生成)。
+ * 变量引用直接带上Resolver算出的(depth, slot)，全局变量的depth是-1，带一个自己的GlobalSite；
+ * 块带上Resolver记录的BlockFrame，字面量预先转换成Values的表示。
+ * 和NodeCompiler一样，这里是唯一一次对Expr/Stmt做Visitor分派，执行时只看record树，见SealedInterpreter。
+ */
+class SealedCompiler implements Expr.Visitor<SealedExpr>, Stmt.Visitor<SealedStmt> {
+    private final Interpreter resolved;
+    private int blockDepth = 0;
+
+    SealedCompiler(Interpreter resolved) {
+        this.resolved = resolved;
+    }
+
+    List<SealedStmt> compile(List<Stmt> statements) {
+        List<SealedStmt> program = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            program.add(statement.accept(this));
+        }
+        return program;
+    }
+
+    private SealedExpr compile(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    @Override
+    public SealedStmt visitBlockStmt(Stmt.Block stmt) {
+        blockDepth++;
+        List<SealedStmt> body = compile(LazyBlock.statementsOf(stmt));
+        blockDepth--;
+        // 没有经过Resolver的块(还没解析的LazyBlock)不会到这里，--sealed不使用延迟解析
+        return new SealedStmt.Block(List.copyOf(body), resolved.frameOf(stmt));
+    }
+
+    @Override
+    public SealedStmt visitExpressionStmt(Stmt.Expression stmt) {
+        return new SealedStmt.Expression(compile(stmt.expression));
+    }
+
+    @Override
+    public SealedStmt visitIfStmt(Stmt.If stmt) {
+        return new SealedStmt.If(compile(stmt.condition), stmt.thenBranch.accept(this),
+                stmt.elseBranch == null ? null : stmt.elseBranch.accept(this));
+    }
+
+    @Override
+    public SealedStmt visitPrintStmt(Stmt.Print stmt) {
+        return new SealedStmt.Print(compile(stmt.expression));
+    }
+
+    @Override
+    public SealedStmt visitVarStmt(Stmt.Var stmt) {
+        return new SealedStmt.Var(stmt.name, compile(stmt.initializer), blockDepth > 0);
+    }
+
+    @Override
+    public SealedStmt visitWhileStmt(Stmt.While stmt) {
+        return new SealedStmt.While(compile(stmt.condition), stmt.body.accept(this));
+    }
+
+    @Override
+    public SealedExpr visitAssignExpr(Expr.Assign expr) {
+        SealedExpr value = compile(expr.value);
+        Interpreter.Local local = resolved.localOf(expr);
+        if (local != null) {
+            return new SealedExpr.Assign(expr.name, local.depth(), local.slot(), null, value);
+        }
+        return new SealedExpr.Assign(expr.name, -1, -1, new Environment.GlobalSite(expr.name), value);
+    }
+
+    @Override
+    public SealedExpr visitBinaryExpr(Expr.Binary expr) {
+        return new SealedExpr.Binary(compile(expr.left), expr.operator, compile(expr.right));
+    }
+
+    @Override
+    public SealedExpr visitGroupingExpr(Expr.Grouping expr) {
+        return new SealedExpr.Grouping(compile(expr.expression));
+    }
+
+    @Override
+    public SealedExpr visitLiteralExpr(Expr.Literal expr) {
+        return new SealedExpr.Literal(Values.fromObject(expr.value), expr.value);
+    }
+
+    @Override
+    public SealedExpr visitLogicalExpr(Expr.Logical expr) {
+        return new SealedExpr.Logical(compile(expr.left), expr.operator, compile(expr.right));
+    }
+
+    @Override
+    public SealedExpr visitUnaryExpr(Expr.Unary expr) {
+        return new SealedExpr.Unary(expr.operator, compile(expr.right));
+    }
+
+    @Override
+    public SealedExpr visitVariableExpr(Expr.Variable expr) {
+        Interpreter.Local local = resolved.localOf(expr);
+        if (local != null) {
+            return new SealedExpr.Variable(expr.name, local.depth(), local.slot(), null);
+        }
+        return new SealedExpr.Variable(expr.name, -1, -1, new Environment.GlobalSite(expr.name));
+    }
+}
@@ -0,0 +1,59 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+sealed interface SealedExpr {
+   interface Visitor<R> {
+   R visitAssignSealedExpr(Assign sealedexpr);
+   R visitBinarySealedExpr(Binary sealedexpr);
+   R visitGroupingSealedExpr(Grouping sealedexpr);
+   R visitLiteralSealedExpr(Literal sealedexpr);
+   R visitLogicalSealedExpr(Logical sealedexpr);
+   R visitUnarySealedExpr(Unary sealedexpr);
+   R visitVariableSealedExpr(Variable sealedexpr);
+  }
+  record Assign(Token name, int depth, int slot, Environment.GlobalSite global, SealedExpr value) implements SealedExpr {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitAssignSealedExpr(this);
+    }
+  }
+  record Binary(SealedExpr left, Token operator, SealedExpr right) implements SealedExpr {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitBinarySealedExpr(this);
+    }
+  }
+  record Grouping(SealedExpr expression) implements SealedExpr {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitGroupingSealedExpr(this);
+    }
+  }
+  record Literal(long value, Object ref) implements SealedExpr {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLiteralSealedExpr(this);
+    }
+  }
+  record Logical(SealedExpr left, Token operator, SealedExpr right) implements SealedExpr {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLogicalSealedExpr(this);
+    }
+  }
+  record Unary(Token operator, SealedExpr right) implements SealedExpr {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitUnarySealedExpr(this);
+    }
+  }
+  record Variable(Token name, int depth, int slot, Environment.GlobalSite global) implements SealedExpr {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitVariableSealedExpr(this);
+    }
+  }
+
+   <R> R accept(Visitor<R> visitor);
+}
@@ -0,0 +1,323 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/*
+ * 执行SealedCompiler翻译出的record树，两种分派方式：
+ * - Switching(--sealed)：对sealed接口做穷尽的模式匹配switch，每个节点一次类型分派；
+ * - Visiting(--sealed-visitor)：和Interpreter一样通过accept/Visitor，每个节点两次虚调用。
+ * 两者只有evaluate/execute不同，每种节点的执行逻辑是共用的，所以对比的只是分派本身，
+ * 见tools/DispatchBenchmark。值的表示和Interpreter相同：求值返回Values的标记，对象的引用在ref中。
+ * 全局作用域在REPL的多次输入之间保留。
+ */
+abstract class SealedInterpreter {
+    private final Environment globals = new Environment();
+    Environment environment = globals;
+    // 最近一次求值结果是对象时的引用
+    Object ref;
+
+    static SealedInterpreter create(boolean visitor) {
+        return visitor ? new Visiting() : new Switching();
+    }
+
+    void interpret(List<Stmt> statements, Interpreter resolved) {
+        List<SealedStmt> program = new SealedCompiler(resolved).compile(statements);
+        try {
+            for (SealedStmt statement : program) {
+                execute(statement);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtiemError(error);
+        }
+    }
+
+    abstract long evaluate(SealedExpr expr);
+
+    abstract void execute(SealedStmt stmt);
+
+    static final class Switching extends SealedInterpreter {
+        @Override
+        long evaluate(SealedExpr expr) {
+            return switch (expr) {
+                case SealedExpr.Assign assign -> assign(assign);
+                case SealedExpr.Binary binary -> binary(binary);
+                case SealedExpr.Grouping grouping -> evaluate(grouping.expression());
+                case SealedExpr.Literal literal -> literal(literal);
+                case SealedExpr.Logical logical -> logical(logical);
+                case SealedExpr.Unary unary -> unary(unary);
+                case SealedExpr.Variable variable -> variable(variable);
+            };
+        }
+
+        @Override
+        void execute(SealedStmt stmt) {
+            switch (stmt) {
+                case SealedStmt.Block block -> block(block);
+                case SealedStmt.Expression expression -> evaluate(expression.expression());
+                case SealedStmt.If ifStmt -> ifStmt(ifStmt);
+                case SealedStmt.Print print -> print(print);
+                case SealedStmt.Var var -> var(var);
+                case SealedStmt.While whileStmt -> whileStmt(whileStmt);
+            }
+        }
+    }
+
+    static final class Visiting extends SealedInterpreter
+            implements SealedExpr.Visitor<Void>, SealedStmt.Visitor<Void> {
+        private long value;
+
+        @Override
+        long evaluate(SealedExpr expr) {
+            expr.accept(this);
+            return value;
+        }
+
+        @Override
+        void execute(SealedStmt stmt) {
+            stmt.accept(this);
+        }
+
+        @Override
+        public Void visitAssignSealedExpr(SealedExpr.Assign expr) {
+            value = assign(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitBinarySealedExpr(SealedExpr.Binary expr) {
+            value = binary(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingSealedExpr(SealedExpr.Grouping expr) {
+            value = evaluate(expr.expression());
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralSealedExpr(SealedExpr.Literal expr) {
+            value = literal(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalSealedExpr(SealedExpr.Logical expr) {
+            value = logical(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitUnarySealedExpr(SealedExpr.Unary expr) {
+            value = unary(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableSealedExpr(SealedExpr.Variable expr) {
+            value = variable(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockSealedStmt(SealedStmt.Block stmt) {
+            block(stmt);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionSealedStmt(SealedStmt.Expression stmt) {
+            evaluate(stmt.expression());
+            return null;
+        }
+
+        @Override
+        public Void visitIfSealedStmt(SealedStmt.If stmt) {
+            ifStmt(stmt);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintSealedStmt(SealedStmt.Print stmt) {
+            print(stmt);
+            return null;
+        }
+
+        @Override
+        public Void visitVarSealedStmt(SealedStmt.Var stmt) {
+            var(stmt);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileSealedStmt(SealedStmt.While stmt) {
+            whileStmt(stmt);
+            return null;
+        }
+    }
+
+    final long assign(SealedExpr.Assign expr) {
+        long value = evaluate(expr.value());
+        if (expr.global() == null) {
+            Environment frame = environment.ancestor(expr.depth());
+            frame.values[expr.slot()] = value;
+            frame.refs[expr.slot()] = ref;
+        } else {
+            Environment.Global global = expr.global().cell(globals);
+            global.value = value;
+            global.ref = ref;
+        }
+        return value;
+    }
+
+    final long variable(SealedExpr.Variable expr) {
+        if (expr.global() == null) {
+            Environment frame = environment.ancestor(expr.depth());
+            ref = frame.refs[expr.slot()];
+            return frame.values[expr.slot()];
+        }
+        Environment.Global global = expr.global().cell(globals);
+        ref = global.ref;
+        return global.value;
+    }
+
+    final long literal(SealedExpr.Literal expr) {
+        ref = expr.ref();
+        return expr.value();
+    }
+
+    final long binary(SealedExpr.Binary expr) {
+        long left = evaluate(expr.left());
+        Object leftRef = ref;
+        long right = evaluate(expr.right());
+        Object rightRef = ref;
+        Token operator = expr.operator();
+        return switch (operator.getType()) {
+            case MINUS -> {
+                checkNumberOperands(operator, left, right);
+                yield Values.number(Values.asNumber(left) - Values.asNumber(right));
+            }
+            case SLASH -> {
+                checkNumberOperands(operator, left, right);
+                yield Values.number(Values.asNumber(left) / Values.asNumber(right));
+            }
+            case STAR -> {
+                checkNumberOperands(operator, left, right);
+                yield Values.number(Values.asNumber(left) * Values.asNumber(right));
+            }
+            case PLUS -> {
+                if (Values.isNumber(left) && Values.isNumber(right)) {
+                    yield Values.number(Values.asNumber(left) + Values.asNumber(right));
+                }
+                if (left == Values.OBJ && right == Values.OBJ
+                        && leftRef instanceof String lString && rightRef instanceof String rString) {
+                    ref = lString + rString;
+                    yield Values.OBJ;
+                }
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+            }
+            case GREATER -> {
+                checkNumberOperands(operator, left, right);
+                yield Values.bool(Values.asNumber(left) > Values.asNumber(right));
+            }
+            case GREATER_EQUAL -> {
+                checkNumberOperands(operator, left, right);
+                yield Values.bool(Values.asNumber(left) >= Values.asNumber(right));
+            }
+            case LESS -> {
+                checkNumberOperands(operator, left, right);
+                yield Values.bool(Values.asNumber(left) < Values.asNumber(right));
+            }
+            case LESS_EQUAL -> {
+                checkNumberOperands(operator, left, right);
+                yield Values.bool(Values.asNumber(left) <= Values.asNumber(right));
+            }
+            case BANG_EQUAL -> Values.bool(!Values.isEqual(left, leftRef, right, rightRef));
+            case EQUAL_EQUAL -> Values.bool(Values.isEqual(left, leftRef, right, rightRef));
+            default -> Values.NIL;
+        };
+    }
+
+    // 短路求值，返回的是操作数本身的值而不是转换后的true/false
+    final long logical(SealedExpr.Logical expr) {
+        long left = evaluate(expr.left());
+        if (expr.operator().getType() == TokenType.OR) {
+            if (Values.isTruthy(left)) return left;
+        } else {
+            if (!Values.isTruthy(left)) return left;
+        }
+        return evaluate(expr.right());
+    }
+
+    final long unary(SealedExpr.Unary expr) {
+        long right = evaluate(expr.right());
+        return switch (expr.operator().getType()) {
+            case MINUS -> {
+                if (!Values.isNumber(right)) throw new RuntimeError(expr.operator(), "Operand must be a number.");
+                yield Values.number(-Values.asNumber(right));
+            }
+            case BANG -> Values.bool(!Values.isTruthy(right));
+            default -> Values.NIL;
+        };
+    }
+
+    private static void checkNumberOperands(Token operator, long left, long right) {
+        if (Values.isNumber(left) && Values.isNumber(right)) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    // 没有声明的块不分配帧，其他块的帧复用方式和Interpreter相同，见Interpreter.BlockFrame
+    final void block(SealedStmt.Block stmt) {
+        Interpreter.BlockFrame block = stmt.frame();
+        if (block.size == 0) {
+            for (SealedStmt statement : stmt.statements()) {
+                execute(statement);
+            }
+            return;
+        }
+        Environment previous = environment;
+        Environment frame = block.enter(previous);
+        try {
+            environment = frame;
+            for (SealedStmt statement : stmt.statements()) {
+                execute(statement);
+            }
+        } finally {
+            environment = previous;
+        }
+        block.exit(frame);
+    }
+
+    final void ifStmt(SealedStmt.If stmt) {
+        if (Values.isTruthy(evaluate(stmt.condition()))) {
+            execute(stmt.thenBranch());
+        } else if (stmt.elseBranch() != null) {
+            execute(stmt.elseBranch());
+        }
+    }
+
+    final void print(SealedStmt.Print stmt) {
+        long value = evaluate(stmt.expression());
+        System.out.println(Values.stringify(value, ref));
+    }
+
+    final void var(SealedStmt.Var stmt) {
+        long value = Values.NIL;
+        Object ref = null;
+        if (stmt.initializer() != null) {
+            value = evaluate(stmt.initializer());
+            ref = this.ref;
+        }
+        if (stmt.local()) {
+            environment.define(value, ref);
+        } else {
+            globals.define(stmt.name(), value, ref);
+        }
+    }
+
+    final void whileStmt(SealedStmt.While stmt) {
+        while (Values.isTruthy(evaluate(stmt.condition()))) {
+            execute(stmt.body());
+        }
+    }
+}
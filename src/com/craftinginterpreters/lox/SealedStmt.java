@@ -0,0 +1,52 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+sealed interface SealedStmt {
+   interface Visitor<R> {
+   R visitBlockSealedStmt(Block sealedstmt);
+   R visitExpressionSealedStmt(Expression sealedstmt);
+   R visitIfSealedStmt(If sealedstmt);
+   R visitPrintSealedStmt(Print sealedstmt);
+   R visitVarSealedStmt(Var sealedstmt);
+   R visitWhileSealedStmt(While sealedstmt);
+  }
+  record Block(List<SealedStmt> statements, Interpreter.BlockFrame frame) implements SealedStmt {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitBlockSealedStmt(this);
+    }
+  }
+  record Expression(SealedExpr expression) implements SealedStmt {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitExpressionSealedStmt(this);
+    }
+  }
+  record If(SealedExpr condition, SealedStmt thenBranch, SealedStmt elseBranch) implements SealedStmt {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIfSealedStmt(this);
+    }
+  }
+  record Print(SealedExpr expression) implements SealedStmt {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitPrintSealedStmt(this);
+    }
+  }
+  record Var(Token name, SealedExpr initializer, boolean local) implements SealedStmt {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitVarSealedStmt(this);
+    }
+  }
+  record While(SealedExpr condition, SealedStmt body) implements SealedStmt {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitWhileSealedStmt(this);
+    }
+  }
+
+   <R> R accept(Visitor<R> visitor);
+}
@@ -0,0 +1,120 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * SSA形式的中间表示，见SsaBuilder(从语法树生成)、SsaOptimizer(优化)、SsaCompiler(生成字节码)和SsaPrinter。
+ *
+ * 一个Unit是连续的若干条顶层语句，由基本块组成。每个值(Value)只被定义一次：
+ * - 局部变量完全消失，读变量直接得到最近一次赋给它的值，控制流汇合处用PHI合并；
+ * - 全局变量还是读写指令(GET_GLOBAL/SET_GLOBAL/DEFINE_GLOBAL)，它们可能因为变量没有定义而报错；
+ * - 局部变量的var和赋值生成COPY，记录"存到变量里"这一步，复写传播之后它们都没有用处了，由死存储消除删掉。
+ * 常量不属于任何块，每个Unit中相同的常量只有一个Value，生成代码时在用到的地方直接压栈。
+ *
+ * 基本块以JUMP、BRANCH或END结束。BRANCH的两个目标都只有这一个前驱(生成时已经拆开了关键边)，
+ * 所以PHI需要的复制总可以放在以JUMP结束的前驱块末尾。
+ * 块按创建顺序编号，除了回边以外所有的边都从编号小的块指向编号大的块。
+ */
+final class Ssa {
+    private Ssa() {}
+
+    enum Op {
+        CONST, PHI, COPY,
+        GET_GLOBAL, SET_GLOBAL, DEFINE_GLOBAL,
+        ADD, SUBTRACT, MULTIPLY, DIVIDE,
+        GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, EQUAL, NOT_EQUAL,
+        NEGATE, NOT, PRINT;
+
+        // 有可见的副作用，不管结果有没有用到都要执行
+        boolean hasEffect() {
+            return this == PRINT || this == SET_GLOBAL || this == DEFINE_GLOBAL;
+        }
+
+        // 没有结果，只是为了副作用
+        boolean isVoid() {
+            return this == PRINT || this == SET_GLOBAL || this == DEFINE_GLOBAL;
+        }
+    }
+
+    enum End { JUMP, BRANCH, END }
+
+    static final class Value {
+        final int id;
+        final Op op;
+        Value[] operands;
+        // 所在的块，常量为null
+        Block block;
+        // 报错时的行号
+        final int line;
+        // GET/SET/DEFINE_GLOBAL的变量名
+        final String name;
+        // CONST的值
+        final Object constant;
+        // 类型推导已经证明了操作数的类型，运算不会报错
+        final boolean typed;
+        // 被优化替换掉之后指向替换它的值
+        Value replacement;
+
+        Value(int id, Op op, Value[] operands, int line, String name, Object constant, boolean typed) {
+            this.id = id;
+            this.op = op;
+            this.operands = operands;
+            this.line = line;
+            this.name = name;
+            this.constant = constant;
+            this.typed = typed;
+        }
+
+        // 可能在运行时报错
+        boolean mayThrow() {
+            return switch (op) {
+                case GET_GLOBAL, SET_GLOBAL -> true;
+                case ADD, SUBTRACT, MULTIPLY, DIVIDE, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, NEGATE -> !typed;
+                default -> false;
+            };
+        }
+    }
+
+    static final class Block {
+        final int id;
+        // 块开头的PHI，操作数和predecessors一一对应
+        final List<Value> phis = new ArrayList<>();
+        final List<Value> instructions = new ArrayList<>();
+        final List<Block> predecessors = new ArrayList<>();
+        End end = End.END;
+        // BRANCH的条件，真值时到successors[0]，否则到successors[1]
+        Value condition;
+        final List<Block> successors = new ArrayList<>();
+        // 支配树，由SsaOptimizer计算
+        Block dominator;
+        final List<Block> dominated = new ArrayList<>();
+
+        Block(int id) {
+            this.id = id;
+        }
+    }
+
+    static final class Unit {
+        // 常量表中代表nil的键
+        private static final Object NIL = new Object();
+
+        final List<Block> blocks = new ArrayList<>();
+        // 已经分配的值的id(包括常量)
+        int values = 0;
+        private final Map<Object, Value> constants = new HashMap<>();
+
+        Value constant(Object value) {
+            return constants.computeIfAbsent(value == null ? NIL : value,
+                    key -> new Value(values++, Op.CONST, new Value[0], 0, null, value, false));
+        }
+    }
+
+    // 沿着替换链找到最终的值
+    static Value resolve(Value value) {
+        while (value.replacement != null) value = value.replacement;
+        return value;
+    }
+}
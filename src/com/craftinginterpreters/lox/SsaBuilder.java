@@ -0,0 +1,316 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * 把语法树翻译成SSA形式(Ssa)，在Optimizer和TypeInference之后运行。
+ * 用的是Braun等人的直接构造法，不需要先算支配边界：
+ * 每个块记录其中每个局部变量的当前值，读变量时在当前块找不到就沿前驱往回找，
+ * 有多个前驱的块放一个PHI。while循环的入口块在循环体翻译完之前还不知道所有前驱("没有封闭")，
+ * 这时先放一个没有操作数的PHI，封闭时再补上。生成的PHI可能是多余的，由SsaOptimizer清除。
+ *
+ * 连续的顶层语句放在同一个Unit中，值的个数超过UNIT_VALUES后开始新的Unit。
+ * 局部变量不会跨越顶层语句，所以Unit之间只通过全局变量传递值。
+ */
+class SsaBuilder implements Expr.Visitor<Ssa.Value>, Stmt.Visitor<Void> {
+    private static final int UNIT_VALUES = 1024;
+
+    private static final class Variable {
+        final String name;
+
+        Variable(String name) {
+            this.name = name;
+        }
+    }
+
+    private final List<Ssa.Unit> units = new ArrayList<>();
+    private Ssa.Unit unit;
+    private Ssa.Block current;
+    // 按块id：块中每个变量的当前值、是否封闭、还没有补操作数的PHI
+    private final List<Map<Variable, Ssa.Value>> definitions = new ArrayList<>();
+    private final List<Boolean> sealed = new ArrayList<>();
+    private final Map<Ssa.Block, Map<Variable, Ssa.Value>> incompletePhis = new HashMap<>();
+    private final List<Map<String, Variable>> scopes = new ArrayList<>();
+
+    List<Ssa.Unit> build(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (unit == null || unit.values > UNIT_VALUES) startUnit();
+            statement.accept(this);
+        }
+        return units;
+    }
+
+    private void startUnit() {
+        unit = new Ssa.Unit();
+        units.add(unit);
+        definitions.clear();
+        sealed.clear();
+        incompletePhis.clear();
+        current = newBlock();
+        seal(current);
+    }
+
+    private Ssa.Block newBlock() {
+        Ssa.Block block = new Ssa.Block(unit.blocks.size());
+        unit.blocks.add(block);
+        definitions.add(new HashMap<>());
+        sealed.add(false);
+        return block;
+    }
+
+    private Ssa.Value append(Ssa.Op op, int line, String name, boolean typed, Ssa.Value... operands) {
+        Ssa.Value value = new Ssa.Value(unit.values++, op, operands, line, name, null, typed);
+        value.block = current;
+        current.instructions.add(value);
+        return value;
+    }
+
+    private void jump(Ssa.Block target) {
+        current.end = Ssa.End.JUMP;
+        current.successors.add(target);
+        target.predecessors.add(current);
+    }
+
+    // 两个目标都是新建的块，只有这一个前驱，创建后立即封闭
+    private void branch(Ssa.Value condition, Ssa.Block whenTrue, Ssa.Block whenFalse) {
+        current.end = Ssa.End.BRANCH;
+        current.condition = condition;
+        current.successors.add(whenTrue);
+        current.successors.add(whenFalse);
+        whenTrue.predecessors.add(current);
+        whenFalse.predecessors.add(current);
+        seal(whenTrue);
+        seal(whenFalse);
+    }
+
+    private void writeVariable(Variable variable, Ssa.Block block, Ssa.Value value) {
+        definitions.get(block.id).put(variable, value);
+    }
+
+    private Ssa.Value readVariable(Variable variable, Ssa.Block block) {
+        Ssa.Value value = definitions.get(block.id).get(variable);
+        if (value != null) return value;
+        if (!sealed.get(block.id)) {
+            value = newPhi(block);
+            incompletePhis.computeIfAbsent(block, key -> new HashMap<>()).put(variable, value);
+        } else if (block.predecessors.size() == 1) {
+            value = readVariable(variable, block.predecessors.get(0));
+        } else {
+            // 先记下PHI再读前驱，循环中读回来的就是它自己
+            value = newPhi(block);
+            writeVariable(variable, block, value);
+            addPhiOperands(variable, value);
+        }
+        writeVariable(variable, block, value);
+        return value;
+    }
+
+    private Ssa.Value newPhi(Ssa.Block block) {
+        Ssa.Value phi = new Ssa.Value(unit.values++, Ssa.Op.PHI, null, 0, null, null, false);
+        phi.block = block;
+        block.phis.add(phi);
+        return phi;
+    }
+
+    private void addPhiOperands(Variable variable, Ssa.Value phi) {
+        List<Ssa.Block> predecessors = phi.block.predecessors;
+        Ssa.Value[] operands = new Ssa.Value[predecessors.size()];
+        for (int i = 0; i < operands.length; i++) {
+            operands[i] = readVariable(variable, predecessors.get(i));
+        }
+        phi.operands = operands;
+    }
+
+    private void seal(Ssa.Block block) {
+        Map<Variable, Ssa.Value> incomplete = incompletePhis.remove(block);
+        if (incomplete != null) {
+            for (Map.Entry<Variable, Ssa.Value> entry : incomplete.entrySet()) {
+                addPhiOperands(entry.getKey(), entry.getValue());
+            }
+        }
+        sealed.set(block.id, true);
+    }
+
+    private Variable lookUp(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Variable variable = scopes.get(i).get(name);
+            if (variable != null) return variable;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new HashMap<>());
+        for (Stmt statement : LazyBlock.statementsOf(stmt)) {
+            statement.accept(this);
+        }
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Ssa.Value condition = stmt.condition.accept(this);
+        Ssa.Block thenBlock = newBlock();
+        Ssa.Block elseBlock = newBlock();
+        branch(condition, thenBlock, elseBlock);
+        current = thenBlock;
+        stmt.thenBranch.accept(this);
+        Ssa.Block thenEnd = current;
+        current = elseBlock;
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        Ssa.Block elseEnd = current;
+
+        Ssa.Block merge = newBlock();
+        current = thenEnd;
+        jump(merge);
+        current = elseEnd;
+        jump(merge);
+        seal(merge);
+        current = merge;
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        Ssa.Value value = stmt.expression.accept(this);
+        // print不会报错，行号只用来反汇编，沿用被打印的值的
+        append(Ssa.Op.PRINT, value.line, null, false, value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Ssa.Value value = stmt.initializer != null ? stmt.initializer.accept(this) : unit.constant(null);
+        int line = stmt.name.getLine();
+        if (scopes.isEmpty()) {
+            append(Ssa.Op.DEFINE_GLOBAL, line, stmt.name.getLexeme(), false, value);
+            return null;
+        }
+        Variable variable = new Variable(stmt.name.getLexeme());
+        scopes.get(scopes.size() - 1).put(variable.name, variable);
+        writeVariable(variable, current, append(Ssa.Op.COPY, line, variable.name, false, value));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Ssa.Block header = newBlock();
+        jump(header);
+        current = header;
+        Ssa.Value condition = stmt.condition.accept(this);
+        Ssa.Block body = newBlock();
+        Ssa.Block exit = newBlock();
+        branch(condition, body, exit);
+        current = body;
+        stmt.body.accept(this);
+        jump(header);
+        seal(header);
+        current = exit;
+        return null;
+    }
+
+    @Override
+    public Ssa.Value visitAssignExpr(Expr.Assign expr) {
+        Ssa.Value value = expr.value.accept(this);
+        int line = expr.name.getLine();
+        Variable variable = lookUp(expr.name.getLexeme());
+        if (variable == null) {
+            append(Ssa.Op.SET_GLOBAL, line, expr.name.getLexeme(), false, value);
+            return value;
+        }
+        Ssa.Value copy = append(Ssa.Op.COPY, line, variable.name, false, value);
+        writeVariable(variable, current, copy);
+        return copy;
+    }
+
+    @Override
+    public Ssa.Value visitBinaryExpr(Expr.Binary expr) {
+        Ssa.Value left = expr.left.accept(this);
+        Ssa.Value right = expr.right.accept(this);
+        Ssa.Op op = switch (expr.operator.getType()) {
+            case PLUS -> Ssa.Op.ADD;
+            case MINUS -> Ssa.Op.SUBTRACT;
+            case STAR -> Ssa.Op.MULTIPLY;
+            case SLASH -> Ssa.Op.DIVIDE;
+            case GREATER -> Ssa.Op.GREATER;
+            case GREATER_EQUAL -> Ssa.Op.GREATER_EQUAL;
+            case LESS -> Ssa.Op.LESS;
+            case LESS_EQUAL -> Ssa.Op.LESS_EQUAL;
+            case EQUAL_EQUAL -> Ssa.Op.EQUAL;
+            case BANG_EQUAL -> Ssa.Op.NOT_EQUAL;
+            default -> throw new IllegalStateException("Unknown binary operator.");
+        };
+        boolean typed = expr instanceof TypeInference.TypedBinary;
+        return append(op, expr.operator.getLine(), null, typed, left, right);
+    }
+
+    @Override
+    public Ssa.Value visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Ssa.Value visitLiteralExpr(Expr.Literal expr) {
+        return unit.constant(expr.value);
+    }
+
+    /*
+     * 左操作数决定跳到哪个分支：and为真、or为假时计算右操作数，否则直接到汇合处。
+     * 两条路都经过一个新块，汇合块的前驱都只有一个后继，PHI的复制可以放在前驱末尾。
+     */
+    @Override
+    public Ssa.Value visitLogicalExpr(Expr.Logical expr) {
+        Ssa.Value left = expr.left.accept(this);
+        Ssa.Block right = newBlock();
+        Ssa.Block skip = newBlock();
+        if (expr.operator.getType() == TokenType.AND) {
+            branch(left, right, skip);
+        } else {
+            branch(left, skip, right);
+        }
+        current = right;
+        Ssa.Value value = expr.right.accept(this);
+        Ssa.Block rightEnd = current;
+
+        Ssa.Block merge = newBlock();
+        jump(merge);
+        current = skip;
+        jump(merge);
+        seal(merge);
+        current = merge;
+        Ssa.Value phi = newPhi(merge);
+        phi.operands = new Ssa.Value[] { value, left };
+        return phi;
+    }
+
+    @Override
+    public Ssa.Value visitUnaryExpr(Expr.Unary expr) {
+        Ssa.Value operand = expr.right.accept(this);
+        return switch (expr.operator.getType()) {
+            case MINUS -> append(Ssa.Op.NEGATE, expr.operator.getLine(), null,
+                    expr instanceof TypeInference.TypedUnary, operand);
+            case BANG -> append(Ssa.Op.NOT, expr.operator.getLine(), null, false, operand);
+            default -> throw new IllegalStateException("Unknown unary operator.");
+        };
+    }
+
+    @Override
+    public Ssa.Value visitVariableExpr(Expr.Variable expr) {
+        Variable variable = lookUp(expr.name.getLexeme());
+        if (variable == null) {
+            return append(Ssa.Op.GET_GLOBAL, expr.name.getLine(), expr.name.getLexeme(), false);
+        }
+        return readVariable(variable, current);
+    }
+}
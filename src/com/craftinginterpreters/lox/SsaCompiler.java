@@ -0,0 +1,480 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * --ssa：语法树先翻译成SSA(SsaBuilder)，优化(SsaOptimizer)之后再生成字节码，交给VM执行。
+ * 和Compiler生成的是同一套指令，VM不需要任何改动。
+ *
+ * 值放在哪里：
+ * - 只用一次、就在同一个块中紧接着被用到的值留在操作数栈上，和Compiler对表达式树生成的代码一样；
+ * - 其余的值(用了多次、在别的块中用到、被PHI用到)放在栈底的槽位里，用GET_LOCAL/SET_LOCAL存取；
+ *   只在一个块中用到的值最后一次用过之后槽位就还回去，后面的值可以接着用；
+ * - 常量不占槽位，每次用到时重新压栈。
+ * 每个Unit开始时压入槽位个数的nil，结束时弹出，所以槽位从0开始，Unit之间互不影响。
+ *
+ * 控制流：块按逆后序排列(条件为假的后继先访问，这样循环体和then分支紧跟在条件后面)。
+ * JUMP_IF_FALSE不弹出条件，分支的两个目标块都只有这一个前驱，开头先POP。
+ * PHI的复制放在前驱末尾：先把所有来源压栈，再倒序存进各个PHI的槽位，互相交换也不会出错。
+ */
+class SsaCompiler {
+    private static final int MAX_U16 = 0xffff;
+
+    private final Chunk chunk = new Chunk();
+    private int line = 0;
+
+    // 当前Unit的分析结果，按值的id
+    private int[] uses;
+    private Object[] users;
+    private boolean[] onStack;
+    // 值在所在块中的下标
+    private int[] positions;
+    // 指令从第几个操作数开始在指令前加载，之前的在栈上或者已经提前加载了
+    private int[] loadFrom;
+    // 要在某条指令之前加载的值
+    private Map<Ssa.Value, List<Ssa.Value>> preloads;
+    private int[] slots;
+    private int slotCount;
+
+    Chunk compile(List<Stmt> statements, boolean optimize, boolean dump) {
+        List<Ssa.Unit> units = new SsaBuilder().build(statements);
+        SsaOptimizer optimizer = new SsaOptimizer();
+        SsaPrinter printer = new SsaPrinter();
+        for (int i = 0; i < units.size(); i++) {
+            Ssa.Unit unit = units.get(i);
+            if (optimize) optimizer.optimize(unit);
+            if (dump) System.err.print(printer.print(unit, i));
+            compile(unit);
+        }
+        emit(OpCode.RETURN);
+        return chunk;
+    }
+
+    private void compile(Ssa.Unit unit) {
+        List<Ssa.Block> order = layout(unit);
+        countUses(unit);
+        onStack = new boolean[unit.values];
+        positions = new int[unit.values];
+        loadFrom = new int[unit.values];
+        preloads = new HashMap<>();
+        for (Ssa.Block block : order) schedule(block);
+        assignSlots(unit, order);
+
+        for (int i = 0; i < slotCount; i++) emit(OpCode.NIL);
+        // 还没有生成的块的跳转，按块id；Unit末尾用blocks.size()
+        Map<Integer, List<Integer>> forward = new HashMap<>();
+        int[] starts = new int[unit.blocks.size()];
+        Arrays.fill(starts, -1);
+        for (int i = 0; i < order.size(); i++) {
+            Ssa.Block block = order.get(i);
+            Ssa.Block next = i + 1 < order.size() ? order.get(i + 1) : null;
+            starts[block.id] = chunk.count;
+            List<Integer> patches = forward.remove(block.id);
+            if (patches != null) for (int offset : patches) patchJump(offset);
+            emitBlock(block, next, starts, forward);
+        }
+        List<Integer> patches = forward.remove(unit.blocks.size());
+        if (patches != null) for (int offset : patches) patchJump(offset);
+        for (int i = 0; i < slotCount; i++) emit(OpCode.POP);
+    }
+
+    // 逆后序，用显式的栈做深度优先遍历
+    private List<Ssa.Block> layout(Ssa.Unit unit) {
+        List<Ssa.Block> postorder = new ArrayList<>();
+        boolean[] visited = new boolean[unit.blocks.size()];
+        Deque<Ssa.Block> stack = new ArrayDeque<>();
+        Deque<Integer> next = new ArrayDeque<>();
+        Ssa.Block entry = unit.blocks.get(0);
+        visited[entry.id] = true;
+        stack.push(entry);
+        next.push(entry.successors.size() - 1);
+        while (!stack.isEmpty()) {
+            Ssa.Block block = stack.peek();
+            int index = next.pop();
+            if (index < 0) {
+                stack.pop();
+                postorder.add(block);
+                continue;
+            }
+            next.push(index - 1);
+            Ssa.Block successor = block.successors.get(index);
+            if (!visited[successor.id]) {
+                visited[successor.id] = true;
+                stack.push(successor);
+                next.push(successor.successors.size() - 1);
+            }
+        }
+        List<Ssa.Block> order = new ArrayList<>(postorder.size());
+        for (int i = postorder.size() - 1; i >= 0; i--) order.add(postorder.get(i));
+        return order;
+    }
+
+    // 每个值被用了几次；只用了一次时记下用它的指令(被PHI用到时是PHI，作为分支条件时是块)
+    private void countUses(Ssa.Unit unit) {
+        uses = new int[unit.values];
+        users = new Object[unit.values];
+        for (Ssa.Block block : unit.blocks) {
+            for (Ssa.Value phi : block.phis) {
+                for (Ssa.Value operand : phi.operands) use(operand, phi);
+            }
+            for (Ssa.Value instruction : block.instructions) {
+                for (Ssa.Value operand : instruction.operands) use(operand, instruction);
+            }
+            if (block.condition != null) use(block.condition, block);
+        }
+    }
+
+    private void use(Ssa.Value value, Object user) {
+        uses[value.id]++;
+        users[value.id] = user;
+    }
+
+    /*
+     * 决定哪些值留在栈上。按顺序模拟栈，记下栈上每个值的计算从哪条指令开始。
+     * 一条指令的操作数中留在栈上的那几个必须正好按顺序在栈顶；它们前面和中间的其他操作数(槽位或常量)
+     * 提前到下一个栈上操作数开始计算之前加载，例如 x - (x / 7) * 7 先加载x再算右边；
+     * 加载提前之后还没有定义的，改成只有开头连续的几个留在栈上，其余的从槽位或常量加载。
+     * 没能按顺序在栈顶的操作数只能放进槽位，在定义时就存起来，
+     * 它们从来没有在栈上，所以不影响在它们上面的值。
+     */
+    private void schedule(Ssa.Block block) {
+        List<Ssa.Value> instructions = block.instructions;
+        for (int i = 0; i < instructions.size(); i++) positions[instructions.get(i).id] = i;
+        List<Ssa.Value> stack = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            Ssa.Value instruction = instructions.get(i);
+            int start = consume(block, stack, starts, instruction, i);
+            if (instruction.op.isVoid() || uses[instruction.id] != 1) continue;
+            Object user = users[instruction.id];
+            boolean local = user == block
+                    || user instanceof Ssa.Value value && value.op != Ssa.Op.PHI && value.block == block;
+            if (local) {
+                onStack[instruction.id] = true;
+                stack.add(instruction);
+                starts.add(start);
+            }
+        }
+        if (block.condition != null && onStack[block.condition.id]) {
+            if (stack.get(stack.size() - 1) == block.condition) {
+                stack.remove(stack.size() - 1);
+            } else {
+                onStack[block.condition.id] = false;
+            }
+        }
+        for (Ssa.Value value : stack) onStack[value.id] = false;
+    }
+
+    // 返回这条指令的计算从哪条指令开始
+    private int consume(Ssa.Block block, List<Ssa.Value> stack, List<Integer> starts,
+                        Ssa.Value instruction, int index) {
+        Ssa.Value[] operands = instruction.operands;
+        int kept = 0;
+        int last = -1;
+        for (int i = 0; i < operands.length; i++) {
+            if (onStack[operands[i].id]) {
+                kept++;
+                last = i;
+            }
+        }
+        if (kept > 0 && kept <= stack.size() && hoist(block, stack, starts, instruction, index, kept, last)) {
+            int start = starts.get(stack.size() - kept);
+            for (int i = 0; i < kept; i++) {
+                stack.remove(stack.size() - 1);
+                starts.remove(starts.size() - 1);
+            }
+            loadFrom[instruction.id] = last + 1;
+            return start;
+        }
+
+        int matched = Math.min(operands.length, stack.size());
+        while (matched > 0 && !stack.subList(stack.size() - matched, stack.size())
+                .equals(Arrays.asList(operands).subList(0, matched))) {
+            matched--;
+        }
+        int start = matched > 0 ? starts.get(stack.size() - matched) : index;
+        for (int i = 0; i < matched; i++) {
+            stack.remove(stack.size() - 1);
+            starts.remove(starts.size() - 1);
+        }
+        for (int i = matched; i < operands.length; i++) {
+            Ssa.Value operand = operands[i];
+            if (onStack[operand.id]) {
+                onStack[operand.id] = false;
+                int at = stack.indexOf(operand);
+                stack.remove(at);
+                starts.remove(at);
+            }
+        }
+        loadFrom[instruction.id] = matched;
+        return start;
+    }
+
+    /*
+     * 栈顶的kept个值正好是留在栈上的操作数时，把它们前面和中间的操作数的加载提前到下一个栈上操作数的开始处。
+     * 外层指令的加载排在同一位置已有的内层加载前面。
+     */
+    private boolean hoist(Ssa.Block block, List<Ssa.Value> stack, List<Integer> starts,
+                          Ssa.Value instruction, int index, int kept, int last) {
+        Ssa.Value[] operands = instruction.operands;
+        int[] targets = new int[last];
+        for (int i = last, entry = stack.size(); i >= 0; i--) {
+            Ssa.Value operand = operands[i];
+            if (onStack[operand.id]) {
+                if (stack.get(--entry) != operand) return false;
+                continue;
+            }
+            int target = starts.get(entry);
+            if (operand.op != Ssa.Op.CONST && operand.op != Ssa.Op.PHI && operand.block == block
+                    && positions[operand.id] >= target) {
+                return false;
+            }
+            targets[i] = target;
+        }
+        if (last == 0) return true;
+        List<Ssa.Value> instructions = block.instructions;
+        for (int i = last - 1; i >= 0; i--) {
+            if (onStack[operands[i].id]) continue;
+            int target = targets[i];
+            int first = i;
+            while (first > 0 && !onStack[operands[first - 1].id] && targets[first - 1] == target) first--;
+            List<Ssa.Value> loads = preloads.computeIfAbsent(instructions.get(target), key -> new ArrayList<>());
+            loads.addAll(0, Arrays.asList(operands).subList(first, i + 1));
+            i = first;
+        }
+        return true;
+    }
+
+    /*
+     * PHI和在别的块中用到的值各占一个固定的槽位；只在定义它的块中用到的值按块内的顺序分配，
+     * 最后一次用过就释放。固定的槽位在前面，块内的槽位从它们后面开始。
+     */
+    private void assignSlots(Ssa.Unit unit, List<Ssa.Block> order) {
+        slots = new int[unit.values];
+        Arrays.fill(slots, -1);
+        boolean[] crossing = new boolean[unit.values];
+        int fixed = 0;
+        for (Ssa.Block block : order) {
+            for (Ssa.Value phi : block.phis) {
+                slots[phi.id] = fixed++;
+                for (Ssa.Value operand : phi.operands) crossing[operand.id] = true;
+            }
+            for (Ssa.Value instruction : block.instructions) {
+                for (Ssa.Value operand : instruction.operands) {
+                    if (operand.block != instruction.block) crossing[operand.id] = true;
+                }
+            }
+            if (block.condition != null && block.condition.block != block) crossing[block.condition.id] = true;
+        }
+        for (Ssa.Block block : order) {
+            if (block.end != Ssa.End.JUMP) continue;
+            Ssa.Block target = block.successors.get(0);
+            int index = target.predecessors.indexOf(block);
+            for (Ssa.Value phi : target.phis) {
+                Ssa.Value value = phi.operands[index];
+                if (canCoalesce(block, phi, value)) slots[value.id] = slots[phi.id];
+            }
+        }
+        for (Ssa.Block block : order) {
+            for (Ssa.Value instruction : block.instructions) {
+                if (needsSlot(instruction) && crossing[instruction.id] && slots[instruction.id] < 0) {
+                    slots[instruction.id] = fixed++;
+                }
+            }
+        }
+
+        slotCount = fixed;
+        // 块内槽位的值还剩几次没用，0表示不是块内槽位
+        int[] remaining = new int[unit.values];
+        for (Ssa.Block block : order) {
+            Deque<Integer> free = new ArrayDeque<>();
+            int next = fixed;
+            for (Ssa.Value instruction : block.instructions) {
+                for (Ssa.Value operand : instruction.operands) {
+                    if (remaining[operand.id] > 0 && --remaining[operand.id] == 0) free.push(slots[operand.id]);
+                }
+                if (needsSlot(instruction) && !crossing[instruction.id]) {
+                    slots[instruction.id] = free.isEmpty() ? next++ : free.pop();
+                    remaining[instruction.id] = uses[instruction.id];
+                }
+            }
+            slotCount = Math.max(slotCount, next);
+        }
+        if (slotCount > MAX_U16) {
+            Lox.error(line, "Too many values in one unit.");
+        }
+    }
+
+    // 来源已经直接存在PHI的槽位里了
+    private boolean coalesced(Ssa.Value phi, Ssa.Value source) {
+        return source.op != Ssa.Op.CONST && slots[source.id] == slots[phi.id];
+    }
+
+    /*
+     * 只被后继块的PHI用到的值直接存进PHI的槽位，省掉一次复制，例如循环末尾的 i = i + 1。
+     * 前提是存进去之后这个块里不再读PHI原来的值：后面的指令没有用到它，末尾的复制也没有读它。
+     */
+    private boolean canCoalesce(Ssa.Block block, Ssa.Value phi, Ssa.Value value) {
+        if (value.op == Ssa.Op.CONST || value.op == Ssa.Op.PHI || value.block != block || uses[value.id] != 1) {
+            return false;
+        }
+        List<Ssa.Value> instructions = block.instructions;
+        for (int i = positions[value.id] + 1; i < instructions.size(); i++) {
+            for (Ssa.Value operand : instructions.get(i).operands) {
+                if (operand == phi) return false;
+            }
+        }
+        int index = phi.block.predecessors.indexOf(block);
+        for (Ssa.Value other : phi.block.phis) {
+            if (other != phi && other.operands[index] == phi) return false;
+        }
+        return true;
+    }
+
+    private boolean needsSlot(Ssa.Value instruction) {
+        return !instruction.op.isVoid() && uses[instruction.id] > 0 && !onStack[instruction.id];
+    }
+
+    private void emitBlock(Ssa.Block block, Ssa.Block next, int[] starts, Map<Integer, List<Integer>> forward) {
+        if (block.predecessors.size() == 1 && block.predecessors.get(0).end == Ssa.End.BRANCH) {
+            emit(OpCode.POP);
+        }
+        for (Ssa.Value instruction : block.instructions) {
+            List<Ssa.Value> loads = preloads.get(instruction);
+            if (loads != null) for (Ssa.Value value : loads) load(value);
+            Ssa.Value[] operands = instruction.operands;
+            for (int i = loadFrom[instruction.id]; i < operands.length; i++) load(operands[i]);
+            line = instruction.line;
+            emitInstruction(instruction);
+            if (instruction.op.isVoid()) continue;
+            if (slots[instruction.id] >= 0) {
+                emit(OpCode.SET_LOCAL, slots[instruction.id]);
+                emit(OpCode.POP);
+            } else if (!onStack[instruction.id]) {
+                emit(OpCode.POP);
+            }
+        }
+        switch (block.end) {
+            case JUMP -> {
+                Ssa.Block target = block.successors.get(0);
+                int index = target.predecessors.indexOf(block);
+                for (Ssa.Value phi : target.phis) {
+                    if (!coalesced(phi, phi.operands[index])) load(phi.operands[index]);
+                }
+                for (int i = target.phis.size() - 1; i >= 0; i--) {
+                    Ssa.Value phi = target.phis.get(i);
+                    if (coalesced(phi, phi.operands[index])) continue;
+                    emit(OpCode.SET_LOCAL, slots[phi.id]);
+                    emit(OpCode.POP);
+                }
+                if (target != next) jump(OpCode.JUMP, target.id, starts, forward);
+            }
+            case BRANCH -> {
+                if (!onStack[block.condition.id]) load(block.condition);
+                jump(OpCode.JUMP_IF_FALSE, block.successors.get(1).id, starts, forward);
+                Ssa.Block target = block.successors.get(0);
+                if (target != next) jump(OpCode.JUMP, target.id, starts, forward);
+            }
+            case END -> {
+                if (next != null) jump(OpCode.JUMP, starts.length, starts, forward);
+            }
+        }
+    }
+
+    // 已经生成的块(回边)用LOOP，否则先占位，生成到目标时回填
+    private void jump(byte op, int target, int[] starts, Map<Integer, List<Integer>> forward) {
+        if (target < starts.length && starts[target] >= 0) {
+            emit(OpCode.LOOP);
+            int offset = chunk.count - starts[target] + 2;
+            if (offset > MAX_U16) {
+                Lox.error(line, "Loop body too large.");
+            }
+            emitShort(offset);
+            return;
+        }
+        emit(op, MAX_U16);
+        forward.computeIfAbsent(target, key -> new ArrayList<>()).add(chunk.count - 2);
+    }
+
+    private void emitInstruction(Ssa.Value instruction) {
+        switch (instruction.op) {
+            case GET_GLOBAL -> emit(OpCode.GET_GLOBAL, constant(instruction.name));
+            case SET_GLOBAL -> {
+                emit(OpCode.SET_GLOBAL, constant(instruction.name));
+                emit(OpCode.POP);
+            }
+            case DEFINE_GLOBAL -> emit(OpCode.DEFINE_GLOBAL, constant(instruction.name));
+            case PRINT -> emit(OpCode.PRINT);
+            case ADD -> emit(OpCode.ADD);
+            case SUBTRACT -> emit(OpCode.SUBTRACT);
+            case MULTIPLY -> emit(OpCode.MULTIPLY);
+            case DIVIDE -> emit(OpCode.DIVIDE);
+            case GREATER -> emit(OpCode.GREATER);
+            case GREATER_EQUAL -> emit(OpCode.GREATER_EQUAL);
+            case LESS -> emit(OpCode.LESS);
+            case LESS_EQUAL -> emit(OpCode.LESS_EQUAL);
+            case EQUAL -> emit(OpCode.EQUAL);
+            case NOT_EQUAL -> {
+                emit(OpCode.EQUAL);
+                emit(OpCode.NOT);
+            }
+            case NEGATE -> emit(OpCode.NEGATE);
+            case NOT -> emit(OpCode.NOT);
+            // 没有优化时COPY还在，值原样留下
+            case COPY -> {}
+            default -> throw new IllegalStateException("Unexpected instruction " + instruction.op + ".");
+        }
+    }
+
+    private void load(Ssa.Value value) {
+        if (value.op != Ssa.Op.CONST) {
+            emit(OpCode.GET_LOCAL, slots[value.id]);
+        } else if (value.constant == null) {
+            emit(OpCode.NIL);
+        } else if (value.constant == Boolean.TRUE) {
+            emit(OpCode.TRUE);
+        } else if (value.constant == Boolean.FALSE) {
+            emit(OpCode.FALSE);
+        } else {
+            emit(OpCode.CONSTANT, constant(value.constant));
+        }
+    }
+
+    private void emit(byte op) {
+        chunk.write(op, line);
+    }
+
+    private void emit(byte op, int operand) {
+        emit(op);
+        emitShort(operand);
+    }
+
+    private void emitShort(int operand) {
+        chunk.write((byte) ((operand >> 8) & 0xff), line);
+        chunk.write((byte) (operand & 0xff), line);
+    }
+
+    private int constant(Object value) {
+        int index = chunk.addConstant(value);
+        if (index > MAX_U16) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    private void patchJump(int offset) {
+        int jump = chunk.count - offset - 2;
+        if (jump > MAX_U16) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+}
@@ -0,0 +1,305 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * SSA上的优化，依次执行：
+ * - 复写传播：局部变量的COPY和只合并了同一个值的PHI都换成原来的值；
+ * - 全局值编号(GVN)和公共子表达式消除：沿支配树遍历，运算和操作数都相同的值只算一次。
+ *   前面的那次支配后面这次，所以它一定先执行过，如果会报错也已经报错了，复用不会改变报错的行为。
+ *   操作数都是常量的运算顺便折叠，规则和Optimizer相同：会在运行时报错的不折叠。
+ *   同一个块中(以及只有一个前驱、接着前驱往下执行的块中)，读全局变量复用上次读到或存进去的值；
+ * - 死存储消除：局部变量的COPY在复写传播后都没有用处了，同一个块中被覆盖、中间没有读过的全局变量存储也删掉，
+ *   最后删掉所有结果没有用到、也没有副作用、不会报错的值。
+ * GVN之后可能出现新的多余PHI(两个操作数被编成了同一个值)，所以复写传播再做一次。
+ */
+class SsaOptimizer {
+    // GVN的散列键：运算和操作数；PHI的first是所在的块，second是操作数列表
+    private record Key(Ssa.Op op, Object first, Object second) {}
+
+    void optimize(Ssa.Unit unit) {
+        propagateCopies(unit);
+        computeDominators(unit);
+        numberValues(unit);
+        propagateCopies(unit);
+        removeDeadStores(unit);
+    }
+
+    // 把所有操作数换成替换后的值
+    private static void resolveOperands(Ssa.Unit unit) {
+        for (Ssa.Block block : unit.blocks) {
+            for (Ssa.Value phi : block.phis) resolveOperands(phi);
+            for (Ssa.Value instruction : block.instructions) resolveOperands(instruction);
+            if (block.condition != null) block.condition = Ssa.resolve(block.condition);
+        }
+    }
+
+    private static void resolveOperands(Ssa.Value value) {
+        Ssa.Value[] operands = value.operands;
+        for (int i = 0; i < operands.length; i++) {
+            operands[i] = Ssa.resolve(operands[i]);
+        }
+    }
+
+    private void propagateCopies(Ssa.Unit unit) {
+        for (Ssa.Block block : unit.blocks) {
+            for (Ssa.Value instruction : block.instructions) {
+                if (instruction.op == Ssa.Op.COPY) instruction.replacement = instruction.operands[0];
+            }
+        }
+        // 一个PHI被换掉之后，用到它的PHI可能也变成多余的了
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Ssa.Block block : unit.blocks) {
+                for (Ssa.Value phi : block.phis) {
+                    if (phi.replacement != null) continue;
+                    Ssa.Value same = null;
+                    boolean trivial = true;
+                    for (Ssa.Value operand : phi.operands) {
+                        operand = Ssa.resolve(operand);
+                        if (operand == phi || operand == same) continue;
+                        if (same != null) {
+                            trivial = false;
+                            break;
+                        }
+                        same = operand;
+                    }
+                    if (trivial && same != null) {
+                        phi.replacement = same;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        for (Ssa.Block block : unit.blocks) {
+            block.phis.removeIf(phi -> phi.replacement != null);
+        }
+        resolveOperands(unit);
+    }
+
+    /*
+     * Cooper、Harvey和Kennedy的迭代算法。除了回边以外所有的边都从编号小的块指向编号大的块，
+     * 块的编号就可以当作逆后序使用。
+     */
+    private void computeDominators(Ssa.Unit unit) {
+        List<Ssa.Block> blocks = unit.blocks;
+        Ssa.Block entry = blocks.get(0);
+        for (Ssa.Block block : blocks) {
+            block.dominator = null;
+            block.dominated.clear();
+        }
+        entry.dominator = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < blocks.size(); i++) {
+                Ssa.Block block = blocks.get(i);
+                Ssa.Block dominator = null;
+                for (Ssa.Block predecessor : block.predecessors) {
+                    if (predecessor.dominator == null) continue;
+                    dominator = dominator == null ? predecessor : intersect(predecessor, dominator);
+                }
+                if (dominator != block.dominator) {
+                    block.dominator = dominator;
+                    changed = true;
+                }
+            }
+        }
+        for (int i = 1; i < blocks.size(); i++) {
+            Ssa.Block block = blocks.get(i);
+            block.dominator.dominated.add(block);
+        }
+    }
+
+    private static Ssa.Block intersect(Ssa.Block first, Ssa.Block second) {
+        while (first != second) {
+            while (first.id > second.id) first = first.dominator;
+            while (second.id > first.id) second = second.dominator;
+        }
+        return first;
+    }
+
+    /*
+     * 支配树的前序遍历，用显式的栈，很长的if序列的支配树也很深。
+     * table中是当前块的所有支配块中算过的值，离开一个块时撤销它加入的键。
+     * globals是块中每个全局变量已知的当前值，只有一个前驱的块从前驱末尾的状态开始。
+     */
+    private void numberValues(Ssa.Unit unit) {
+        Map<Key, Ssa.Value> table = new HashMap<>();
+        Map<Ssa.Block, Map<String, Ssa.Value>> globalsAtEnd = new HashMap<>();
+        Deque<Ssa.Block> pending = new ArrayDeque<>();
+        Deque<List<Key>> added = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        pending.push(unit.blocks.get(0));
+        depths.push(0);
+        while (!pending.isEmpty()) {
+            Ssa.Block block = pending.pop();
+            int depth = depths.pop();
+            while (added.size() > depth) {
+                for (Key key : added.pop()) table.remove(key);
+            }
+            List<Key> keys = new ArrayList<>();
+            added.push(keys);
+
+            for (Ssa.Value phi : block.phis) {
+                resolveOperands(phi);
+                number(phi, new Key(Ssa.Op.PHI, block, List.of(phi.operands)), table, keys);
+            }
+            block.phis.removeIf(phi -> phi.replacement != null);
+
+            Map<String, Ssa.Value> globals = new HashMap<>();
+            if (block.predecessors.size() == 1) {
+                Map<String, Ssa.Value> inherited = globalsAtEnd.get(block.predecessors.get(0));
+                if (inherited != null) globals.putAll(inherited);
+            }
+            for (Ssa.Value instruction : block.instructions) {
+                resolveOperands(instruction);
+                Ssa.Value[] operands = instruction.operands;
+                Ssa.Value folded = fold(unit, instruction);
+                if (folded != null) {
+                    instruction.replacement = folded;
+                    continue;
+                }
+                switch (instruction.op) {
+                    case GET_GLOBAL -> {
+                        Ssa.Value known = globals.get(instruction.name);
+                        if (known != null) {
+                            instruction.replacement = known;
+                        } else {
+                            globals.put(instruction.name, instruction);
+                        }
+                    }
+                    case SET_GLOBAL, DEFINE_GLOBAL -> globals.put(instruction.name, operands[0]);
+                    case COPY, PRINT -> {}
+                    case MULTIPLY, EQUAL, NOT_EQUAL -> {
+                        // 可交换的运算，操作数按id排序
+                        Ssa.Value first = operands[0].id <= operands[1].id ? operands[0] : operands[1];
+                        Ssa.Value second = first == operands[0] ? operands[1] : operands[0];
+                        number(instruction, new Key(instruction.op, first, second), table, keys);
+                    }
+                    case NEGATE, NOT -> number(instruction, new Key(instruction.op, operands[0], null), table, keys);
+                    default -> number(instruction, new Key(instruction.op, operands[0], operands[1]), table, keys);
+                }
+            }
+            // COPY留给死存储消除
+            block.instructions.removeIf(instruction -> instruction.replacement != null && instruction.op != Ssa.Op.COPY);
+            if (block.condition != null) block.condition = Ssa.resolve(block.condition);
+            if (!globals.isEmpty()) globalsAtEnd.put(block, globals);
+
+            for (Ssa.Block child : block.dominated) {
+                pending.push(child);
+                depths.push(depth + 1);
+            }
+        }
+        resolveOperands(unit);
+    }
+
+    private static Ssa.Value fold(Ssa.Unit unit, Ssa.Value instruction) {
+        Ssa.Value[] operands = instruction.operands;
+        if (instruction.op.isVoid() || instruction.op == Ssa.Op.COPY || operands.length == 0) return null;
+        for (Ssa.Value operand : operands) {
+            if (operand.op != Ssa.Op.CONST) return null;
+        }
+        Object a = operands[0].constant;
+        switch (instruction.op) {
+            case NOT: return unit.constant(!Interpreter.isTruthy(a));
+            case NEGATE: return a instanceof Double d ? unit.constant(-d) : null;
+            case EQUAL: return unit.constant(Interpreter.isEqual(a, operands[1].constant));
+            case NOT_EQUAL: return unit.constant(!Interpreter.isEqual(a, operands[1].constant));
+            default: break;
+        }
+        Object b = operands[1].constant;
+        if (instruction.op == Ssa.Op.ADD && a instanceof String sa && b instanceof String sb) {
+            return unit.constant(sa + sb);
+        }
+        if (!(a instanceof Double x) || !(b instanceof Double y)) return null;
+        return switch (instruction.op) {
+            case ADD -> unit.constant(x + y);
+            case SUBTRACT -> unit.constant(x - y);
+            case MULTIPLY -> unit.constant(x * y);
+            case DIVIDE -> unit.constant(x / y);
+            case GREATER -> unit.constant(x > y);
+            case GREATER_EQUAL -> unit.constant(x >= y);
+            case LESS -> unit.constant(x < y);
+            case LESS_EQUAL -> unit.constant(x <= y);
+            default -> null;
+        };
+    }
+
+    private static void number(Ssa.Value value, Key key, Map<Key, Ssa.Value> table, List<Key> keys) {
+        Ssa.Value existing = table.putIfAbsent(key, value);
+        if (existing != null) {
+            value.replacement = existing;
+        } else {
+            keys.add(key);
+        }
+    }
+
+    private void removeDeadStores(Ssa.Unit unit) {
+        for (Ssa.Block block : unit.blocks) {
+            removeOverwrittenGlobals(block);
+        }
+
+        // 从有副作用、会报错的指令和分支条件出发标记用到的值，其余的都删掉。PHI之间的环也能删掉
+        Set<Ssa.Value> live = new HashSet<>();
+        Deque<Ssa.Value> worklist = new ArrayDeque<>();
+        for (Ssa.Block block : unit.blocks) {
+            for (Ssa.Value instruction : block.instructions) {
+                if (instruction.op.hasEffect() || instruction.mayThrow()) worklist.push(instruction);
+            }
+            if (block.condition != null) worklist.push(block.condition);
+        }
+        while (!worklist.isEmpty()) {
+            Ssa.Value value = worklist.pop();
+            if (value.op == Ssa.Op.CONST || !live.add(value)) continue;
+            for (Ssa.Value operand : value.operands) worklist.push(operand);
+        }
+        for (Ssa.Block block : unit.blocks) {
+            block.phis.removeIf(phi -> !live.contains(phi));
+            block.instructions.removeIf(instruction -> !live.contains(instruction));
+        }
+    }
+
+    /*
+     * 块中对同一个全局变量的两次存储之间没有读它，前一次就是多余的。
+     * 只有确定变量已经定义(前面读过或存过)时才能删：这样前一次存储不会报错。
+     * 中间有可能报错的指令时也不删：REPL中报错之后全局变量还在，下一行能看到前一次存储的值。
+     */
+    private void removeOverwrittenGlobals(Ssa.Block block) {
+        Set<String> defined = new HashSet<>();
+        Map<String, Ssa.Value> pending = new HashMap<>();
+        Set<Ssa.Value> dead = null;
+        for (Ssa.Value instruction : block.instructions) {
+            boolean global = instruction.name != null && instruction.op != Ssa.Op.COPY;
+            // 读写还不确定已经定义的全局变量可能报错
+            if (instruction.mayThrow() && !(global && defined.contains(instruction.name))) pending.clear();
+            switch (instruction.op) {
+                case GET_GLOBAL -> {
+                    pending.remove(instruction.name);
+                    defined.add(instruction.name);
+                }
+                case SET_GLOBAL, DEFINE_GLOBAL -> {
+                    Ssa.Value overwritten = pending.remove(instruction.name);
+                    if (overwritten != null) {
+                        if (dead == null) dead = new HashSet<>();
+                        dead.add(overwritten);
+                    }
+                    if (instruction.op == Ssa.Op.SET_GLOBAL && defined.contains(instruction.name)) {
+                        pending.put(instruction.name, instruction);
+                    }
+                    defined.add(instruction.name);
+                }
+                default -> {}
+            }
+        }
+        if (dead != null) block.instructions.removeIf(dead::contains);
+    }
+}
@@ -0,0 +1,69 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Locale;
+
+/*
+ * 把SSA打印成文本，--dump-ssa 用它输出优化后的中间表示。例如
+ *   b1 <- b0 b3
+ *     v5 = phi [b0: 0] [b3: v9]
+ *     v6 = get_global n                    ; line 3
+ *     v7 = less v5 v6                      ; line 3
+ *     branch v7 b2 b4
+ * 常量直接写出值，类型已证明、不会报错的运算加上:typed，可能报错的指令后面标出报错时的行号。
+ */
+class SsaPrinter {
+
+    String print(Ssa.Unit unit, int index) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("unit ").append(index).append('\n');
+        for (Ssa.Block block : unit.blocks) {
+            sb.append('b').append(block.id);
+            if (!block.predecessors.isEmpty()) {
+                sb.append(" <-");
+                for (Ssa.Block predecessor : block.predecessors) sb.append(" b").append(predecessor.id);
+            }
+            sb.append('\n');
+            for (Ssa.Value phi : block.phis) {
+                sb.append("  v").append(phi.id).append(" = phi");
+                for (int i = 0; i < phi.operands.length; i++) {
+                    sb.append(" [b").append(block.predecessors.get(i).id).append(": ")
+                            .append(operand(phi.operands[i])).append(']');
+                }
+                sb.append('\n');
+            }
+            for (Ssa.Value instruction : block.instructions) {
+                sb.append("  ").append(instruction(instruction)).append('\n');
+            }
+            switch (block.end) {
+                case JUMP -> sb.append("  jump b").append(block.successors.get(0).id).append('\n');
+                case BRANCH -> sb.append("  branch ").append(operand(block.condition))
+                        .append(" b").append(block.successors.get(0).id)
+                        .append(" b").append(block.successors.get(1).id).append('\n');
+                case END -> sb.append("  end\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private String instruction(Ssa.Value instruction) {
+        StringBuilder sb = new StringBuilder();
+        if (!instruction.op.isVoid()) sb.append('v').append(instruction.id).append(" = ");
+        sb.append(instruction.op.name().toLowerCase(Locale.ROOT));
+        if (instruction.typed) sb.append(":typed");
+        if (instruction.name != null) sb.append(' ').append(instruction.name);
+        for (Ssa.Value operand : instruction.operands) {
+            sb.append(' ').append(operand(operand));
+        }
+        if (instruction.mayThrow()) {
+            while (sb.length() < 36) sb.append(' ');
+            sb.append(" ; line ").append(instruction.line);
+        }
+        return sb.toString();
+    }
+
+    private String operand(Ssa.Value value) {
+        if (value.op != Ssa.Op.CONST) return "v" + value.id;
+        if (value.constant instanceof String) return "\"" + value.constant + "\"";
+        return Interpreter.stringify(value.constant);
+    }
+}
@@ -9,6 +9,7 @@ abstract class Stmt {
    R visitIfStmt(If stmt);
    R visitPrintStmt(Print stmt);
    R visitVarStmt(Var stmt);
+   R visitWhileStmt(While stmt);
   }
   static class Block extends Stmt {
     Block(List<Stmt> statements) {
@@ -76,6 +77,20 @@ abstract class Stmt {
     final Token name;
     final Expr initializer;
   }
+  static class While extends Stmt {
+    While(Expr condition, Stmt body) {
+     this.condition = condition;
+     this.body = body;
+     }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitWhileStmt(this);
+    }
+
+    final Expr condition;
+    final Stmt body;
+  }
 
    abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,239 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * 可执行的语句节点，和ExprNode一样由NodeCompiler从Stmt树翻译而来。
+ * 块节点在进入时取得自己的子帧，并把它传给块内的语句，
+ * 所以不需要像Interpreter那样维护一个可变的"当前环境"字段。
+ * 语句节点本身不会被改写，但要作为父节点接收表达式子节点的替换。
+ */
+abstract class StmtNode extends Node {
+    abstract void execute(Environment frame);
+
+    static final class Expression extends StmtNode {
+        private ExprNode expression;
+
+        Expression(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (expression == oldChild) expression = (ExprNode) newChild;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[] { expression };
+        }
+
+        @Override
+        void execute(Environment frame) {
+            expression.evaluate(frame);
+        }
+    }
+
+    static final class Print extends StmtNode {
+        private ExprNode expression;
+
+        Print(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (expression == oldChild) expression = (ExprNode) newChild;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[] { expression };
+        }
+
+        @Override
+        void execute(Environment frame) {
+            long value = expression.evaluate(frame);
+            System.out.println(Values.stringify(value, frame.ref));
+        }
+    }
+
+    // 局部变量的槽位就是声明顺序，直接追加到当前帧
+    static final class DefineLocal extends StmtNode {
+        private ExprNode initializer;
+
+        DefineLocal(ExprNode initializer) {
+            this.initializer = adopt(initializer);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (initializer == oldChild) initializer = (ExprNode) newChild;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[] { initializer };
+        }
+
+        @Override
+        void execute(Environment frame) {
+            if (initializer == null) {
+                frame.define(Values.NIL, null);
+            } else {
+                long value = initializer.evaluate(frame);
+                frame.define(value, frame.ref);
+            }
+        }
+    }
+
+    static final class DefineGlobal extends StmtNode {
+        private final Environment globals;
+        private final Token name;
+        private ExprNode initializer;
+
+        DefineGlobal(Environment globals, Token name, ExprNode initializer) {
+            this.globals = globals;
+            this.name = name;
+            this.initializer = adopt(initializer);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (initializer == oldChild) initializer = (ExprNode) newChild;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[] { initializer };
+        }
+
+        @Override
+        void execute(Environment frame) {
+            if (initializer == null) {
+                globals.define(name, Values.NIL, null);
+            } else {
+                long value = initializer.evaluate(frame);
+                globals.define(name, value, frame.ref);
+            }
+        }
+
+        @Override
+        String label() {
+            return "DefineGlobal " + name.getLexeme();
+        }
+    }
+
+    // 声明了变量的块，帧事先按变量个数分配，退出后留给下次进入复用，见Interpreter.BlockFrame
+    static final class Block extends StmtNode {
+        private final StmtNode[] statements;
+        private final Interpreter.BlockFrame frame;
+
+        Block(StmtNode[] statements, int size) {
+            this.statements = statements;
+            this.frame = new Interpreter.BlockFrame(size);
+            for (StmtNode statement : statements) {
+                adopt(statement);
+            }
+        }
+
+        @Override
+        Node[] children() {
+            return statements;
+        }
+
+        @Override
+        void execute(Environment frame) {
+            Environment local = this.frame.enter(frame);
+            for (StmtNode statement : statements) {
+                statement.execute(local);
+            }
+            this.frame.exit(local);
+        }
+
+        @Override
+        String label() {
+            return "Block size=" + frame.size;
+        }
+    }
+
+    // 没有声明变量的块，直接在外层的帧中执行
+    static final class Sequence extends StmtNode {
+        private final StmtNode[] statements;
+
+        Sequence(StmtNode[] statements) {
+            this.statements = statements;
+            for (StmtNode statement : statements) {
+                adopt(statement);
+            }
+        }
+
+        @Override
+        Node[] children() {
+            return statements;
+        }
+
+        @Override
+        void execute(Environment frame) {
+            for (StmtNode statement : statements) {
+                statement.execute(frame);
+            }
+        }
+    }
+
+    static final class If extends StmtNode {
+        private ExprNode condition;
+        private final StmtNode thenBranch;
+        private final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            this.condition = adopt(condition);
+            this.thenBranch = adopt(thenBranch);
+            this.elseBranch = adopt(elseBranch);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (condition == oldChild) condition = (ExprNode) newChild;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[] { condition, thenBranch, elseBranch };
+        }
+
+        @Override
+        void execute(Environment frame) {
+            if (Values.isTruthy(condition.evaluate(frame))) {
+                thenBranch.execute(frame);
+            } else if (elseBranch != null) {
+                elseBranch.execute(frame);
+            }
+        }
+    }
+
+    static final class While extends StmtNode {
+        private ExprNode condition;
+        private final StmtNode body;
+
+        While(ExprNode condition, StmtNode body) {
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (condition == oldChild) condition = (ExprNode) newChild;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[] { condition, body };
+        }
+
+        @Override
+        void execute(Environment frame) {
+            while (Values.isTruthy(condition.evaluate(frame))) {
+                body.execute(frame);
+            }
+        }
+    }
+}
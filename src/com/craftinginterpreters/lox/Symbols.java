@@ -0,0 +1,32 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * 标识符的符号表：每个不同的名字对应一个从0开始的整数编号，全局作用域按编号把变量存放在数组中。
+ * 编号在整个进程中唯一，REPL中不同输入行里的同名token得到同一个编号。
+ * Token第一次被问到编号时才查这张表(见Token.symbol)，之后直接读token上缓存的编号，
+ * 所以查表只发生在变量解析和翻译阶段，执行时不会再对名字做哈希。
+ * --parallel-parse 等模式下解析是多线程的，intern加了锁，但它不会在解析的热路径上被调用。
+ */
+final class Symbols {
+    private static final Map<String, Integer> ids = new HashMap<>();
+    private static int count = 0;
+
+    private Symbols() {}
+
+    static synchronized int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = count++;
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    // 目前分配出去的编号个数，全局变量数组按它扩容
+    static synchronized int count() {
+        return count;
+    }
+}
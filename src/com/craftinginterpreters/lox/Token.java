@@ -20,6 +20,25 @@ public class Token {
     private final String lexeme;
     private final Object literal;
     private final int line;
+    // IncrementalParser产生的token的行号是相对于所在顶层声明的base的，
+    // 声明前面的文本增删了行时只需要修改base，不用重新创建token
+    private LineBase base;
+    // 标识符在Symbols中的编号，第一次用到时才查表，-1表示还没有查过
+    private int symbol = -1;
+
+    // 行号的基准，origin不为null时又是相对于origin的
+    static final class LineBase {
+        int line;
+        LineBase origin;
+
+        LineBase(int line) {
+            this.line = line;
+        }
+
+        int line() {
+            return origin == null ? line : origin.line + line;
+        }
+    }
 
     public Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
@@ -45,6 +64,15 @@ public class Token {
     }
 
     public int getLine() {
-        return line;
+        return base == null ? line : base.line() + line;
+    }
+
+    void rebase(LineBase base) {
+        this.base = base;
+    }
+
+    int symbol() {
+        if (symbol < 0) symbol = Symbols.intern(lexeme);
+        return symbol;
     }
 }
@@ -0,0 +1,108 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+/*
+ * 紧凑的token序列，按结构数组(structure of arrays)存放：
+ * 每个token的类型、在源码中的起止位置和行号分别放在几个基本类型数组里，数字字面量的值放在double[]中。
+ * 和List<Token>相比，没有每个token一个Token对象、一个词素String、一个装箱Double的开销。
+ * 词素和字符串字面量的值不保存，需要时再从源码中截取；
+ * Parser只有在语法树确实需要Token的时候(标识符、运算符)才通过token(i)创建Token对象。
+ */
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final CharSequence source;
+    private byte[] types;
+    private int[] starts;
+    private int[] ends;
+    private int[] lines;
+    private double[] numbers;
+    private int size = 0;
+
+    TokenBuffer(CharSequence source, int capacity) {
+        this.source = source;
+        capacity = Math.max(capacity, 16);
+        types = new byte[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        lines = new int[capacity];
+        numbers = new double[capacity];
+    }
+
+    void add(TokenType type, int start, int end, int line, double number) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        lines[size] = line;
+        numbers[size] = number;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    double number(int index) {
+        return numbers[index];
+    }
+
+    String lexeme(int index) {
+        return source.subSequence(starts[index], ends[index]).toString();
+    }
+
+    // 比较两个token的词素，不需要截取成String
+    boolean sameLexeme(int i, int j) {
+        int length = ends[i] - starts[i];
+        if (ends[j] - starts[j] != length) return false;
+        for (int k = 0; k < length; k++) {
+            if (source.charAt(starts[i] + k) != source.charAt(starts[j] + k)) return false;
+        }
+        return true;
+    }
+
+    // 和Token.getLiteral()一致：数字是Double，字符串是去掉引号的内容，其他是null
+    Object literal(int index) {
+        switch (type(index)) {
+            case NUMBER:
+                return numbers[index];
+            case STRING:
+                return source.subSequence(starts[index] + 1, ends[index] - 1).toString();
+            default:
+                return null;
+        }
+    }
+
+    // FlatAst解析完成后只保留token的类型和行号，不再需要源码位置和字面量
+    byte[] typeOrdinals() {
+        return Arrays.copyOf(types, size);
+    }
+
+    int[] lineNumbers() {
+        return Arrays.copyOf(lines, size);
+    }
+
+    static TokenType typeOf(byte ordinal) {
+        return TYPES[ordinal];
+    }
+
+    Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index), lines[index]);
+    }
+}
@@ -0,0 +1,347 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * 流敏感的类型推导，在Optimizer之后、Resolver之前运行。
+ * 返回的语法树中没有变化的子树直接沿用原来的节点，只有换掉的节点和它们的祖先是新建的。
+ * 跟踪每个变量在程序每一点上可能的类型(数字、字符串、布尔、nil的集合)：
+ * var的初始值和赋值决定变量之后的类型，if的两个分支、and/or的右操作数在汇合处取并集，
+ * while循环反复分析直到循环入口处的类型不再变化。
+ *
+ * 操作数类型被证明的二元/一元运算换成TypedBinary/TypedUnary，解释器执行它们时不再检查操作数类型：
+ * 两个操作数都是数字的算术和比较、两个操作数都是字符串的加法、操作数是数字的取负。
+ * 证明不了的地方保留原来的节点，照常在运行时检查和报错。
+ *
+ * 分析只看当前这批语句：REPL的每一行、流式执行的每条语句分别分析，之前定义的全局变量类型未知。
+ * 还没有解析的LazyBlock里可能给任何变量赋值，遇到之后所有变量的类型都变成未知；
+ * 块的内容在解析之后单独分析，外面的变量同样是未知的。
+ *
+ * 变量的当前类型直接存在Variable对象上，修改时把旧值记在trail中。
+ * 分析分支时先记下trail的位置，分析完一个分支后从trail中找出它改过的变量，再撤销回分支前的状态，
+ * 这样汇合的开销只和分支中修改的变量个数有关，和可见变量的总数无关。
+ */
+class TypeInference implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    static final int NUMBER = 1;
+    static final int STRING = 2;
+    static final int BOOLEAN = 4;
+    static final int NIL = 8;
+    static final int ANY = NUMBER | STRING | BOOLEAN | NIL;
+
+    // 两个操作数的类型都已证明是type(NUMBER或STRING)的二元运算
+    static final class TypedBinary extends Expr.Binary {
+        final int type;
+
+        TypedBinary(Expr left, Token operator, Expr right, int type) {
+            super(left, operator, right);
+            this.type = type;
+        }
+    }
+
+    // 操作数已证明是数字的取负
+    static final class TypedUnary extends Expr.Unary {
+        TypedUnary(Token operator, Expr right) {
+            super(operator, right);
+        }
+    }
+
+    private static final class Variable {
+        // 在哪一层分析中声明，循环和分支汇合时只需要处理在它们之前就存在的变量
+        final int id;
+        int type;
+
+        Variable(int id, int type) {
+            this.id = id;
+            this.type = type;
+        }
+    }
+
+    // 最近分析的表达式的类型
+    private int type;
+    private final List<Map<String, Variable>> scopes = new ArrayList<>();
+    // 全局变量的id都是-1，在任何分支和循环之前就"存在"，没有声明过的类型未知
+    private final Map<String, Variable> globals = new HashMap<>();
+    private final List<Variable> trailVariables = new ArrayList<>();
+    private final List<Integer> trailTypes = new ArrayList<>();
+    // 正在分析的分支和循环的层数，不在任何分支中时修改不会被撤销，不需要记录
+    private int open = 0;
+    private int nextId = 0;
+    // 遇到过没有解析的块，之后所有变量都可能被它改过
+    private boolean opaque = false;
+
+    List<Stmt> infer(List<Stmt> statements) {
+        return infer(statements, false);
+    }
+
+    // 延迟解析的块的内容，块中的声明是局部变量
+    List<Stmt> inferBlock(List<Stmt> statements) {
+        return infer(statements, true);
+    }
+
+    private List<Stmt> infer(List<Stmt> statements, boolean block) {
+        // 作用域的Map在第一个声明时才创建
+        if (block) scopes.add(null);
+        // 语句都没有变化时返回原来的列表
+        List<Stmt> result = null;
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            Stmt inferred = statement.accept(this);
+            if (result == null && inferred != statement) {
+                result = new ArrayList<>(statements.size());
+                result.addAll(statements.subList(0, i));
+            }
+            if (result != null) result.add(inferred);
+        }
+        if (block) scopes.remove(scopes.size() - 1);
+        return result == null ? statements : result;
+    }
+
+    private Expr infer(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Variable lookup(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Map<String, Variable> scope = scopes.get(i);
+            Variable variable = scope == null ? null : scope.get(name.getLexeme());
+            if (variable != null) return variable;
+        }
+        return globals.computeIfAbsent(name.getLexeme(), key -> new Variable(-1, ANY));
+    }
+
+    private int typeOf(Variable variable) {
+        return opaque ? ANY : variable.type;
+    }
+
+    private void set(Variable variable, int type) {
+        if (open > 0) {
+            trailVariables.add(variable);
+            trailTypes.add(variable.type);
+        }
+        variable.type = type;
+    }
+
+    // 开始分析一个之后要撤销的分支，返回撤销时的位置
+    private int begin() {
+        open++;
+        return trailVariables.size();
+    }
+
+    /*
+     * 撤销mark之后的所有修改，返回被撤销的变量和撤销前的类型，和begin配对。
+     * 只保留在firstId之前就存在的变量，之后声明的在汇合处已经不可见了。
+     */
+    private Map<Variable, Integer> undo(int mark, int firstId) {
+        open--;
+        // 大多数分支不修改变量(例如只有print)，不分配Map
+        if (trailVariables.size() == mark) return Map.of();
+        Map<Variable, Integer> changed = new HashMap<>();
+        for (int i = trailVariables.size() - 1; i >= mark; i--) {
+            Variable variable = trailVariables.get(i);
+            if (variable.id < firstId) changed.putIfAbsent(variable, variable.type);
+            variable.type = trailTypes.get(i);
+            trailVariables.remove(i);
+            trailTypes.remove(i);
+        }
+        return changed;
+    }
+
+    // 和一个分支的结果汇合：分支改过的变量取两边类型的并集，返回是否有变量的类型变了
+    private boolean join(Map<Variable, Integer> branch) {
+        boolean grew = false;
+        for (Map.Entry<Variable, Integer> entry : branch.entrySet()) {
+            Variable variable = entry.getKey();
+            int joined = variable.type | entry.getValue();
+            if (joined != variable.type) {
+                set(variable, joined);
+                grew = true;
+            }
+        }
+        return grew;
+    }
+
+    // 两个分支都分析完之后的状态：first和second是两个分支各自改过的变量，没改的一边就是分支之前的类型
+    private void join(Map<Variable, Integer> first, Map<Variable, Integer> second) {
+        if (first.isEmpty() && second.isEmpty()) return;
+        Map<Variable, Integer> merged = new HashMap<>(first);
+        for (Map.Entry<Variable, Integer> entry : second.entrySet()) {
+            merged.merge(entry.getKey(), entry.getValue(), (a, b) -> a | b);
+        }
+        for (Map.Entry<Variable, Integer> entry : merged.entrySet()) {
+            Variable variable = entry.getKey();
+            int type = entry.getValue();
+            if (!first.containsKey(variable) || !second.containsKey(variable)) type |= variable.type;
+            if (type != variable.type) set(variable, type);
+        }
+    }
+
+    private static int typeOf(Object value) {
+        if (value == null) return NIL;
+        if (value instanceof Double) return NUMBER;
+        if (value instanceof String) return STRING;
+        return BOOLEAN;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        if (stmt instanceof LazyBlock lazy && !lazy.isParsed()) {
+            lazy.inferWhenParsed();
+            opaque = true;
+            return lazy;
+        }
+        List<Stmt> statements = LazyBlock.statementsOf(stmt);
+        List<Stmt> inferred = infer(statements, true);
+        return inferred == statements ? stmt : new Stmt.Block(inferred);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = infer(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = infer(stmt.condition);
+        int firstId = nextId;
+        int mark = begin();
+        Stmt thenBranch = stmt.thenBranch.accept(this);
+        Map<Variable, Integer> afterThen = undo(mark, firstId);
+        begin();
+        Stmt elseBranch = stmt.elseBranch == null ? null : stmt.elseBranch.accept(this);
+        Map<Variable, Integer> afterElse = undo(mark, firstId);
+        join(afterThen, afterElse);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = infer(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = null;
+        type = NIL;
+        if (stmt.initializer != null) initializer = infer(stmt.initializer);
+        if (scopes.isEmpty()) {
+            set(lookup(stmt.name), type);
+        } else {
+            int innermost = scopes.size() - 1;
+            if (scopes.get(innermost) == null) scopes.set(innermost, new HashMap<>());
+            scopes.get(innermost).put(stmt.name.getLexeme(), new Variable(nextId++, type));
+        }
+        return initializer == stmt.initializer ? stmt : new Stmt.Var(stmt.name, initializer);
+    }
+
+    /*
+     * 循环入口的状态是进入循环时的状态和每一轮结束时的状态的并集。
+     * 先用当前的入口状态分析一轮，把结束时的状态并入入口状态，直到不再变化(每个变量的类型只会变多，一定会停下来)，
+     * 最后用稳定的入口状态再分析一遍生成语法树。
+     * 循环在条件为假时结束，结束后的状态是入口状态再求一次条件之后的状态。
+     */
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        int firstId = nextId;
+        boolean grew;
+        do {
+            int mark = begin();
+            infer(stmt.condition);
+            stmt.body.accept(this);
+            grew = join(undo(mark, firstId));
+        } while (grew);
+        int mark = begin();
+        Expr condition = infer(stmt.condition);
+        Stmt body = stmt.body.accept(this);
+        undo(mark, firstId);
+        infer(stmt.condition);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = infer(expr.value);
+        set(lookup(expr.name), type);
+        return value == expr.value ? expr : new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = infer(expr.left);
+        int leftType = type;
+        Expr right = infer(expr.right);
+        int rightType = type;
+        int proven = leftType == rightType ? leftType : 0;
+        switch (expr.operator.getType()) {
+            case PLUS -> {
+                type = (leftType & rightType & (NUMBER | STRING));
+                if (type == 0) type = ANY;
+                if (proven == NUMBER || proven == STRING) {
+                    return new TypedBinary(left, expr.operator, right, proven);
+                }
+            }
+            case MINUS, STAR, SLASH -> {
+                type = NUMBER;
+                if (proven == NUMBER) return new TypedBinary(left, expr.operator, right, NUMBER);
+            }
+            case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                type = BOOLEAN;
+                if (proven == NUMBER) return new TypedBinary(left, expr.operator, right, NUMBER);
+            }
+            default -> type = BOOLEAN;
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = infer(expr.expression);
+        return expression == expr.expression ? expr : new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        type = typeOf(expr.value);
+        return expr;
+    }
+
+    // 右操作数不一定求值，它对变量的修改和左操作数之后的状态汇合
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = infer(expr.left);
+        int leftType = type;
+        int firstId = nextId;
+        int mark = begin();
+        Expr right = infer(expr.right);
+        type |= leftType;
+        join(undo(mark, firstId));
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = infer(expr.right);
+        if (expr.operator.getType() == TokenType.BANG) {
+            type = BOOLEAN;
+            return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+        }
+        boolean proven = type == NUMBER;
+        type = NUMBER;
+        if (proven) return new TypedUnary(expr.operator, right);
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        type = typeOf(lookup(expr.name));
+        return expr;
+    }
+}
@@ -0,0 +1,250 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * 基于栈的字节码虚拟机，执行Compiler生成的Chunk。
+ * 分派循环把code、ip、操作数栈和栈顶指针sp都放在局部变量里，每条指令就是一次对操作码的switch，
+ * 没有树遍历解释器中accept/visit的两次虚调用。
+ * 值使用Values中的标记表示：操作数栈是long数组，对象(字符串)的引用放在并列的refs数组的同一位置，
+ * 只有值为Values.OBJ时refs中的引用才有意义，算术和比较的结果不需要装箱。
+ * 真值判断、相等比较和打印格式都和Interpreter保持一致，两个后端对同一段脚本输出相同。
+ * 全局变量按名字存放在可变的Global单元中，VM实例在REPL的多次输入之间保留，所以全局变量可以跨行使用。
+ */
+class VM {
+    private static final int STACK_INIT = 256;
+
+    private final Map<String, Environment.Global> globals = new HashMap<>();
+    private long[] stack = new long[STACK_INIT];
+    private Object[] refs = new Object[STACK_INIT];
+
+    void interpret(Chunk chunk) {
+        try {
+            run(chunk);
+        } catch (RuntimeError error) {
+            Lox.runtiemError(error);
+        }
+    }
+
+    private void run(Chunk chunk) {
+        final byte[] code = chunk.code;
+        final Object[] constants = chunk.constants();
+        final long[] constantValues = chunk.constantValues();
+        long[] stack = this.stack;
+        Object[] refs = this.refs;
+        int sp = 0;
+        int ip = 0;
+        while (true) {
+            byte op = code[ip++];
+            switch (op) {
+                case OpCode.CONSTANT: {
+                    if (sp == stack.length) {
+                        stack = grow(sp);
+                        refs = this.refs;
+                    }
+                    int index = readShort(code, ip);
+                    stack[sp] = constantValues[index];
+                    refs[sp++] = constants[index];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.NIL:
+                    if (sp == stack.length) {
+                        stack = grow(sp);
+                        refs = this.refs;
+                    }
+                    stack[sp++] = Values.NIL;
+                    break;
+                case OpCode.TRUE:
+                    if (sp == stack.length) {
+                        stack = grow(sp);
+                        refs = this.refs;
+                    }
+                    stack[sp++] = Values.TRUE;
+                    break;
+                case OpCode.FALSE:
+                    if (sp == stack.length) {
+                        stack = grow(sp);
+                        refs = this.refs;
+                    }
+                    stack[sp++] = Values.FALSE;
+                    break;
+                case OpCode.POP:
+                    refs[--sp] = null;
+                    break;
+                case OpCode.GET_LOCAL: {
+                    if (sp == stack.length) {
+                        stack = grow(sp);
+                        refs = this.refs;
+                    }
+                    int slot = readShort(code, ip);
+                    stack[sp] = stack[slot];
+                    refs[sp++] = refs[slot];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    int slot = readShort(code, ip);
+                    stack[slot] = stack[sp - 1];
+                    refs[slot] = refs[sp - 1];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    String name = (String) constants[readShort(code, ip)];
+                    Environment.Global global = globals.get(name);
+                    if (global == null) throw undefined(chunk, ip, name);
+                    if (sp == stack.length) {
+                        stack = grow(sp);
+                        refs = this.refs;
+                    }
+                    stack[sp] = global.value;
+                    refs[sp++] = global.ref;
+                    ip += 2;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    String name = (String) constants[readShort(code, ip)];
+                    sp--;
+                    Environment.Global global = globals.get(name);
+                    if (global == null) {
+                        globals.put(name, new Environment.Global(stack[sp], refs[sp]));
+                    } else {
+                        global.value = stack[sp];
+                        global.ref = refs[sp];
+                    }
+                    refs[sp] = null;
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    String name = (String) constants[readShort(code, ip)];
+                    Environment.Global global = globals.get(name);
+                    if (global == null) throw undefined(chunk, ip, name);
+                    global.value = stack[sp - 1];
+                    global.ref = refs[sp - 1];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    sp--;
+                    stack[sp - 1] = Values.bool(Values.isEqual(stack[sp - 1], refs[sp - 1], stack[sp], refs[sp]));
+                    refs[sp] = null;
+                    break;
+                }
+                case OpCode.GREATER: {
+                    checkNumberOperands(chunk, ip, stack[sp - 2], stack[sp - 1]);
+                    sp--;
+                    stack[sp - 1] = Values.bool(Values.asNumber(stack[sp - 1]) > Values.asNumber(stack[sp]));
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    checkNumberOperands(chunk, ip, stack[sp - 2], stack[sp - 1]);
+                    sp--;
+                    stack[sp - 1] = Values.bool(Values.asNumber(stack[sp - 1]) >= Values.asNumber(stack[sp]));
+                    break;
+                }
+                case OpCode.LESS: {
+                    checkNumberOperands(chunk, ip, stack[sp - 2], stack[sp - 1]);
+                    sp--;
+                    stack[sp - 1] = Values.bool(Values.asNumber(stack[sp - 1]) < Values.asNumber(stack[sp]));
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    checkNumberOperands(chunk, ip, stack[sp - 2], stack[sp - 1]);
+                    sp--;
+                    stack[sp - 1] = Values.bool(Values.asNumber(stack[sp - 1]) <= Values.asNumber(stack[sp]));
+                    break;
+                }
+                case OpCode.ADD: {
+                    long a = stack[sp - 2];
+                    long b = stack[sp - 1];
+                    if (Values.isNumber(a) && Values.isNumber(b)) {
+                        stack[sp - 2] = Values.number(Values.asNumber(a) + Values.asNumber(b));
+                    } else if (a == Values.OBJ && b == Values.OBJ
+                            && refs[sp - 2] instanceof String l && refs[sp - 1] instanceof String r) {
+                        refs[sp - 2] = l + r;
+                    } else {
+                        throw new RuntimeError(chunk.lines[ip - 1], "Operands must be two numbers or two strings.");
+                    }
+                    refs[--sp] = null;
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    checkNumberOperands(chunk, ip, stack[sp - 2], stack[sp - 1]);
+                    sp--;
+                    stack[sp - 1] = Values.number(Values.asNumber(stack[sp - 1]) - Values.asNumber(stack[sp]));
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    checkNumberOperands(chunk, ip, stack[sp - 2], stack[sp - 1]);
+                    sp--;
+                    stack[sp - 1] = Values.number(Values.asNumber(stack[sp - 1]) * Values.asNumber(stack[sp]));
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    checkNumberOperands(chunk, ip, stack[sp - 2], stack[sp - 1]);
+                    sp--;
+                    stack[sp - 1] = Values.number(Values.asNumber(stack[sp - 1]) / Values.asNumber(stack[sp]));
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = Values.bool(!Values.isTruthy(stack[sp - 1]));
+                    refs[sp - 1] = null;
+                    break;
+                case OpCode.NEGATE: {
+                    if (!Values.isNumber(stack[sp - 1])) {
+                        throw new RuntimeError(chunk.lines[ip - 1], "Operand must be a number.");
+                    }
+                    stack[sp - 1] = Values.number(-Values.asNumber(stack[sp - 1]));
+                    break;
+                }
+                case OpCode.PRINT:
+                    sp--;
+                    System.out.println(Values.stringify(stack[sp], refs[sp]));
+                    refs[sp] = null;
+                    break;
+                case OpCode.JUMP:
+                    ip += 2 + readShort(code, ip);
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (!Values.isTruthy(stack[sp - 1])) {
+                        ip += 2 + readShort(code, ip);
+                    } else {
+                        ip += 2;
+                    }
+                    break;
+                case OpCode.LOOP:
+                    ip = ip + 2 - readShort(code, ip);
+                    break;
+                case OpCode.RETURN:
+                    return;
+                default:
+                    throw new RuntimeError(chunk.lines[ip - 1], "Unknown opcode " + op + ".");
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    // 两个数组一起扩容，refs由调用方从字段重新取
+    private long[] grow(int sp) {
+        stack = Arrays.copyOf(stack, sp * 2);
+        refs = Arrays.copyOf(refs, sp * 2);
+        return stack;
+    }
+
+    // ip此时指向操作数，ip-1才是当前指令
+    private static RuntimeError undefined(Chunk chunk, int ip, String name) {
+        return new RuntimeError(chunk.lines[ip - 1], "Undefined variable '" + name + "'.");
+    }
+
+    private static void checkNumberOperands(Chunk chunk, int ip, long left, long right) {
+        if (Values.isNumber(left) && Values.isNumber(right)) return;
+        throw new RuntimeError(chunk.lines[ip - 1], "Operands must be numbers.");
+    }
+}
@@ -0,0 +1,81 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * 运行时值的标记(tagged)表示：NaN-boxing。
+ * 每个值都是一个long：
+ * 数字：就是double的位模式。NaN在装进来时被规范化成Java的标准NaN(0x7ff8000000000000)，
+ *      它没有置位QNAN中的第50位，所以不会和下面的标记值混淆。
+ * nil/false/true：置位QNAN再在低位放一个标记。
+ * 对象(目前只有字符串)：值是OBJ，真正的引用放在旁边另外一个Object变量/数组里(side reference)。
+ * 这样数字、布尔和nil在求值结果和变量存储中都不需要装箱。
+ *
+ * 数字比较用位模式相等，这和原来Double.equals的语义一致：NaN等于NaN，0和-0不相等。
+ */
+final class Values {
+    private Values() {}
+
+    private static final long SIGN = 0x8000000000000000L;
+    private static final long QNAN = 0x7ffc000000000000L;
+
+    static final long NIL = QNAN | 1;
+    static final long FALSE = QNAN | 2;
+    static final long TRUE = QNAN | 3;
+    static final long OBJ = SIGN | QNAN;
+    // 还没有定义的全局变量，只在AotCompiler生成的全局变量数组中出现，不会作为求值结果
+    static final long UNDEFINED = QNAN;
+
+    static boolean isNumber(long value) {
+        return (value & QNAN) != QNAN;
+    }
+
+    static long number(double value) {
+        return Double.doubleToLongBits(value);
+    }
+
+    static double asNumber(long value) {
+        return Double.longBitsToDouble(value);
+    }
+
+    static long bool(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    static boolean isTruthy(long value) {
+        return value != NIL && value != FALSE;
+    }
+
+    static boolean isEqual(long a, Object aRef, long b, Object bRef) {
+        if (a == OBJ && b == OBJ) return aRef.equals(bRef);
+        return a == b;
+    }
+
+    // 和Object表示之间的转换，只在边界上使用(字面量、打印)
+    static long fromObject(Object value) {
+        if (value == null) return NIL;
+        if (value instanceof Boolean b) return bool(b);
+        if (value instanceof Double d) return number(d);
+        return OBJ;
+    }
+
+    static Object toObject(long value, Object ref) {
+        if (value == OBJ) return ref;
+        if (value == NIL) return null;
+        if (value == TRUE) return Boolean.TRUE;
+        if (value == FALSE) return Boolean.FALSE;
+        return asNumber(value);
+    }
+
+    static String stringify(long value, Object ref) {
+        if (isNumber(value)) {
+            String text = Double.toString(asNumber(value));
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+        if (value == NIL) return "nil";
+        if (value == TRUE) return "true";
+        if (value == FALSE) return "false";
+        return ref.toString();
+    }
+}
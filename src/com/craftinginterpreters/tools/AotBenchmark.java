@@ -0,0 +1,82 @@
+package com.craftinginterpreters.tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * 提前编译的jar(jlox --compile)和直接 jlox script.lox 的对比，每次运行都是一个新的JVM进程：
+ * - startup：只有一条print的脚本，几乎全是JVM启动和加载的时间；
+ * - frontend：很多顶层语句、每条只执行一次，jlox的时间主要在扫描、解析和变量解析上；
+ * - loop：嵌套的热循环，比较稳态的执行速度，同时列出 jlox --jit。
+ * 每种情况运行RUNS次，取中位数。编译jar的时间单独列出，不计入运行时间。
+ * 用法：java -cp <jlox的classpath> com.craftinginterpreters.tools.AotBenchmark
+ */
+public class AotBenchmark {
+    private static final int RUNS = 5;
+    private static final String LOX = "com.craftinginterpreters.lox.Lox";
+
+    private static final String JAVA = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    private static final String CLASSPATH = System.getProperty("java.class.path");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("lox-aot");
+
+        StringBuilder frontend = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            frontend.append("var v").append(i % 1000).append(" = ").append(i).append(" * 2 + 1;\n");
+            frontend.append("{ var t = v").append(i % 1000).append("; if (t > 10) v")
+                    .append(i % 1000).append(" = t - 1; }\n");
+        }
+        frontend.append("print v1;\n");
+
+        String loop = "var sum = 0; var i = 0;\n"
+                + "while (i < 5000) { var j = 0; while (j < 3000) { sum = sum + i * j; j = j + 1; } i = i + 1; }\n"
+                + "print sum;\n";
+
+        run(directory, "startup", "print 1;\n", false);
+        run(directory, "frontend", frontend.toString(), false);
+        run(directory, "loop", loop, true);
+    }
+
+    private static void run(Path directory, String name, String source, boolean jit)
+            throws IOException, InterruptedException {
+        Path script = directory.resolve(name + ".lox");
+        Path jar = directory.resolve(name + ".jar");
+        Files.writeString(script, source);
+
+        double compile = time(List.of(JAVA, "-cp", CLASSPATH, LOX, "--compile=" + jar, script.toString()));
+        double interpreted = median(List.of(JAVA, "-cp", CLASSPATH, LOX, script.toString()));
+        double compiled = median(List.of(JAVA, "-jar", jar.toString()));
+        System.out.printf("%-9s compile %8.1f ms   jlox %8.1f ms   jar %8.1f ms   %5.1fx",
+                name, compile, interpreted, compiled, interpreted / compiled);
+        if (jit) {
+            System.out.printf("   jlox --jit %8.1f ms", median(List.of(JAVA, "-cp", CLASSPATH, LOX, "--jit", script.toString())));
+        }
+        System.out.println();
+    }
+
+    private static double median(List<String> command) throws IOException, InterruptedException {
+        double[] times = new double[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            times[i] = time(command);
+        }
+        Arrays.sort(times);
+        return times[RUNS / 2];
+    }
+
+    // 运行一次，返回毫秒数，输出丢弃
+    private static double time(List<String> command) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(new ArrayList<>(command))
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD);
+        long start = System.nanoTime();
+        int status = builder.start().waitFor();
+        long elapsed = System.nanoTime() - start;
+        if (status != 0) throw new IllegalStateException(String.join(" ", command) + " exited with " + status);
+        return elapsed / 1e6;
+    }
+}
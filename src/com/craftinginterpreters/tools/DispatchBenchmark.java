@@ -0,0 +1,81 @@
+package com.craftinginterpreters.tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * 同一棵record树(GenerateAst --records)的两种分派方式的对比：
+ * jlox --sealed-visitor 通过accept/Visitor分派，jlox --sealed 用sealed接口上的模式匹配switch分派，
+ * 两者执行每种节点的代码是同一份，见SealedInterpreter。默认的树遍历解释器的时间一起列出作为参照。
+ * 每个脚本每种方式都在新的JVM进程中运行RUNS次，取中位数。
+ * 用法：java -cp <jlox的classpath> com.craftinginterpreters.tools.DispatchBenchmark [script.lox ...]
+ * 不给脚本时使用内置的几个：算术循环、分支较多的循环和字符串拼接。
+ */
+public class DispatchBenchmark {
+    private static final int RUNS = 5;
+    private static final String LOX = "com.craftinginterpreters.lox.Lox";
+
+    private static final String JAVA = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    private static final String CLASSPATH = System.getProperty("java.class.path");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<Path> scripts = new ArrayList<>();
+        if (args.length > 0) {
+            for (String arg : args) scripts.add(Path.of(arg));
+        } else {
+            Path directory = Files.createTempDirectory("lox-dispatch");
+            scripts.add(write(directory, "arith", "var sum = 0; var i = 0;\n"
+                    + "while (i < 3000) { var j = 0; while (j < 1000) { sum = sum + i * j - (j / 2); j = j + 1; } i = i + 1; }\n"
+                    + "print sum;\n"));
+            scripts.add(write(directory, "branch", "var a = 0; var b = 0; var i = 0;\n"
+                    + "while (i < 2000000) {\n"
+                    + "  if (i - (i / 3) * 3 < 1 and !(a > b)) a = a + 1; else if (i > 1000 or b < a) b = b + 1;\n"
+                    + "  i = i + 1;\n"
+                    + "}\n"
+                    + "print a; print b;\n"));
+            scripts.add(write(directory, "string", "var s = \"\"; var i = 0;\n"
+                    + "while (i < 300000) { { var t = \"x\"; if (s == \"\") s = t; else s = t; } i = i + 1; }\n"
+                    + "print s;\n"));
+        }
+
+        System.out.printf("%-12s %12s %12s %12s %8s%n", "script", "tree", "visitor", "switch", "v/s");
+        for (Path script : scripts) {
+            double tree = median(script, List.of());
+            double visitor = median(script, List.of("--sealed-visitor"));
+            double pattern = median(script, List.of("--sealed"));
+            System.out.printf("%-12s %9.1f ms %9.1f ms %9.1f ms %7.2fx%n",
+                    script.getFileName(), tree, visitor, pattern, visitor / pattern);
+        }
+    }
+
+    private static Path write(Path directory, String name, String source) throws IOException {
+        Path script = directory.resolve(name + ".lox");
+        Files.writeString(script, source);
+        return script;
+    }
+
+    private static double median(Path script, List<String> flags) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(JAVA, "-cp", CLASSPATH, LOX));
+        command.addAll(flags);
+        command.add(script.toString());
+        double[] times = new double[RUNS];
+        for (int i = 0; i < RUNS; i++) times[i] = time(command);
+        Arrays.sort(times);
+        return times[RUNS / 2];
+    }
+
+    private static double time(List<String> command) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        int exit = process.waitFor();
+        if (exit != 0) throw new IllegalStateException(String.join(" ", command) + " exited with " + exit);
+        return (System.nanoTime() - start) / 1e6;
+    }
+}
@@ -8,16 +8,22 @@ import java.util.List;
 
 public class GenerateAst {
     public static void main(String[] args) throws IOException {
-        if(args.length != 1){
-            System.err.println("Usage: generate_ast <output directory>");
+        boolean records = args.length == 2 && args[0].equals("--records");
+        if(args.length != 1 && !records){
+            System.err.println("Usage: generate_ast [--records] <output directory>");
             System.exit(64);
         }
-        String outputDir = args[0];
+        String outputDir = args[args.length - 1];
+        if(records){
+            defineRecords(outputDir);
+            return;
+        }
         defineAst(outputDir,"Expr", Arrays.asList(
             "Assign : Token name, Expr value",
             "Binary      : Expr left, Token operator, Expr right",
             "Grouping    : Expr expression",
             "Literal     : Object value",
+            "Logical     : Expr left, Token operator, Expr right",
             "Unary       : Token operator, Expr right",
             "Variable    :  Token name"
         ));
@@ -26,8 +32,66 @@ public class GenerateAst {
             "Expression     : Expr expression",
             "If             : Expr condition, Stmt thenBranch, Stmt elseBranch",
             "Print          : Expr expression",
-            "Var            : Token name, Expr initializer"
+            "Var            : Token name, Expr initializer",
+            "While          : Expr condition, Stmt body"
+        ));
+    }
+
+    /*
+     * --records：生成sealed接口和record形式的树(SealedExpr/SealedStmt)，见SealedCompiler。
+     * Expr/Stmt还是类的形式，因为TypeInference和LazyBlock要继承其中的节点，
+     * Resolver的结果也是按节点的identity记录的，而record的equals比较的是内容。
+     * 所以record树是在变量解析之后从Expr/Stmt翻译出来的，变量引用直接带上(depth, slot)，
+     * 全局变量带上GlobalSite，块带上BlockFrame，执行时不再查表。
+     * 接口是sealed的，解释器可以用穷尽的switch分派，同时也保留accept/Visitor。
+     */
+    private static void defineRecords(String outputDir) throws IOException {
+        defineSealed(outputDir, "SealedExpr", Arrays.asList(
+            "Assign      : Token name, int depth, int slot, Environment.GlobalSite global, SealedExpr value",
+            "Binary      : SealedExpr left, Token operator, SealedExpr right",
+            "Grouping    : SealedExpr expression",
+            "Literal     : long value, Object ref",
+            "Logical     : SealedExpr left, Token operator, SealedExpr right",
+            "Unary       : Token operator, SealedExpr right",
+            "Variable    : Token name, int depth, int slot, Environment.GlobalSite global"
         ));
+        defineSealed(outputDir, "SealedStmt", Arrays.asList(
+            "Block          : List<SealedStmt> statements, Interpreter.BlockFrame frame",
+            "Expression     : SealedExpr expression",
+            "If             : SealedExpr condition, SealedStmt thenBranch, SealedStmt elseBranch",
+            "Print          : SealedExpr expression",
+            "Var            : Token name, SealedExpr initializer, boolean local",
+            "While          : SealedExpr condition, SealedStmt body"
+        ));
+    }
+
+    private static void defineSealed(String outputDir, String baseName, List<String> types) throws IOException {
+        String path = outputDir + File.separator + baseName + ".java";
+        PrintWriter pWriter = new PrintWriter(path,"UTF-8");
+
+        pWriter.println("package com.craftinginterpreters.lox;");
+        pWriter.println();
+        pWriter.println("import java.util.List;");
+        pWriter.println();
+        pWriter.println("sealed interface "+baseName+" {");
+
+        defineVisitor(pWriter,baseName,types);
+
+        for(String type:types){
+            String[] typeArray = type.split(":");
+            String className = typeArray[0].trim();
+            String fields = typeArray[1].trim();
+            pWriter.println("  record "+className+"("+fields+") implements "+baseName+" {");
+            pWriter.println("    @Override");
+            pWriter.println("    public <R> R accept(Visitor<R> visitor) {");
+            pWriter.println("      return visitor.visit"+className+baseName+"(this);");
+            pWriter.println("    }");
+            pWriter.println("  }");
+        }
+        pWriter.println();
+        pWriter.println("   <R> R accept(Visitor<R> visitor);");
+        pWriter.println("}");
+        pWriter.close();
     }
 
     private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
@@ -0,0 +1,51 @@
+package com.craftinginterpreters.tools;
+
+import com.craftinginterpreters.lox.IncrementalParser;
+import com.craftinginterpreters.lox.Parser;
+import com.craftinginterpreters.lox.Scanner;
+
+/*
+ * 模拟在一个大文件中间打字：每次编辑插入一个字符、换行或者删除一个字符，
+ * 比较IncrementalParser.edit()和对整个文本重新扫描、解析的耗时。
+ * 用法：java com.craftinginterpreters.tools.IncrementalParserBenchmark [顶层声明个数]
+ */
+public class IncrementalParserBenchmark {
+    private static final int EDITS = 2000;
+
+    public static void main(String[] args) {
+        int declarations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < declarations; i++) {
+            source.append("var v").append(i).append(" = ").append(i).append(" * 2 + 1;\n");
+            source.append("if (v").append(i).append(" > 10) {\n  print v").append(i).append(";\n} else {\n  v")
+                    .append(i).append(" = v").append(i).append(" - 1;\n}\n");
+        }
+
+        for (int round = 0; round < 3; round++) {
+            String text = source.toString();
+            long start = System.nanoTime();
+            for (int i = 0; i < 5; i++) {
+                new Parser(new Scanner(text).scanTokens()).parse();
+            }
+            double full = (System.nanoTime() - start) / 5 / 1e6;
+
+            IncrementalParser parser = new IncrementalParser(text);
+            // 在中间某个声明的表达式里打字："* 2" -> "* 23" -> "* 2" -> 插入空行 -> 删除空行
+            int offset = text.indexOf("* 2", text.length() / 2) + 3;
+            int reparsed = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < EDITS; i++) {
+                IncrementalParser.Update update = switch (i % 4) {
+                    case 0 -> parser.edit(offset, 0, "3");
+                    case 1 -> parser.edit(offset, 1, "");
+                    case 2 -> parser.edit(offset, 0, "\n");
+                    default -> parser.edit(offset, 1, "");
+                };
+                reparsed += update.changedEnd() - update.changedStart();
+            }
+            double incremental = (System.nanoTime() - start) / (double) EDITS / 1e6;
+            System.out.printf("%d chars: full reparse %.2f ms, incremental edit %.4f ms (%.0f chars reparsed per edit)%n",
+                    text.length(), full, incremental, reparsed / (double) EDITS);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.craftinginterpreters.tools;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * 检查优化前后的输出(包括错误信息和退出码)是否完全相同，重点是Optimizer删掉的分支：
+ * 死分支里的静态错误(重复声明、在初始化器中读取自己)必须和 --no-optimize 时一样报告。
+ * 内置的脚本把这两种错误分别放在 if (false)、while (false)、if (true) 的else分支和 and/or 的右操作数中，
+ * 再加一个没有错误的脚本对照。也可以传入自己的脚本。
+ * 每个脚本在几种后端下各运行两次(加不加 --no-optimize)，都在新的JVM进程中，有不同时打印出两边的输出，退出码为1。
+ * 用法：java -cp <jlox的classpath> com.craftinginterpreters.tools.OptimizeCheck [script.lox ...]
+ */
+public class OptimizeCheck {
+    private static final String LOX = "com.craftinginterpreters.lox.Lox";
+
+    private static final String JAVA = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    private static final String CLASSPATH = System.getProperty("java.class.path");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("lox-optimize");
+        List<Path> scripts = new ArrayList<>();
+        if (args.length > 0) {
+            for (String arg : args) scripts.add(Path.of(arg));
+        } else {
+            scripts.add(write(directory, "dead-branches", "if (false) { var b = 2; var b = 3; }\n"
+                    + "while (false) { var c = c; }\n"
+                    + "print \"ran\";\n"));
+            scripts.add(write(directory, "dead-else", "if (true) print \"then\"; else { var d = 1; var d = 2; }\n"
+                    + "print \"ran\";\n"));
+            scripts.add(write(directory, "dead-operand", "{ var e = false and e; var f = true or f; }\n"
+                    + "print \"ran\";\n"));
+            scripts.add(write(directory, "valid", "var a = 1;\n"
+                    + "if (false) { var b = a; print b; } else { var b = a + 1; print b; }\n"
+                    + "while (false) { var c = 1; }\n"
+                    + "print a or b;\n"));
+        }
+
+        String cache = "--cache-dir=" + directory.resolve("cache");
+        List<List<String>> modes = List.of(List.of(), List.of("--vm"), List.of("--ssa"), List.of("--nodes"),
+                List.of("--sealed"), List.of("--cache", cache));
+        boolean same = true;
+        for (Path script : scripts) {
+            for (List<String> flags : modes) {
+                List<String> unoptimized = new ArrayList<>(flags);
+                unoptimized.add("--no-optimize");
+                String expected = run(unoptimized, script);
+                String actual = run(flags, script);
+                String name = script.getFileName() + " " + String.join(" ", flags);
+                if (expected.equals(actual)) {
+                    System.out.println("same  " + name);
+                } else {
+                    same = false;
+                    System.out.println("DIFF  " + name);
+                    System.out.println("--- --no-optimize");
+                    System.out.print(expected);
+                    System.out.println("--- optimized");
+                    System.out.print(actual);
+                }
+            }
+        }
+        if (!same) System.exit(1);
+    }
+
+    private static Path write(Path directory, String name, String source) throws IOException {
+        Path script = directory.resolve(name + ".lox");
+        Files.writeString(script, source);
+        return script;
+    }
+
+    // stdout和stderr合在一起，最后加上退出码
+    private static String run(List<String> flags, Path script) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(JAVA, "-cp", CLASSPATH, LOX));
+        command.addAll(flags);
+        command.add(script.toString());
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        return output + "exit " + process.waitFor() + "\n";
+    }
+}
@@ -0,0 +1,89 @@
+package com.craftinginterpreters.tools;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * 检查 jlox --parallel-parse 和顺序解析的输出(包括错误信息和退出码)是否完全相同。
+ * 生成几个足够大、会被分成多段的脚本，错误放在段的边界附近：
+ * - missing-brace：块里少了分号，同步越过'}'后块一直延伸到文件末尾；
+ * - sync-skip：出错的声明以'}'结束，下一段开头不是关键字，顺序解析的同步会跳过它；
+ * - unclosed-paren：括号不配对，后面连成一整段；
+ * - valid：没有错误，对照用。
+ * 也可以传入自己的脚本。每个脚本分别在新的JVM进程中运行两次，有不同时打印出两边的输出，退出码为1。
+ * 用法：java -cp <jlox的classpath> com.craftinginterpreters.tools.ParallelParseCheck [script.lox ...]
+ */
+public class ParallelParseCheck {
+    private static final String LOX = "com.craftinginterpreters.lox.Lox";
+
+    private static final String JAVA = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    private static final String CLASSPATH = System.getProperty("java.class.path");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<Path> scripts = new ArrayList<>();
+        if (args.length > 0) {
+            for (String arg : args) scripts.add(Path.of(arg));
+        } else {
+            Path directory = Files.createTempDirectory("lox-parallel-parse");
+            scripts.add(write(directory, "missing-brace", declarations(100) + "{ print 1 }\n" + prints(12000)));
+            scripts.add(write(directory, "sync-skip", declarations(100) + "{ print 1 }\n" + assignments(12000)));
+            scripts.add(write(directory, "unclosed-paren", declarations(6000) + "print (a1;\n" + prints(6000)));
+            scripts.add(write(directory, "valid", declarations(6000) + "{ print a1; }\n" + prints(6000)));
+        }
+
+        boolean same = true;
+        for (Path script : scripts) {
+            String sequential = run(List.of(), script);
+            String parallel = run(List.of("--parallel-parse"), script);
+            if (sequential.equals(parallel)) {
+                System.out.println("same  " + script.getFileName());
+            } else {
+                same = false;
+                System.out.println("DIFF  " + script.getFileName());
+                System.out.println("--- sequential");
+                System.out.print(sequential);
+                System.out.println("--- --parallel-parse");
+                System.out.print(parallel);
+            }
+        }
+        if (!same) System.exit(1);
+    }
+
+    private static String declarations(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) sb.append("var a").append(i % 100).append(" = ").append(i).append(";\n");
+        return sb.toString();
+    }
+
+    private static String prints(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) sb.append("print a").append(i % 100).append(";\n");
+        return sb.toString();
+    }
+
+    private static String assignments(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) sb.append("a").append(i % 100).append(" = ").append(i).append(";\n");
+        return sb.toString();
+    }
+
+    private static Path write(Path directory, String name, String source) throws IOException {
+        Path script = directory.resolve(name + ".lox");
+        Files.writeString(script, source);
+        return script;
+    }
+
+    // stdout和stderr合在一起，最后加上退出码
+    private static String run(List<String> flags, Path script) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(JAVA, "-cp", CLASSPATH, LOX));
+        command.addAll(flags);
+        command.add(script.toString());
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        return output + "exit " + process.waitFor() + "\n";
+    }
+}
@@ -0,0 +1,61 @@
+package com.craftinginterpreters.tools;
+
+import java.util.List;
+
+import com.craftinginterpreters.lox.Parser;
+import com.craftinginterpreters.lox.Scanner;
+import com.craftinginterpreters.lox.Token;
+
+/*
+ * 表达式解析的基准测试：很长的二元表达式链、很深的括号/一元嵌套，以及普通的混合语句。
+ * 每种输入只扫描一次，然后反复解析同一个token列表，取后2/3次中最快的一次。
+ * 深层嵌套需要较大的栈：java -Xss64m com.craftinginterpreters.tools.ParserBenchmark
+ */
+public class ParserBenchmark {
+    private static final int ITERATIONS = 30;
+
+    public static void main(String[] args) {
+        StringBuilder longExpressions = new StringBuilder();
+        for (int line = 0; line < 200; line++) {
+            longExpressions.append("print 1");
+            for (int i = 0; i < 2000; i++) {
+                longExpressions.append(' ').append("+-*/<>".charAt(i % 6)).append(" x").append(i % 7);
+                if (i % 7 == 0) longExpressions.append(" == y");
+            }
+            longExpressions.append(";\n");
+        }
+
+        StringBuilder nestedExpressions = new StringBuilder();
+        for (int line = 0; line < 200; line++) {
+            nestedExpressions.append("print ");
+            for (int i = 0; i < 2000; i++) nestedExpressions.append(i % 2 == 0 ? "(" : "-");
+            nestedExpressions.append('1');
+            for (int i = 0; i < 1000; i++) nestedExpressions.append(')');
+            nestedExpressions.append(";\n");
+        }
+
+        StringBuilder mixedStatements = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            mixedStatements.append("var a").append(i % 50).append(" = b and c or !d == (e + 1) * 2;\n");
+        }
+
+        for (int round = 0; round < 2; round++) {
+            run("long", longExpressions.toString());
+            run("nested", nestedExpressions.toString());
+            run("mixed", mixedStatements.toString());
+        }
+    }
+
+    private static void run(String name, String source) {
+        List<Token> tokens = new Scanner(source).scanTokens();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            new Parser(tokens).parse();
+            long elapsed = System.nanoTime() - start;
+            if (i >= ITERATIONS / 3) best = Math.min(best, elapsed);
+        }
+        System.out.printf("%-8s %9d tokens %9.2f ms %7.1f Mtokens/s%n",
+                name, tokens.size(), best / 1e6, tokens.size() / 1e6 / (best / 1e9));
+    }
+}